@@ -1,28 +1,44 @@
 package com.threadcat.magpie;
 
+import com.threadcat.latency.common.LinuxTaskSet;
 import com.threadcat.magpie.channel.MagpieChannel;
 import com.threadcat.magpie.channel.MagpieChannelDataHandler;
 import com.threadcat.magpie.channel.MagpieChannelStatusListener;
+import com.threadcat.magpie.channel.MagpieTransport;
+import com.threadcat.magpie.internal.MagpieBuffers;
+import com.threadcat.magpie.internal.MagpieCapture;
+import com.threadcat.magpie.internal.MagpieCompressor;
 import com.threadcat.magpie.internal.MagpieEndpoint;
+import com.threadcat.magpie.internal.MagpieEndpointTable;
+import com.threadcat.magpie.internal.MagpieException;
 import com.threadcat.magpie.internal.MagpieGreeting;
 import com.threadcat.magpie.internal.MagpieHeartbeat;
+import com.threadcat.magpie.internal.MagpieOutbound;
 import com.threadcat.magpie.internal.MagpiePacket;
+import com.threadcat.magpie.internal.MagpieRateLimiter;
+import com.threadcat.magpie.internal.MagpieRoutes;
+import com.threadcat.magpie.internal.MagpieTime;
+import com.threadcat.magpie.internal.MagpieTopics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.time.Clock;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32C;
 
 /**
  * Connection multiplexer.
  * Every instance assigned id and capable of both initiate connections to others and accept incoming connections.
- * i.e. this is {@link MagpieChannel} wrapper which adds message routing by id, message sequence and heartbeat control.
+ * i.e. this is {@link MagpieTransport} ({@link MagpieChannel} by default) wrapper which adds message routing by id,
+ * message sequence and heartbeat control.
  * Method 'poll' supposed to be used from a single-thread dispatcher, 'send' is safe for concurrent threads.
  * <p>
  * > connection = new Magpie("service-id", port)
@@ -40,28 +56,55 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * Connection initiator issues heartbeats, acceptor responds with echo heartbeats.
  * Message sequence number issued and validated by both sides independently.
  * Loopback connection from the same Magpie instance is allowed (one only).
+ * <p>
+ * Endpoints connected to a common hub (see {@link MagpieOptions#setRelay(boolean)}) reach each other
+ * through it by id when they are not connected directly, so services need not form a full mesh.
  *
  * @author threadcat
  */
 public class Magpie {
     public static final short TYPE_HEARTBEAT = 0;
     public static final short TYPE_GREETING = -1;
+    public static final short TYPE_SUBSCRIPTION = -2;
+    public static final short TYPE_TOPIC = -3;
+    public static final short TYPE_ROUTE = -4;
+    public static final short TYPE_RELAY = -5;
+    public static final short TYPE_RELAYED = -6;
     public static final short TYPE_DATA = 1;
     private static final Logger LOG = LoggerFactory.getLogger(Magpie.class);
     private static final String LOOPBACK = "loopback";
+    // Greeting packet with full header and checksum trailer, the rest of buffer is spare
+    private static final int GREETING_BUFFER_SIZE = 128;
     private final String endpointId;
-    private final MagpieChannel magpieChannel;
+    private final MagpieTransport magpieChannel;
     private final ChannelDataHandler channelDataHandler = new ChannelDataHandler();
     private final ChannelStatusListener statusListener = new ChannelStatusListener();
-    private final ConcurrentMap<String, MagpieEndpoint> connections = new ConcurrentHashMap<>();
-    private final ConcurrentMap<InetSocketAddress, MagpieEndpoint> endpoints = new ConcurrentHashMap<>();
+    private final MagpieEndpointTable endpoints = new MagpieEndpointTable();
+    private final ConcurrentMap<String, MagpiePublisher> publishers = new ConcurrentHashMap<>();
+    private final Set<MagpieSubscriber<?>> subscribers = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<InetSocketAddress, String> initiatedIds = new ConcurrentHashMap<>();
+    private final Set<String> paused = ConcurrentHashMap.newKeySet();
+    private final MagpieTopics topics = new MagpieTopics();
+    private final MagpieRoutes routes;
     private final List<MagpieStatusListener> listeners = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, MagpieService> services = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MagpieRateLimiter> rateLimiters = new ConcurrentHashMap<>();
 
     private final MagpieGreeting greeting = new MagpieGreeting();
     private final MagpieHeartbeat heartbeatOut = new MagpieHeartbeat();
-    private final Clock clock;
+    private final MagpieHeartbeat heartbeatIn = new MagpieHeartbeat();
+    private final ByteBuffer greetingBuffer = ByteBuffer.allocateDirect(GREETING_BUFFER_SIZE);
+    private final MagpieTime time;
     private final MagpieOptions options;
     private long nextHeartbeat;
+    private long nextGreetingCheck;
+    private Thread pollThread;
+    private volatile long corruptedPackets;
+    private volatile long droppedRelays;
+    private volatile long shutdownTime;
+    private volatile long shutdownDeadline;
+    private long shutdownAnnounced;
+    private volatile MagpieCapture capture;
 
 
     public Magpie(String endpointId) {
@@ -73,21 +116,74 @@ public class Magpie {
     }
 
     public Magpie(String endpointId, int port, MagpieOptions options) {
-        this.magpieChannel = new MagpieChannel(port);
+        this.magpieChannel = options.getTransport().create(port, options);
         this.magpieChannel.addStatusListener(statusListener);
-        this.clock = options.getClock();
+        // Full size buffers are allocated after greetings, so half-open connections stay cheap
+        this.magpieChannel.setPendingBufferSize(GREETING_BUFFER_SIZE);
+        this.time = new MagpieTime(options.getClock(), options.getNanoClock());
         this.endpointId = endpointId;
         this.greeting.setId(endpointId);
         this.options = options;
+        this.routes = new MagpieRoutes(options.getRelayIds());
     }
 
+    /**
+     * Connects to endpoint through {@link MagpieOptions#getStripes()} connections.
+     */
     public Magpie addEndpoint(InetSocketAddress address) {
-        magpieChannel.addEndpoint(address);
+        for (int i = 0; i < options.getStripes(); i++) {
+            magpieChannel.addEndpoint(MagpieChannel.stripeAddress(address, i));
+        }
         return this;
     }
 
     public void removeEndpoint(InetSocketAddress address) {
-        magpieChannel.removeEndpoint(address);
+        for (int i = 0; i < options.getStripes(); i++) {
+            InetSocketAddress stripe = MagpieChannel.stripeAddress(address, i);
+            initiatedIds.remove(stripe);
+            magpieChannel.removeEndpoint(stripe);
+        }
+    }
+
+    /**
+     * Replaces configured endpoints with specified set, see {@link MagpieTransport#reconfigure(Set)}.
+     */
+    public void reconfigure(Set<InetSocketAddress> addresses) {
+        Set<InetSocketAddress> stripes = new HashSet<>();
+        for (InetSocketAddress address : addresses) {
+            for (int i = 0; i < options.getStripes(); i++) {
+                stripes.add(MagpieChannel.stripeAddress(address, i));
+            }
+        }
+        magpieChannel.reconfigure(stripes);
+    }
+
+    /**
+     * Maps logical service name to greeting ids of its instances, replacing previous mapping.
+     * See {@link MagpieService}.
+     */
+    public Magpie addService(String name, MagpieRouting routing, String... endpointIds) {
+        MagpieService service = new MagpieService(this, name, routing, Set.of(endpointIds));
+        listeners.add(service);
+        MagpieService previous = services.put(name, service);
+        if (previous != null) {
+            listeners.remove(previous);
+        }
+        return this;
+    }
+
+    public void removeService(String name) {
+        MagpieService service = services.remove(name);
+        if (service != null) {
+            listeners.remove(service);
+        }
+    }
+
+    /**
+     * @return service added by {@link #addService(String, MagpieRouting, String...)} or null.
+     */
+    public MagpieService service(String name) {
+        return services.get(name);
     }
 
     public Magpie addStatusListener(MagpieStatusListener listener) {
@@ -96,6 +192,10 @@ public class Magpie {
     }
 
     public Magpie open() {
+        time.update();
+        if (options.getCaptureDirectory() != null) {
+            capture = new MagpieCapture(Paths.get(options.getCaptureDirectory()), options.getCaptureFileSize(), options.getCaptureFileCount());
+        }
         magpieChannel.open();
         return this;
     }
@@ -106,48 +206,534 @@ public class Magpie {
 
     public void close() {
         magpieChannel.close();
+        MagpieCapture capture = this.capture;
+        if (capture != null) {
+            this.capture = null;
+            capture.close();
+        }
+        publishers.values().forEach(MagpiePublisher::complete);
+    }
+
+    /**
+     * Starts graceful shutdown: peers are told planned shutdown time through heartbeats,
+     * so they stop routing new traffic here (see {@link MagpieStatus#DRAINING}) and refuse new sends to it,
+     * messages in flight and queued are still received and sent while 'poll' keeps running,
+     * connections are closed when all peers are gone or the deadline comes, whichever first.
+     *
+     * @param drainMillis time given to peers to drain.
+     */
+    public void shutdown(long drainMillis) {
+        // Not cached time, 'poll' might not be running
+        long announced = options.getClock().millis() + drainMillis;
+        if (shutdownTime == 0L || announced < shutdownTime) {
+            shutdownDeadline = options.getNanoClock().getAsLong() / 1_000_000L + drainMillis;
+            shutdownTime = announced;
+        }
+    }
+
+    public boolean isShuttingDown() {
+        return shutdownTime != 0L;
+    }
+
+    /**
+     * @return true if specified endpoint announced its shutdown, new data sent to it is refused.
+     */
+    public boolean isDraining(String endpointId) {
+        return endpoints.anyMatch(endpointId, MagpieEndpoint::isDraining);
+    }
+
+    /**
+     * @return total number of received packets dropped because of checksum mismatch or malformed payload.
+     */
+    public long getCorruptedPackets() {
+        return corruptedPackets;
+    }
+
+    /**
+     * @return number of corrupted packets received through current connection of specified endpoint.
+     */
+    public long getCorruptedPackets(String endpointId) {
+        MagpieEndpoint endpoint = endpoints.get(endpointId);
+        return endpoint != null ? endpoint.getCorrupted() : 0L;
+    }
+
+    /**
+     * Stops reading from specified endpoint until {@link #resume(String)}, so TCP flow control
+     * pushes back on the sender. Pause survives reconnects. Safe to call from any thread.
+     */
+    public void pause(String endpointId) {
+        paused.add(endpointId);
+        endpoints.forEach(endpointId, endpoint -> magpieChannel.pauseReading(endpoint.getAddress()));
+    }
+
+    public void resume(String endpointId) {
+        if (paused.remove(endpointId)) {
+            resumeReading(endpointId);
+        }
+    }
+
+    public boolean isPaused(String endpointId) {
+        return paused.contains(endpointId);
+    }
+
+    /**
+     * Creates publisher of data messages received from specified endpoint.
+     * While publisher has a subscriber, data messages from that endpoint bypass 'poll' data handler
+     * and reading from endpoint channel is paused when subscriber demand runs out.
+     */
+    public MagpiePublisher publisher(String endpointId) {
+        return publishers.computeIfAbsent(endpointId, id -> new MagpiePublisher(this, id));
+    }
+
+    /**
+     * Creates subscriber sending upstream items to specified endpoint as {@link #TYPE_DATA} messages.
+     * Upstream is asked for more only while endpoint outgoing queue holds less than half of
+     * {@link MagpieOptions#getOutboundLaneSize()}, requests put off by a slow peer are made by 'poll' once it drains.
+     *
+     * @param window number of items requested from upstream in advance.
+     */
+    public <T> MagpieSubscriber<T> subscriber(String endpointId, MagpieMessageEncoder<T> encoder, int window) {
+        return subscriber(endpointId, encoder, TYPE_DATA, window);
+    }
+
+    public <T> MagpieSubscriber<T> subscriber(String endpointId, MagpieMessageEncoder<T> encoder, short dataType, int window) {
+        MagpieSubscriber<T> subscriber = new MagpieSubscriber<>(this, endpointId, encoder, dataType, window, options.getOutboundLaneSize() / 2);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    void removeSubscriber(MagpieSubscriber<?> subscriber) {
+        subscribers.remove(subscriber);
     }
 
     public boolean send(String endpointId, MagpieDataTransformer transformer) {
         return send(endpointId, transformer, Magpie.TYPE_DATA);
     }
 
+    /**
+     * Sends message to directly connected endpoint, otherwise through a hub advertising it as reachable.
+     */
     public boolean send(String endpointId, MagpieDataTransformer transformer, short dataType) {
-        MagpieEndpoint endpoint = connections.get(endpointId);
+        MagpieEndpoint endpoint = endpoints.get(endpointId);
+        if (endpoint == null && !routes.isEmpty()) {
+            return relay(endpointId, transformer, dataType);
+        }
+        return trySend(endpoint, transformer, dataType, false);
+    }
+
+    /**
+     * Sends message through one of striped connections chosen by key, see {@link MagpieOptions#getStripes()}.
+     * Messages with the same key keep their order, the same as {@link #send(String, MagpieDataTransformer, short)}
+     * when there is a single connection.
+     */
+    public boolean send(String endpointId, long key, MagpieDataTransformer transformer, short dataType) {
+        MagpieEndpoint endpoint = stripe(endpointId, key);
+        if (endpoint == null && !routes.isEmpty()) {
+            return relay(endpointId, transformer, dataType);
+        }
+        return trySend(endpoint, transformer, dataType, false);
+    }
+
+    /**
+     * @return true if endpoint is not connected but reachable through a hub.
+     */
+    public boolean isRelayed(String endpointId) {
+        return endpoints.slotOf(endpointId) < 0 && routes.hubs(endpointId).length > 0;
+    }
+
+    /**
+     * @return number of relayed messages this hub could not forward, e.g. target is gone or its queue is full.
+     */
+    public long getDroppedRelays() {
+        return droppedRelays;
+    }
+
+    /**
+     * Sends message in urgent lane: when socket is backed up it goes ahead of queued messages
+     * sent by {@link #send(String, MagpieDataTransformer, short)}, along with heartbeats and control messages.
+     */
+    public boolean sendUrgent(String endpointId, MagpieDataTransformer transformer, short dataType) {
+        return trySend(endpoints.get(endpointId), transformer, dataType, true);
+    }
+
+    /**
+     * Sends message which may be replaced by a later one with the same key while it waits for socket room,
+     * e.g. price update keyed by instrument, so a slow consumer gets the latest values instead of a growing backlog.
+     * Queued conflated messages take turns with messages sent by {@link #send(String, MagpieDataTransformer, short)},
+     * order between different keys is kept. Messages are never conflated while socket keeps up.
+     */
+    public boolean sendConflated(String endpointId, long key, MagpieDataTransformer transformer, short dataType) {
+        return trySendConflated(stripe(endpointId, key), key, transformer, dataType);
+    }
+
+    public boolean sendConflated(int slot, long key, MagpieDataTransformer transformer, short dataType) {
+        return endpoints.isBound(slot) && trySendConflated(endpoints.get(slot), key, transformer, dataType);
+    }
+
+    /**
+     * Subscribes to topic published by peers, see {@link #publish(String, MagpieDataTransformer)}.
+     * Subscription is advertised to connected peers straight away and to new ones after greetings.
+     * Striped peer gets it through every connection and records it once per endpoint id.
+     * Handler receives topic messages with type {@link #TYPE_TOPIC}, payload excludes topic name.
+     */
+    public Magpie subscribe(String topic, MagpieDataHandler handler) {
+        if (topics.subscribe(topic, handler)) {
+            List<String> list = List.of(topic);
+            endpoints.forEach(endpoint -> sendSubscription(endpoint, MagpieTopics.SUBSCRIBE, list));
+        }
+        return this;
+    }
+
+    public void unsubscribe(String topic) {
+        if (topics.unsubscribe(topic)) {
+            List<String> list = List.of(topic);
+            endpoints.forEach(endpoint -> sendSubscription(endpoint, MagpieTopics.UNSUBSCRIBE, list));
+        }
+    }
+
+    /**
+     * Sends message to every connected endpoint subscribed to topic,
+     * nothing is written if there are no subscribers. Topic is validated as in {@link #subscribe(String, MagpieDataHandler)}.
+     *
+     * @return number of endpoints message was sent to.
+     */
+    public int publish(String topic, MagpieDataTransformer transformer) {
+        MagpieTopics.checkTopic(topic);
+        int sent = 0;
+        for (String id : topics.subscribers(topic)) {
+            MagpieEndpoint endpoint = endpoints.get(id);
+            if (endpoint != null) {
+                endpoint.lock();
+                try {
+                    ByteBuffer buffer = endpoint.getBuffer();
+                    buffer.clear();
+                    int n = MagpieTopics.writeTopic(buffer, MagpiePacket.PAYLOAD_OFFSET, topic);
+                    n += transformer.write(buffer, MagpiePacket.PAYLOAD_OFFSET + n);
+                    if (sendData(endpoint, buffer, n, TYPE_TOPIC, MagpieOutbound.BULK, 0L)) {
+                        sent++;
+                    }
+                } finally {
+                    endpoint.unlock();
+                }
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * @return true if any connected endpoint is subscribed to topic.
+     */
+    public boolean hasSubscribers(String topic) {
+        return topics.subscribers(topic).length > 0;
+    }
+
+    /**
+     * Resolves connected endpoint id into slot for {@link #send(int, MagpieDataTransformer, short)},
+     * which skips id lookup. Slot stays valid until endpoint is {@link MagpieStatus#DISCONNECTED},
+     * after that it may be reused by another connection.
+     *
+     * @return slot or -1 if endpoint is not connected.
+     */
+    public int slotOf(String endpointId) {
+        return endpoints.slotOf(endpointId);
+    }
+
+    public boolean send(int slot, MagpieDataTransformer transformer) {
+        return send(slot, transformer, Magpie.TYPE_DATA);
+    }
+
+    public boolean send(int slot, MagpieDataTransformer transformer, short dataType) {
+        // Endpoint still in greeting is not available for sending
+        return endpoints.isBound(slot) && trySend(endpoints.get(slot), transformer, dataType, false);
+    }
+
+    private MagpieEndpoint stripe(String endpointId, long key) {
+        return endpoints.get(endpoints.slotOf(MagpieGreeting.idHigh(endpointId), MagpieGreeting.idLow(endpointId), key));
+    }
+
+    private boolean trySend(MagpieEndpoint endpoint, MagpieDataTransformer transformer, short dataType, boolean urgent) {
+        if (endpoint == null) {
+            return false;
+        }
+        endpoint.lock();
+        try {
+            ByteBuffer buffer = endpoint.getBuffer();
+            buffer.clear();
+            int payloadLength = transformer.write(buffer, MagpiePacket.PAYLOAD_OFFSET);
+            return sendData(endpoint, buffer, payloadLength, dataType, urgent ? MagpieOutbound.URGENT : MagpieOutbound.BULK, 0L);
+        } finally {
+            endpoint.unlock();
+        }
+    }
+
+    /**
+     * Wraps message into relay frame addressed to target id and sends it to the first connected hub,
+     * the same hub as long as it stays connected, so messages keep their order.
+     * Frame carries relay sequence of the target, counted only when frame is sent.
+     */
+    private boolean relay(String endpointId, MagpieDataTransformer transformer, short dataType) {
+        int index = routes.index(endpointId);
+        if (index < 0) {
+            return false;
+        }
+        for (int slot : routes.hubs(endpointId)) {
+            if (endpoints.isBound(slot) && !endpoints.get(slot).isDraining()) {
+                MagpieEndpoint hub = endpoints.get(slot);
+                hub.lock();
+                try {
+                    ByteBuffer buffer = hub.getBuffer();
+                    buffer.clear();
+                    MagpieRoutes.writeId(buffer, MagpiePacket.PAYLOAD_OFFSET, MagpieGreeting.idHigh(endpointId), MagpieGreeting.idLow(endpointId));
+                    long sequence = routes.nextSequence(index);
+                    buffer.putLong(MagpiePacket.PAYLOAD_OFFSET + MagpieRoutes.IDX_SEQUENCE, sequence);
+                    buffer.putShort(MagpiePacket.PAYLOAD_OFFSET + MagpieRoutes.IDX_TYPE, dataType);
+                    int n = transformer.write(buffer, MagpiePacket.PAYLOAD_OFFSET + MagpieRoutes.RELAY_HEADER);
+                    if (sendData(hub, buffer, MagpieRoutes.RELAY_HEADER + n, TYPE_RELAY, MagpieOutbound.BULK, 0L)) {
+                        routes.commitSequence(index, sequence);
+                        return true;
+                    }
+                    return false;
+                } finally {
+                    hub.unlock();
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean trySendConflated(MagpieEndpoint endpoint, long key, MagpieDataTransformer transformer, short dataType) {
+        if (endpoint == null) {
+            return false;
+        }
+        endpoint.lock();
+        try {
+            ByteBuffer buffer = endpoint.getBuffer();
+            buffer.clear();
+            int payloadLength = transformer.write(buffer, MagpiePacket.PAYLOAD_OFFSET);
+            return sendData(endpoint, buffer, payloadLength, dataType, MagpieOutbound.CONFLATED, key);
+        } finally {
+            endpoint.unlock();
+        }
+    }
+
+    /**
+     * @return messages which can be sent to endpoint at once within rate limit, Long.MAX_VALUE if unlimited,
+     * 0 if not connected. See {@link MagpieOptions#setRateLimit(long, long)}.
+     */
+    public long getRemainingMessages(String endpointId) {
+        MagpieEndpoint endpoint = endpoints.get(endpointId);
         if (endpoint == null) {
+            return 0L;
+        }
+        MagpieRateLimiter limiter = endpoint.getRateLimiter();
+        return limiter != null ? limiter.getRemainingMessages(options.getNanoClock().getAsLong()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return payload bytes which can be sent to endpoint at once within rate limit, Long.MAX_VALUE if unlimited,
+     * 0 if not connected.
+     */
+    public long getRemainingBytes(String endpointId) {
+        MagpieEndpoint endpoint = endpoints.get(endpointId);
+        if (endpoint == null) {
+            return 0L;
+        }
+        MagpieRateLimiter limiter = endpoint.getRateLimiter();
+        return limiter != null ? limiter.getRemainingBytes(options.getNanoClock().getAsLong()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return bytes waiting in outgoing queues of specified endpoint connections, read without lock so approximate.
+     */
+    long getQueuedBytes(String endpointId) {
+        return endpoints.sum(endpointId, Magpie::queuedBytes);
+    }
+
+    private static long queuedBytes(MagpieEndpoint endpoint) {
+        MagpieOutbound outbound = endpoint.getOutbound();
+        return outbound != null ? outbound.getQueuedBytes() : 0L;
+    }
+
+    /**
+     * @return number of conflated messages replaced by newer ones before being sent to endpoint.
+     */
+    public long getConflatedMessages(String endpointId) {
+        MagpieEndpoint endpoint = endpoints.get(endpointId);
+        MagpieOutbound outbound = endpoint != null ? endpoint.getOutbound() : null;
+        return outbound != null ? outbound.getConflated() : 0L;
+    }
+
+    public boolean tryClaim(String endpointId, int length, MagpieClaim claim) {
+        return tryClaim(endpointId, length, Magpie.TYPE_DATA, claim);
+    }
+
+    /**
+     * Claims region of endpoint sending buffer to write payload in place, no transformer needed.
+     * Endpoint is locked for other senders until {@link MagpieClaim#commit()} or {@link MagpieClaim#abort()}.
+     *
+     * @return false if endpoint is not connected.
+     */
+    public boolean tryClaim(String endpointId, int length, short dataType, MagpieClaim claim) {
+        return tryClaim(endpoints.get(endpointId), length, dataType, claim);
+    }
+
+    public boolean tryClaim(int slot, int length, short dataType, MagpieClaim claim) {
+        return endpoints.isBound(slot) && tryClaim(endpoints.get(slot), length, dataType, claim);
+    }
+
+    private boolean tryClaim(MagpieEndpoint endpoint, int length, short dataType, MagpieClaim claim) {
+        if (endpoint == null || endpoint.isDraining()) {
             return false;
         }
-        synchronized (endpoint) {
-            send(endpoint.getAddress(), endpoint.incrementSequence(), endpoint.getBuffer(), transformer, dataType);
+        if (claim.isActive()) {
+            throw new MagpieException("Previous claim is neither committed nor aborted");
+        }
+        if (length < 0 || length > endpoint.getMaxMessageSize() - MagpiePacket.MAX_OVERHEAD) {
+            throw new MagpieException("Claimed length " + length + " exceeds max message size " + endpoint.getMaxMessageSize());
         }
+        endpoint.lock();
+        claim.claim(this, endpoint, length, dataType);
         return true;
     }
 
+    /**
+     * Sends claimed payload, endpoint lock is held by the claim.
+     */
+    boolean commit(MagpieEndpoint endpoint, int length, short dataType) {
+        return sendData(endpoint, endpoint.getBuffer(), length, dataType, MagpieOutbound.BULK, 0L);
+    }
+
     /**
      * @return false if no data received in time defined by {@link MagpieOptions#getLazyWakeup()}
      */
     public boolean poll(MagpieDataHandler dataHandler) {
+        if (pollThread != Thread.currentThread()) {
+            pinPollThread();
+        }
+        time.update();
+        if (shutdownTime != 0L && refreshShutdown()) {
+            return false;
+        }
         refreshHeartbeats();
+        refreshGreetings();
+        refreshPacing();
+        refreshSubscribers();
         channelDataHandler.dataHandler = dataHandler;
         return magpieChannel.poll(channelDataHandler);
     }
 
+    /**
+     * Applies {@link MagpieOptions#getPollCpuMask()} to the thread calling 'poll'.
+     * Failure is not fatal, e.g. 'taskset' might be unavailable.
+     */
+    private void pinPollThread() {
+        pollThread = Thread.currentThread();
+        String mask = options.getPollCpuMask();
+        if (mask != null) {
+            String threadName = pollThread.getName();
+            try {
+                LinuxTaskSet.setCpuMask(threadName, mask);
+                LOG.info("Pinned poll thread {} to CPU mask {}", threadName, mask);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOG.error("Failed pinning poll thread {} to CPU mask {}", threadName, mask, e);
+            }
+        }
+    }
+
+    /**
+     * Announces shutdown time to all peers, closes connections at the deadline or when peers are gone.
+     *
+     * @return true if closed.
+     */
+    private boolean refreshShutdown() {
+        if (time.monotonicMillis() >= shutdownDeadline || endpoints.isEmpty()) {
+            LOG.info("Shutdown {}", endpoints.isEmpty() ? "completed" : "deadline reached");
+            close();
+            return true;
+        }
+        if (shutdownAnnounced != shutdownTime) {
+            shutdownAnnounced = shutdownTime;
+            heartbeatOut.shutdown = shutdownAnnounced;
+            LOG.info("Announcing shutdown at {}", heartbeatOut);
+            endpoints.forEach(endpoint -> {
+                if (endpoint.getId() != null) {
+                    sendHeartbeat(endpoint);
+                }
+            });
+        }
+        return false;
+    }
+
     /**
      * Sends heartbeat through initiated connections, terminates stale connections.
      */
     private void refreshHeartbeats() {
-        long currentMillis = clock.millis();
+        long currentMillis = time.monotonicMillis();
         if (currentMillis > nextHeartbeat) {
             nextHeartbeat = currentMillis + options.getHeartbeatInterval();
-            for (Map.Entry<InetSocketAddress, MagpieEndpoint> entry : endpoints.entrySet()) {
-                MagpieEndpoint endpoint = entry.getValue();
+            endpoints.forEach(endpoint -> {
                 final var address = endpoint.getAddress();
+                if (magpieChannel.isReadingPaused(address)) {
+                    // Heartbeats are not read while paused, silence is expected
+                    endpoint.updateLastReceived(currentMillis);
+                }
                 if (endpoint.isHeartbeatTimeout(currentMillis)) {
                     LOG.info("Heartbeat timeout, terminating connection {} {}", endpoint.getId(), address);
                     magpieChannel.closeChannel(address);
-                } else if (magpieChannel.isInitiated(address)) {
+                } else if (endpoint.getId() != null && magpieChannel.isInitiated(address)) {
                     sendHeartbeat(endpoint);
                 }
+            });
+        }
+    }
+
+    /**
+     * Terminates connections which have not completed greetings in time defined by
+     * {@link MagpieOptions#getGreetingTimeout()}, e.g. port scanners or stuck peers.
+     */
+    private void refreshGreetings() {
+        long timeout = options.getGreetingTimeout();
+        long currentMillis = time.monotonicMillis();
+        if (timeout > 0L && currentMillis >= nextGreetingCheck) {
+            nextGreetingCheck = currentMillis + Math.max(timeout / 4, 1L);
+            endpoints.forEach(endpoint -> {
+                if (endpoint.getId() == null && currentMillis - endpoint.getCreated() > timeout) {
+                    LOG.info("Greeting timeout, terminating connection {}", endpoint.getAddress());
+                    magpieChannel.closeChannel(endpoint.getAddress());
+                }
+            });
+        }
+    }
+
+    /**
+     * Releases paced messages as rate limit budget refills, so pacing resolution is the 'poll' period:
+     * {@link MagpieOptions#getLazyWakeup()} at worst with the selector transport while there is no data.
+     */
+    private void refreshPacing() {
+        if (options.isPacing()) {
+            endpoints.forEach(endpoint -> {
+                MagpieOutbound outbound = endpoint.getOutbound();
+                if (outbound != null && outbound.isThrottled()) {
+                    endpoint.lock();
+                    try {
+                        flush(endpoint);
+                    } finally {
+                        endpoint.unlock();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Makes upstream requests subscribers put off while their endpoint queues were backed up.
+     */
+    private void refreshSubscribers() {
+        if (!subscribers.isEmpty()) {
+            for (MagpieSubscriber<?> subscriber : subscribers) {
+                subscriber.requestDeferred();
             }
         }
     }
@@ -161,18 +747,47 @@ public class Magpie {
         public void statusChanged(InetSocketAddress address, MagpieStatus status) {
             switch (status) {
                 case ACCEPTED:
-                    MagpieEndpoint aep = new MagpieEndpoint(address, clock.millis(), options.getHeartbeatInterval(), options.getMaxMessageSize());
-                    endpoints.put(address, aep);
+                    MagpieEndpoint aep = new MagpieEndpoint(address, time.monotonicMillis(), options.getHeartbeatInterval(), options.getMaxMessageSize());
+                    endpoints.add(aep);
                     sendGreeting(aep); // Initiating authentication
                     break;
                 case CONNECTED:
-                    MagpieEndpoint cep = new MagpieEndpoint(address, clock.millis(), options.getHeartbeatInterval(), options.getMaxMessageSize());
-                    endpoints.put(address, cep);
+                    MagpieEndpoint cep = new MagpieEndpoint(address, time.monotonicMillis(), options.getHeartbeatInterval(), options.getMaxMessageSize());
+                    endpoints.add(cep);
+                    break;
+                case DRAINING:
+                    // Removed by reconfiguration, kept open to drain but no longer routed to
+                    MagpieEndpoint rep = endpoints.get(address);
+                    if (rep != null) {
+                        rep.setRemoved();
+                        if (rep.getId() != null) {
+                            endpoints.unbindId(rep);
+                            if (endpoints.countOf(rep.getIdHigh(), rep.getIdLow()) == 0) {
+                                notifyStatusChanged(rep.getId(), MagpieStatus.DRAINING);
+                            }
+                        }
+                    }
                     break;
                 case DISCONNECTED:
                     MagpieEndpoint dep = endpoints.remove(address);
-                    connections.remove(dep.getId());
-                    notifyStatusChanged(dep.getId(), MagpieStatus.DISCONNECTED);
+                    routes.removeHub(dep.getSlot());
+                    // Striped endpoint is reported disconnected when its last connection is gone
+                    if (dep.getId() == null || endpoints.countOf(dep.getIdHigh(), dep.getIdLow()) == 0) {
+                        if (dep.getId() != null) {
+                            topics.removeSubscriber(dep.getId());
+                            announceRoute(MagpieRoutes.REMOVE, dep.getId());
+                        }
+                        notifyStatusChanged(dep.getId(), MagpieStatus.DISCONNECTED);
+                    }
+                    break;
+                case CIRCUIT_OPEN:
+                case CIRCUIT_HALF_OPEN:
+                    if (MagpieChannel.stripeOf(address) > 0) {
+                        break; // Reported by the first stripe only
+                    }
+                    // Endpoint is not connected, reported by id received through previous connection if any
+                    String id = initiatedIds.get(address);
+                    notifyStatusChanged(id != null ? id : address.getHostString() + ":" + address.getPort(), status);
                     break;
             }
         }
@@ -186,33 +801,173 @@ public class Magpie {
         MagpieDataHandler dataHandler;
         MagpieEndpoint endpoint;
 
+        @Override
+        public void writable(InetSocketAddress address) {
+            MagpieEndpoint endpoint = endpoints.get(address);
+            if (endpoint != null && endpoint.getOutbound() != null) {
+                endpoint.lock();
+                try {
+                    flush(endpoint);
+                } finally {
+                    endpoint.unlock();
+                }
+            }
+        }
+
         @Override
         public void process(InetSocketAddress address, ByteBuffer buffer) {
             endpoint = endpoints.get(address);
-            for (boolean received = true; received && MagpiePacket.lookupHeader(buffer); ) {
-                received = MagpiePacket.readPacket(buffer, this::process);
+            // Any data proves the link alive, heartbeat might be queued behind bulk data on the other side
+            endpoint.updateLastReceived(time.monotonicMillis());
+            int budget = options.getPollMessageBudget() > 0 ? options.getPollMessageBudget() : Integer.MAX_VALUE;
+            boolean received = true;
+            long corrupted = endpoint.getCorrupted();
+            for (; received && budget > 0 && isReadable() && MagpiePacket.lookupHeader(buffer, endpoint); budget--) {
+                received = MagpiePacket.readPacket(buffer, endpoint, this::process);
+            }
+            if (endpoint.getCorrupted() != corrupted) {
+                corruptedPackets += endpoint.getCorrupted() - corrupted;
+                LOG.error("Dropped {} corrupted packets from {}", endpoint.getCorrupted() - corrupted, endpoint);
+                notifyStatusChanged(endpoint.getId(), MagpieStatus.ERROR);
+            }
+            if (endpoint.isMalformed()) {
+                // Compact stream has no marker to resynchronize on, reconnect starts it over
+                LOG.error("Malformed compact packet header, terminating connection {} {}", endpoint.getId(), address);
+                magpieChannel.closeChannel(address);
+                return;
+            }
+            if (!isReadable()) {
+                magpieChannel.pauseReading(address);
+                // Subscriber might have requested more or endpoint resumed in between
+                if (isReadable()) {
+                    magpieChannel.resumeReading(address);
+                }
+            } else if (received && budget == 0) {
+                magpieChannel.deferReading(address);
             }
         }
 
+        private boolean isReadable() {
+            String id = endpoint.getId();
+            if (id == null) {
+                return true;
+            }
+            if (!paused.isEmpty() && paused.contains(id)) {
+                return false;
+            }
+            MagpiePublisher publisher = publishers.isEmpty() ? null : publishers.get(id);
+            if (publisher != null && !publisher.hasDemand()) {
+                return false;
+            }
+            return routes.isEmpty() || !isHeldByRelayed(endpoint.getSlot());
+        }
+
+        /**
+         * @return true if any source relayed through hub in specified slot is paused or its publisher has no demand,
+         * hub connection carries frames of every such source so it is held back as a whole.
+         */
+        private boolean isHeldByRelayed(int slot) {
+            for (String id : paused) {
+                if (routes.isRouted(id, slot)) {
+                    return true;
+                }
+            }
+            for (MagpiePublisher publisher : publishers.values()) {
+                if (!publisher.hasDemand() && routes.isRouted(publisher.getEndpointId(), slot)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void delegate(String id, long sequence, int type, ByteBuffer buffer, int offset, int length) {
+            MagpiePublisher publisher = publishers.isEmpty() || id == null ? null : publishers.get(id);
+            if (publisher == null || !publisher.offer(id, sequence, type, buffer, offset, length)) {
+                dataHandler.process(id, sequence, type, buffer, offset, length);
+            }
+        }
+
+        /**
+         * Delivers relayed frame as data of its source, through the source publisher if any.
+         * Relay sequence is verified per source: a gap is reported and the frame delivered,
+         * a late or repeated frame is reported and dropped.
+         */
+        private void processRelayed(ByteBuffer buffer, int offset, int length) {
+            int index = routes.index(buffer, offset);
+            if (index < 0) {
+                LOG.error("Relayed frame dropped, more than {} relay ids", options.getRelayIds());
+                notifyStatusChanged(endpoint.getId(), MagpieStatus.ERROR);
+                return;
+            }
+            String source = routes.id(index);
+            long sequence = buffer.getLong(offset + MagpieRoutes.IDX_SEQUENCE);
+            short type = buffer.getShort(offset + MagpieRoutes.IDX_TYPE);
+            int payloadOffset = offset + MagpieRoutes.RELAY_HEADER;
+            int payloadLength = length - MagpieRoutes.RELAY_HEADER;
+            if (capture != null) {
+                record(MagpieCapture.INBOUND, source, type, sequence, buffer, payloadOffset, payloadLength);
+            }
+            long previous = routes.lastSequence(index);
+            long gap = routes.verifySequence(index, sequence);
+            if (gap != 0L) {
+                LOG.error("Incorrect relayed message sequence from [{}]: received {} previous {}", source, sequence, previous);
+                notifyStatusChanged(source, MagpieStatus.ERROR);
+                if (gap < 0L) {
+                    return;
+                }
+            }
+            delegate(source, sequence, type, buffer, payloadOffset, payloadLength);
+        }
+
         private void process(String none, long sequence, int type, ByteBuffer buffer, int offset, int length) {
             final var id = endpoint.getId();
+            if (capture != null) {
+                record(MagpieCapture.INBOUND, id, type, sequence, buffer, offset, length);
+            }
             if (endpoint.verifySequence(sequence)) {
                 try {
                     switch (type) {
                         case TYPE_HEARTBEAT:
-                            processHeartbeat(endpoint, buffer, offset);
+                            processHeartbeat(endpoint, buffer, offset, length);
                             if (options.isDelegateAll()) {
                                 dataHandler.process(id, sequence, type, buffer, offset, length);
                             }
                             break;
                         case TYPE_GREETING:
-                            processGreeting(endpoint, buffer, offset);
+                            processGreeting(endpoint, buffer, offset, length);
                             if (options.isDelegateAll()) {
                                 dataHandler.process(id, sequence, type, buffer, offset, length);
                             }
                             break;
+                        case TYPE_SUBSCRIPTION:
+                            if (id != null) {
+                                topics.processSubscription(id, buffer, offset, length);
+                            }
+                            break;
+                        case TYPE_TOPIC:
+                            MagpieDataHandler handler = topics.handler(buffer, offset);
+                            if (handler != null) {
+                                int n = 1 + (buffer.get(offset) & 0xff);
+                                handler.process(id, sequence, type, buffer, offset + n, length - n);
+                            }
+                            break;
+                        case TYPE_ROUTE:
+                            if (id != null && routes.processRoutes(endpoint.getSlot(), buffer, offset, length) > 0) {
+                                LOG.error("Routes from hub [{}] skipped, more than {} relay ids", id, options.getRelayIds());
+                            }
+                            break;
+                        case TYPE_RELAY:
+                            if (id != null) {
+                                forward(endpoint, buffer, offset, length);
+                            }
+                            break;
+                        case TYPE_RELAYED:
+                            if (id != null && length >= MagpieRoutes.RELAY_HEADER) {
+                                processRelayed(buffer, offset, length);
+                            }
+                            break;
                         default:
-                            dataHandler.process(id, sequence, type, buffer, offset, length);
+                            delegate(id, sequence, type, buffer, offset, length);
                     }
                 } catch (Exception e) {
                     LOG.error("Failed processing type {} received from [{}] {}", type, id, endpoint.getAddress(), e);
@@ -225,28 +980,213 @@ public class Magpie {
         }
     }
 
-    private void processGreeting(MagpieEndpoint endpoint, ByteBuffer buffer, int offset) {
-        greeting.fromBuffer(buffer, offset);
+    /**
+     * Hub forwards relay frame to its target in a single copy from receive buffer, replacing target id
+     * with source id, so the target sees messages of every source in the order they were sent.
+     * Target with striped connections gets all frames of a source through the same connection.
+     */
+    private void forward(MagpieEndpoint source, ByteBuffer buffer, int offset, int length) {
+        MagpieEndpoint target = null;
+        if (options.isRelay() && length >= MagpieRoutes.RELAY_HEADER) {
+            long idLow = buffer.getLong(offset);
+            long idHigh = buffer.getLong(offset + 8);
+            target = endpoints.get(endpoints.slotOf(idHigh, idLow, source.getIdLow()));
+        }
+        if (target == null || target == source || !target.hasCapability(MagpieGreeting.CAP_RELAY)) {
+            droppedRelays++;
+            return;
+        }
+        target.lock();
+        try {
+            ByteBuffer out = target.getBuffer();
+            out.clear();
+            MagpieRoutes.writeId(out, MagpiePacket.PAYLOAD_OFFSET, source.getIdHigh(), source.getIdLow());
+            MagpieBuffers.copy(buffer, offset + MagpieRoutes.IDX_SEQUENCE,
+                    out, MagpiePacket.PAYLOAD_OFFSET + MagpieRoutes.IDX_SEQUENCE, length - MagpieRoutes.IDX_SEQUENCE);
+            if (!sendData(target, out, length, TYPE_RELAYED, MagpieOutbound.BULK, 0L)) {
+                droppedRelays++;
+            }
+        } finally {
+            target.unlock();
+        }
+    }
+
+    /**
+     * Resumes reading paused by {@link MagpiePublisher} when its subscriber requests more messages
+     * unless endpoint is paused by {@link #pause(String)}.
+     */
+    void resumeReading(String endpointId) {
+        if (!paused.contains(endpointId)) {
+            endpoints.forEach(endpointId, endpoint -> magpieChannel.resumeReading(endpoint.getAddress()));
+            // Hub connection is paused again on read if another relayed source still holds it
+            for (int slot : routes.hubs(endpointId)) {
+                if (endpoints.isBound(slot)) {
+                    magpieChannel.resumeReading(endpoints.get(slot).getAddress());
+                }
+            }
+        }
+    }
+
+    private void processGreeting(MagpieEndpoint endpoint, ByteBuffer buffer, int offset, int length) {
+        greeting.fromBuffer(buffer, offset, length);
         String source = greeting.getId();
+        short version = greeting.agreeVersion(MagpieGreeting.MIN_VERSION, MagpieGreeting.MAX_VERSION);
+        int capabilities = version >= MagpieGreeting.CAPABILITIES_VERSION ? greeting.capabilities & localCapabilities() : 0;
         final var address = endpoint.getAddress();
         boolean acceptor = magpieChannel.isAccepted(address);
         if (acceptor && source.equals(endpointId)) {
             source = LOOPBACK;
         }
+        if (version < 0) {
+            LOG.error("No common protocol version with [{}] {} versions {}-{}",
+                    source, address, greeting.minVersion, greeting.maxVersion);
+            magpieChannel.closeChannel(address);
+            return;
+        }
+        if (endpoint.isRemoved()) {
+            magpieChannel.closeChannel(address); // Removed by reconfiguration during greeting, nothing to drain
+            return;
+        }
         endpoint.setId(source);
-        connections.put(source, endpoint);
+        endpoint.setRateLimiter(rateLimiter(source));
+        int[] socketBuffers = options.getSocketBuffers(source);
+        if (socketBuffers != null) {
+            magpieChannel.setSocketBuffers(address, socketBuffers[0], socketBuffers[1]);
+        }
         if (acceptor) {
-            notifyStatusChanged(source, MagpieStatus.ACCEPTED);
+            endpoint.setStripe(greeting.stripe, greeting.stripes);
         } else {
+            endpoint.setStripe(MagpieChannel.stripeOf(address), options.getStripes());
+        }
+        magpieChannel.authenticate(address);
+        if (!acceptor) {
             sendGreeting(endpoint); // Authentication response
-            notifyStatusChanged(source, MagpieStatus.CONNECTED);
         }
+        // Agreed protocol applies after both greetings, which are always sent in the initial format
+        if ((capabilities & MagpieGreeting.CAP_COMPRESSION) != 0) {
+            endpoint.setCompressor(new MagpieCompressor(options.getMaxMessageSize(), options.getCompressionThreshold()));
+        }
+        if ((capabilities & MagpieGreeting.CAP_CHECKSUM) != 0) {
+            endpoint.setChecksumOut(new CRC32C());
+        }
+        endpoint.setProtocol(version, capabilities);
+        LOG.info("Agreed protocol version {} capabilities {} with [{}] {}", version, capabilities, source, address);
+        endpoints.bindId(endpoint);
+        if (!acceptor) {
+            initiatedIds.put(address, source);
+        }
+        // Striped endpoint is reported once, by its first connection
+        if (endpoints.countOf(endpoint.getIdHigh(), endpoint.getIdLow()) == 1) {
+            announceRoute(MagpieRoutes.ADD, source);
+            notifyStatusChanged(source, acceptor ? MagpieStatus.ACCEPTED : MagpieStatus.CONNECTED);
+        }
+        if (options.isRelay() && !LOOPBACK.equals(source)) {
+            sendRoutes(endpoint, MagpieRoutes.ADD, reachableIds(source));
+        }
+        if (shutdownAnnounced != 0L) {
+            sendHeartbeat(endpoint); // Late joiner learns about shutdown straight away
+        }
+        sendSubscription(endpoint, MagpieTopics.SUBSCRIBE, topics.getLocalTopics());
     }
 
-    private void processHeartbeat(MagpieEndpoint endpoint, ByteBuffer buffer, int offset) {
-        endpoint.updateLastReceived(clock.millis());
+    /**
+     * Sends subscription control messages split to fit max message size, if peer supports topics.
+     */
+    private void sendSubscription(MagpieEndpoint endpoint, byte action, List<String> list) {
+        if (list.isEmpty() || endpoint.getId() == null || !endpoint.hasCapability(MagpieGreeting.CAP_TOPICS)) {
+            return;
+        }
+        int max = endpoint.getMaxMessageSize() - MagpiePacket.MAX_OVERHEAD;
+        endpoint.lock();
+        try {
+            ByteBuffer buffer = endpoint.getBuffer();
+            for (int i = 0; i < list.size(); ) {
+                buffer.clear();
+                buffer.put(MagpiePacket.PAYLOAD_OFFSET, action);
+                int n = 1;
+                for (; i < list.size() && n + 1 + list.get(i).length() <= max; i++) {
+                    n += MagpieTopics.writeTopic(buffer, MagpiePacket.PAYLOAD_OFFSET + n, list.get(i));
+                }
+                if (n == 1) {
+                    throw new MagpieException("Topic does not fit max message size " + list.get(i));
+                }
+                send(endpoint, buffer, n, TYPE_SUBSCRIPTION, MagpieOutbound.URGENT, 0L);
+            }
+        } finally {
+            endpoint.unlock();
+        }
+    }
+
+    /**
+     * Hub tells its other peers that endpoint became reachable through it or is gone.
+     */
+    private void announceRoute(byte action, String id) {
+        if (options.isRelay() && !LOOPBACK.equals(id)) {
+            List<String> list = List.of(id);
+            endpoints.forEach(endpoint -> {
+                if (!id.equals(endpoint.getId()) && endpoints.isBound(endpoint.getSlot())) {
+                    sendRoutes(endpoint, action, list);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return distinct ids of connected endpoints except specified one.
+     */
+    private List<String> reachableIds(String except) {
+        List<String> list = new ArrayList<>();
+        endpoints.forEach(endpoint -> {
+            String id = endpoint.getId();
+            if (id != null && !id.equals(except) && !LOOPBACK.equals(id)
+                    && endpoints.isBound(endpoint.getSlot()) && !list.contains(id)) {
+                list.add(id);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Sends route control messages split to fit max message size, if peer supports relaying.
+     */
+    private void sendRoutes(MagpieEndpoint endpoint, byte action, List<String> list) {
+        if (list.isEmpty() || endpoint.getId() == null || !endpoint.hasCapability(MagpieGreeting.CAP_RELAY)) {
+            return;
+        }
+        int max = endpoint.getMaxMessageSize() - MagpiePacket.MAX_OVERHEAD;
+        endpoint.lock();
+        try {
+            ByteBuffer buffer = endpoint.getBuffer();
+            for (int i = 0; i < list.size(); ) {
+                buffer.clear();
+                buffer.put(MagpiePacket.PAYLOAD_OFFSET, action);
+                int n = 1;
+                for (; i < list.size() && n + MagpieRoutes.ID_LENGTH <= max; i++) {
+                    String id = list.get(i);
+                    n += MagpieRoutes.writeId(buffer, MagpiePacket.PAYLOAD_OFFSET + n, MagpieGreeting.idHigh(id), MagpieGreeting.idLow(id));
+                }
+                send(endpoint, buffer, n, TYPE_ROUTE, MagpieOutbound.URGENT, 0L);
+            }
+        } finally {
+            endpoint.unlock();
+        }
+    }
+
+    private void processHeartbeat(MagpieEndpoint endpoint, ByteBuffer buffer, int offset, int length) {
+        endpoint.updateLastReceived(time.monotonicMillis());
+        if (length >= 16) {
+            heartbeatIn.fromBuffer(buffer, offset);
+            if (heartbeatIn.shutdown != 0L && !endpoint.isDraining()) {
+                boolean announced = isDraining(endpoint.getId());
+                endpoint.setShutdown(heartbeatIn.shutdown);
+                LOG.info("Endpoint [{}] {} announced shutdown {}", endpoint.getId(), endpoint.getAddress(), heartbeatIn);
+                if (!announced) {
+                    notifyStatusChanged(endpoint.getId(), MagpieStatus.DRAINING);
+                }
+            }
+        }
         final var address = endpoint.getAddress();
-        if (magpieChannel.isAccepted(address)) {
+        if (endpoint.getId() != null && magpieChannel.isAccepted(address)) {
             // Echo heartbeat from acceptor to initiator
             sendHeartbeat(endpoint);
         }
@@ -254,27 +1194,231 @@ public class Magpie {
 
     private void sendGreeting(MagpieEndpoint endpoint) {
         // Greetings are being sent and processed from a single thread as part of 'poll' invocation.
-        // That synchronization protects from a sender spinning in a parallel thread on client side
+        // That lock protects from a sender spinning in a parallel thread on client side
         // where it is needed to send greeting response after registering incoming greeting id.
-        synchronized (endpoint) {
-            greeting.timestamp = clock.millis();
+        endpoint.lock();
+        try {
+            greeting.timestamp = time.millis();
             greeting.setId(endpointId);
-            send(endpoint.getAddress(), endpoint.incrementSequence(), endpoint.getBuffer(), greeting::toBuffer, TYPE_GREETING);
+            greeting.minVersion = MagpieGreeting.MIN_VERSION;
+            greeting.maxVersion = MagpieGreeting.MAX_VERSION;
+            greeting.capabilities = localCapabilities();
+            // Initiator tells stripe of connection, so both sides map keys to the same stripe
+            boolean initiated = !magpieChannel.isAccepted(endpoint.getAddress());
+            greeting.stripe = (short) (initiated ? MagpieChannel.stripeOf(endpoint.getAddress()) : 0);
+            greeting.stripes = (short) (initiated ? options.getStripes() : 1);
+            // Not using endpoint buffer, it is allocated only when greetings completed
+            sendControl(endpoint, greetingBuffer, greeting::toBuffer, TYPE_GREETING);
+        } finally {
+            endpoint.unlock();
         }
     }
 
     private void sendHeartbeat(MagpieEndpoint endpoint) {
-        synchronized (endpoint) {
-            heartbeatOut.timestamp = clock.millis();
-            send(endpoint.getAddress(), endpoint.incrementSequence(), endpoint.getBuffer(), heartbeatOut::toBuffer, TYPE_HEARTBEAT);
+        endpoint.lock();
+        try {
+            heartbeatOut.timestamp = time.millis();
+            sendControl(endpoint, endpoint.getBuffer(), heartbeatOut::toBuffer, TYPE_HEARTBEAT);
+        } finally {
+            endpoint.unlock();
         }
     }
 
-    private void send(InetSocketAddress address, long sequence, ByteBuffer buffer, MagpieDataTransformer transformer, short dataType) {
+    /**
+     * Heartbeats, greetings and other control messages go in urgent lane and are not rate limited.
+     */
+    private void sendControl(MagpieEndpoint endpoint, ByteBuffer buffer, MagpieDataTransformer transformer, short dataType) {
         buffer.clear();
-        int written = MagpiePacket.writePacket(sequence, dataType, buffer, transformer);
-        buffer.position(written).flip();
-        magpieChannel.send(address, buffer);
+        send(endpoint, buffer, transformer.write(buffer, MagpiePacket.PAYLOAD_OFFSET), dataType, MagpieOutbound.URGENT, 0L);
+    }
+
+    /**
+     * Sends user data counted by endpoint rate limiter, see {@link MagpieOptions#setRateLimit(long, long)}.
+     * Data over the limit is rejected, unless pacing is on: then it is queued and charged when it leaves the queue,
+     * see {@link #flush(MagpieEndpoint)}. Urgent data is never paced. Endpoint which announced shutdown
+     * gets no new data, see {@link #isDraining(String)}. Called under endpoint lock.
+     *
+     * @return false if endpoint is disconnected, draining or data is rejected.
+     */
+    private boolean sendData(MagpieEndpoint endpoint, ByteBuffer buffer, int payloadLength, short dataType, int lane, long key) {
+        if (endpoint.isDraining()) {
+            return false;
+        }
+        MagpieRateLimiter limiter = endpoint.getRateLimiter();
+        if (limiter == null) {
+            return send(endpoint, buffer, payloadLength, dataType, lane, key);
+        }
+        long nanos = options.getNanoClock().getAsLong();
+        if (lane == MagpieOutbound.URGENT || !options.isPacing()) {
+            if (!limiter.tryAcquire(nanos, payloadLength)) {
+                return false;
+            }
+            if (send(endpoint, buffer, payloadLength, dataType, lane, key)) {
+                return true;
+            }
+            limiter.release(payloadLength);
+            return false;
+        }
+        MagpieOutbound outbound = endpoint.getOutbound();
+        if ((outbound == null || outbound.isEmpty()) && limiter.tryAcquire(nanos, payloadLength)) {
+            if (writePacket(endpoint, buffer, payloadLength, dataType)) {
+                return true;
+            }
+            limiter.release(payloadLength);
+            return false;
+        }
+        return enqueue(endpoint, buffer, payloadLength, dataType, lane, key);
+    }
+
+    /**
+     * Sends payload already written to buffer at {@link MagpiePacket#PAYLOAD_OFFSET}: straight to socket
+     * if nothing is queued, otherwise through priority lane flushed in order. Called under endpoint lock.
+     *
+     * @return false if endpoint is disconnected.
+     */
+    private boolean send(MagpieEndpoint endpoint, ByteBuffer buffer, int payloadLength, short dataType, int lane, long key) {
+        MagpieOutbound outbound = endpoint.getOutbound();
+        if (outbound == null || outbound.isEmpty()) {
+            return writePacket(endpoint, buffer, payloadLength, dataType);
+        }
+        return enqueue(endpoint, buffer, payloadLength, dataType, lane, key);
+    }
+
+    /**
+     * Queue overflow caused by pacing is pushed back on the sender, overflow caused by slow consumer disconnects it.
+     */
+    private boolean enqueue(MagpieEndpoint endpoint, ByteBuffer buffer, int payloadLength, short dataType, int lane, long key) {
+        MagpieOutbound outbound = outbound(endpoint);
+        if (!outbound.offer(lane, key, dataType, buffer, MagpiePacket.PAYLOAD_OFFSET, payloadLength)) {
+            flush(endpoint);
+            if (!outbound.offer(lane, key, dataType, buffer, MagpiePacket.PAYLOAD_OFFSET, payloadLength)) {
+                return !outbound.isThrottled() && overflow(endpoint, outbound);
+            }
+        }
+        flush(endpoint);
+        return true;
+    }
+
+    private MagpieOutbound outbound(MagpieEndpoint endpoint) {
+        MagpieOutbound outbound = endpoint.getOutbound();
+        if (outbound == null) {
+            outbound = new MagpieOutbound(options.getOutboundLaneSize(), options.getConflationKeys(), endpoint.getMaxMessageSize());
+            endpoint.setOutbound(outbound);
+        }
+        return outbound;
+    }
+
+    private boolean overflow(MagpieEndpoint endpoint, MagpieOutbound outbound) {
+        LOG.error("Outgoing queue is full ({} bytes), disconnecting [{}] {}",
+                outbound.getQueuedBytes(), endpoint.getId(), endpoint.getAddress());
+        magpieChannel.closeChannel(endpoint.getAddress());
+        return false;
+    }
+
+    /**
+     * Writes queued frames while socket accepts them, completing partially written packet first.
+     * With pacing, frames stop at rate limit and the rest is released by 'poll'. Called under endpoint lock.
+     */
+    private void flush(MagpieEndpoint endpoint) {
+        MagpieOutbound outbound = endpoint.getOutbound();
+        ByteBuffer inFlight = outbound.getInFlight();
+        if (inFlight.hasRemaining()) {
+            if (magpieChannel.write(endpoint.getAddress(), inFlight) < 0) {
+                return;
+            }
+            if (inFlight.hasRemaining()) {
+                magpieChannel.requestFlush(endpoint.getAddress());
+                return;
+            }
+        }
+        MagpieRateLimiter limiter = options.isPacing() ? endpoint.getRateLimiter() : null;
+        long nanos = limiter != null ? options.getNanoClock().getAsLong() : 0L;
+        ByteBuffer buffer = outbound.getPacket();
+        while (!inFlight.hasRemaining()) {
+            int n = outbound.poll(buffer.clear(), MagpiePacket.PAYLOAD_OFFSET, limiter, nanos);
+            if (n < 0 || !writePacket(endpoint, buffer, n, outbound.getType())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Capture failure stops capturing rather than failing 'poll' or 'send'.
+     */
+    private void record(byte direction, String id, int type, long sequence, ByteBuffer buffer, int offset, int length) {
+        MagpieCapture capture = this.capture;
+        if (capture != null) {
+            try {
+                capture.record(direction, id, type, sequence, buffer, offset, length);
+            } catch (MagpieException e) {
+                LOG.error("Capture stopped", e);
+                this.capture = null;
+                capture.closeInBackground(); // Not blocking 'poll' or sending thread
+            }
+        }
+    }
+
+    /**
+     * Completes packet header, sequence is assigned here so it follows the order packets leave.
+     * Remainder not accepted by socket is kept in endpoint outgoing queue.
+     *
+     * @return false if endpoint is disconnected.
+     */
+    private boolean writePacket(MagpieEndpoint endpoint, ByteBuffer buffer, int payloadLength, short dataType) {
+        long sequence = endpoint.incrementSequence();
+        if (capture != null) {
+            // Recorded before compression could change payload in place
+            record(MagpieCapture.OUTBOUND, endpoint.getId(), dataType, sequence, buffer, MagpiePacket.PAYLOAD_OFFSET, payloadLength);
+        }
+        MagpieCompressor compressor = endpoint.getCompressor();
+        CRC32C checksum = endpoint.getChecksumOut();
+        if (endpoint.isCompact()) {
+            MagpiePacket.writeCompactPacket(dataType, buffer, payloadLength, compressor, checksum);
+        } else {
+            MagpiePacket.writePacket(endpoint.getVersion(), sequence, dataType, buffer, payloadLength, compressor, checksum);
+        }
+        if (magpieChannel.write(endpoint.getAddress(), buffer) < 0) {
+            return false;
+        }
+        if (buffer.hasRemaining()) {
+            outbound(endpoint).setInFlight(buffer);
+            magpieChannel.requestFlush(endpoint.getAddress());
+        }
+        return true;
+    }
+
+    /**
+     * @return limiter configured for endpoint id or null if unlimited, shared by striped connections of the endpoint.
+     */
+    private MagpieRateLimiter rateLimiter(String endpointId) {
+        return rateLimiters.computeIfAbsent(endpointId, id -> {
+            long messages = options.getRateLimitMessages(id);
+            long bytes = options.getRateLimitBytes(id);
+            if (messages <= 0L && bytes <= 0L) {
+                return null;
+            }
+            return new MagpieRateLimiter(messages, bytes, options.getRateLimitBurst() * 1_000_000L, options.getNanoClock().getAsLong());
+        });
+    }
+
+    /**
+     * @return capability bits enabled by options, see {@link MagpieGreeting}.
+     */
+    private int localCapabilities() {
+        int capabilities = 0;
+        if (options.isCompactHeader()) {
+            capabilities |= MagpieGreeting.CAP_COMPACT_HEADER;
+        }
+        if (options.isCompression()) {
+            capabilities |= MagpieGreeting.CAP_COMPRESSION;
+        }
+        if (options.isChecksum()) {
+            capabilities |= MagpieGreeting.CAP_CHECKSUM;
+        }
+        // Topic, route and relay control messages are understood by any peer offering these bits
+        capabilities |= MagpieGreeting.CAP_TOPICS;
+        capabilities |= MagpieGreeting.CAP_RELAY;
+        return capabilities;
     }
 
     private void notifyStatusChanged(String endpointId, MagpieStatus status) {
@@ -0,0 +1,95 @@
+package com.threadcat.magpie;
+
+import com.threadcat.magpie.internal.MagpieEndpoint;
+import com.threadcat.magpie.internal.MagpieException;
+import com.threadcat.magpie.internal.MagpiePacket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Region of endpoint sending buffer claimed by {@link Magpie#tryClaim(String, int, MagpieClaim)}.
+ * Payload is written in place from {@link #getOffset()} up to {@link #getLength()} bytes,
+ * e.g. through {@link com.threadcat.magpie.codec.MagpieFlyweight#wrap(ByteBuffer, int)},
+ * then packet header is completed and sent by {@link #commit()} or region is released by {@link #abort()}.
+ * <p>
+ * > if (magpie.tryClaim("order-gateway", 16, claim)) {
+ * >     claim.getBuffer().putLong(claim.getOffset(), price);
+ * >     claim.getBuffer().putLong(claim.getOffset() + 8, quantity);
+ * >     claim.commit();
+ * > }
+ * <p>
+ * Instance is reusable and owned by a single thread, endpoint stays locked for other senders
+ * until the claim is committed or aborted, so the gap should be short.
+ *
+ * @author threadcat
+ */
+public class MagpieClaim {
+    private Magpie magpie;
+    private MagpieEndpoint endpoint;
+    private ByteBuffer buffer;
+    private int length;
+    private short dataType;
+
+    void claim(Magpie magpie, MagpieEndpoint endpoint, int length, short dataType) {
+        this.magpie = magpie;
+        this.endpoint = endpoint;
+        this.buffer = endpoint.getBuffer();
+        this.length = length;
+        this.dataType = dataType;
+    }
+
+    /**
+     * @return buffer to write payload to, valid until commit or abort.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return MagpiePacket.PAYLOAD_OFFSET;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isActive() {
+        return endpoint != null;
+    }
+
+    /**
+     * Assigns sequence, completes header (compression and checksum if agreed) and sends the packet.
+     *
+     * @return false if endpoint is disconnected or rate limit is reached.
+     */
+    public boolean commit() {
+        checkActive();
+        try {
+            return magpie.commit(endpoint, length, dataType);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Releases claimed region, nothing is sent and no sequence is consumed.
+     */
+    public void abort() {
+        checkActive();
+        release();
+    }
+
+    private void checkActive() {
+        if (endpoint == null) {
+            throw new MagpieException("Nothing claimed");
+        }
+    }
+
+    private void release() {
+        MagpieEndpoint endpoint = this.endpoint;
+        this.endpoint = null;
+        this.magpie = null;
+        this.buffer = null;
+        endpoint.unlock();
+    }
+}
@@ -0,0 +1,58 @@
+package com.threadcat.magpie;
+
+import com.threadcat.magpie.internal.MagpieException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Data handler dispatching messages to handlers registered per message type through array index.
+ * Types with no handler, including negative ones, go to fallback handler.
+ * <p>
+ * > dispatcher = new MagpieDispatcher()
+ * >                     .register(ORDER, orderHandler)
+ * >                     .register(CANCEL, cancelHandler);
+ * > magpie.poll(dispatcher);
+ *
+ * @author threadcat
+ */
+public class MagpieDispatcher implements MagpieDataHandler {
+    public static final int MAX_TYPE = Short.MAX_VALUE;
+    private volatile MagpieDataHandler[] handlers = new MagpieDataHandler[0];
+    private volatile MagpieDataHandler fallback = (source, sequence, type, buffer, offset, length) -> {
+    };
+
+    /**
+     * Safe to call while dispatching, handlers array is copied on write.
+     */
+    public synchronized MagpieDispatcher register(int type, MagpieDataHandler handler) {
+        if (type < 0 || type > MAX_TYPE) {
+            throw new MagpieException("Type out of range 0.." + MAX_TYPE + ": " + type);
+        }
+        MagpieDataHandler[] copy = Arrays.copyOf(handlers, Math.max(handlers.length, type + 1));
+        copy[type] = handler;
+        handlers = copy;
+        return this;
+    }
+
+    public synchronized MagpieDispatcher unregister(int type) {
+        if (type >= 0 && type < handlers.length) {
+            MagpieDataHandler[] copy = handlers.clone();
+            copy[type] = null;
+            handlers = copy;
+        }
+        return this;
+    }
+
+    public MagpieDispatcher fallback(MagpieDataHandler handler) {
+        this.fallback = handler;
+        return this;
+    }
+
+    @Override
+    public void process(String source, long sequence, int type, ByteBuffer buffer, int offset, int length) {
+        MagpieDataHandler[] handlers = this.handlers;
+        MagpieDataHandler handler = type >= 0 && type < handlers.length ? handlers[type] : null;
+        (handler != null ? handler : fallback).process(source, sequence, type, buffer, offset, length);
+    }
+}
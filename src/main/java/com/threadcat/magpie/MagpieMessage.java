@@ -0,0 +1,58 @@
+package com.threadcat.magpie;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Received message flyweight published by {@link MagpiePublisher}.
+ * Instance is reused and valid only inside {@link java.util.concurrent.Flow.Subscriber#onNext(Object)},
+ * subscriber has to copy payload if it is needed later.
+ *
+ * @author threadcat
+ */
+public class MagpieMessage {
+    private String source;
+    private long sequence;
+    private int type;
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    MagpieMessage wrap(String source, long sequence, int type, ByteBuffer buffer, int offset, int length) {
+        this.source = source;
+        this.sequence = sequence;
+        this.type = type;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("source=%s sequence=%s type=%s length=%s", source, sequence, type, length);
+    }
+}
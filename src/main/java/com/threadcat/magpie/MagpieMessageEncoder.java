@@ -0,0 +1,18 @@
+package com.threadcat.magpie;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Payload encoder for items sent through {@link MagpieSubscriber}.
+ *
+ * @author threadcat
+ */
+public interface MagpieMessageEncoder<T> {
+    /**
+     * @param item   item to encode.
+     * @param buffer byte buffer to write data.
+     * @param offset starting index.
+     * @return length of written data.
+     */
+    int write(T item, ByteBuffer buffer, int offset);
+}
@@ -1,6 +1,13 @@
 package com.threadcat.magpie;
 
+import com.threadcat.magpie.channel.MagpieBusyPollChannel;
+import com.threadcat.magpie.channel.MagpieChannel;
+import com.threadcat.magpie.channel.MagpieTransport;
+
 import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
 
 /**
  * Configuration options e.g. max message size etc.
@@ -9,16 +16,79 @@ import java.time.Clock;
  */
 public class MagpieOptions {
     private int maxMessageSize = 2048; // bytes
-    private int[] reconnectIntervals = {1, 3, 10, 30}; // seconds
+    private int[] reconnectIntervals = {1, 3, 10, 30}; // seconds, first and last bound reconnect backoff
+    private int maxConnectsPerPoll = 4; // connection attempts per poll, 0 - unlimited
+    private int maxAcceptsPerPoll = 16; // connections accepted per listener per poll, 0 - unlimited
+    private long greetingTimeout = 3000L; // time given to a new connection to complete greetings, milliseconds
+    private int outboundLaneSize = 256 << 10; // bytes queued per priority lane while socket is full
+    private int conflationKeys = 1024; // distinct keys queued per endpoint by conflated sends
+    private long rateLimitMessages = 0L; // messages per second sent to each endpoint, 0 - unlimited
+    private long rateLimitBytes = 0L; // payload bytes per second sent to each endpoint, 0 - unlimited
+    private final Map<String, long[]> rateLimits = new ConcurrentHashMap<>(); // per endpoint id messages and bytes per second
+    private long rateLimitBurst = 10L; // traffic at full rate allowed at once, milliseconds
+    private boolean pacing = false; // queue messages over the rate limit instead of rejecting them
+    private int stripes = 1; // connections initiated to each endpoint address
+    private boolean relay = false; // forward frames between connected endpoints not connected to each other
+    private int relayIds = 1024; // distinct endpoint ids known from relay routes and frames
+    private int circuitBreakerThreshold = 10; // consecutive connect failures opening circuit, 0 - never
+    private long connectJitter = 1000L; // random delay of connections added by reconfiguration, milliseconds
+    private long drainPeriod = 1000L; // delay before closing connection removed by reconfiguration, milliseconds
     private long heartbeatInterval = 5000L; // milliseconds
     private long lazyWakeup = 100L; // no-data wakeup, milliseconds
     private boolean delegateAll = false; // whether to notify client data handler on greeting and heartbeats
-    private Clock clock = Clock.systemUTC();
+    private int pollByteBudget = 0; // bytes read from one endpoint per poll, 0 - up to buffer capacity
+    private int pollMessageBudget = 64; // messages processed from one endpoint per poll, 0 - unlimited
+    private boolean compactHeader = false; // whether to offer compact packet header to peers
+    private boolean compression = false; // whether to offer payload compression to peers
+    private int compressionThreshold = 128; // payloads shorter than that are sent uncompressed, bytes
+    private boolean checksum = false; // whether to offer CRC32C packet checksum to peers
+    private MagpieTransport.Factory transport = MagpieChannel::new; // event loop implementation
+    private int sendBufferSize = 0; // SO_SNDBUF, bytes, 0 - OS default
+    private int receiveBufferSize = 0; // SO_RCVBUF, bytes, 0 - OS default
+    private final Map<String, int[]> socketBuffers = new ConcurrentHashMap<>(); // per endpoint id SO_SNDBUF and SO_RCVBUF
+    private int acceptBacklog = 0; // pending connections queue length, 0 - JDK default
+    private String pollCpuMask = null; // CPU affinity of 'poll' thread e.g. "0x4", null - not pinned
+    private String captureDirectory = null; // where inbound and outbound frames are recorded, null - no capture
+    private int captureFileSize = 64 << 20; // bytes
+    private int captureFileCount = 16; // rolling capture files kept
+    private Clock clock = Clock.systemUTC(); // wall clock for timestamps sent to peers
+    private LongSupplier nanoClock = System::nanoTime; // monotonic time source for timeouts, nanoseconds
 
     public MagpieOptions() {
         maxMessageSize = Integer.getInteger("MAGPIE_MAX_MESSAGE_SIZE", maxMessageSize);
         heartbeatInterval = Long.getLong("MAGPIE_HEARTBEAT_INTERVAL", heartbeatInterval);
         lazyWakeup = Long.getLong("MAGPIE_LAZY_WAKEUP", lazyWakeup);
+        connectJitter = Long.getLong("MAGPIE_CONNECT_JITTER", connectJitter);
+        maxConnectsPerPoll = Integer.getInteger("MAGPIE_MAX_CONNECTS_PER_POLL", maxConnectsPerPoll);
+        maxAcceptsPerPoll = Integer.getInteger("MAGPIE_MAX_ACCEPTS_PER_POLL", maxAcceptsPerPoll);
+        greetingTimeout = Long.getLong("MAGPIE_GREETING_TIMEOUT", greetingTimeout);
+        outboundLaneSize = Integer.getInteger("MAGPIE_OUTBOUND_LANE_SIZE", outboundLaneSize);
+        conflationKeys = Integer.getInteger("MAGPIE_CONFLATION_KEYS", conflationKeys);
+        rateLimitMessages = Long.getLong("MAGPIE_RATE_LIMIT_MESSAGES", rateLimitMessages);
+        rateLimitBytes = Long.getLong("MAGPIE_RATE_LIMIT_BYTES", rateLimitBytes);
+        rateLimitBurst = Long.getLong("MAGPIE_RATE_LIMIT_BURST", rateLimitBurst);
+        pacing = Boolean.getBoolean("MAGPIE_PACING");
+        stripes = Integer.getInteger("MAGPIE_STRIPES", stripes);
+        relay = Boolean.getBoolean("MAGPIE_RELAY");
+        relayIds = Integer.getInteger("MAGPIE_RELAY_IDS", relayIds);
+        circuitBreakerThreshold = Integer.getInteger("MAGPIE_CIRCUIT_BREAKER_THRESHOLD", circuitBreakerThreshold);
+        drainPeriod = Long.getLong("MAGPIE_DRAIN_PERIOD", drainPeriod);
+        pollByteBudget = Integer.getInteger("MAGPIE_POLL_BYTE_BUDGET", pollByteBudget);
+        pollMessageBudget = Integer.getInteger("MAGPIE_POLL_MESSAGE_BUDGET", pollMessageBudget);
+        compactHeader = Boolean.getBoolean("MAGPIE_COMPACT_HEADER");
+        compression = Boolean.getBoolean("MAGPIE_COMPRESSION");
+        compressionThreshold = Integer.getInteger("MAGPIE_COMPRESSION_THRESHOLD", compressionThreshold);
+        checksum = Boolean.getBoolean("MAGPIE_CHECKSUM");
+        sendBufferSize = Integer.getInteger("MAGPIE_SEND_BUFFER_SIZE", sendBufferSize);
+        receiveBufferSize = Integer.getInteger("MAGPIE_RECEIVE_BUFFER_SIZE", receiveBufferSize);
+        acceptBacklog = Integer.getInteger("MAGPIE_ACCEPT_BACKLOG", acceptBacklog);
+        pollCpuMask = System.getProperty("MAGPIE_POLL_CPU_MASK", pollCpuMask);
+        captureDirectory = System.getProperty("MAGPIE_CAPTURE_DIRECTORY", captureDirectory);
+        captureFileSize = Integer.getInteger("MAGPIE_CAPTURE_FILE_SIZE", captureFileSize);
+        captureFileCount = Integer.getInteger("MAGPIE_CAPTURE_FILE_COUNT", captureFileCount);
+        if ("busy-poll".equals(System.getProperty("MAGPIE_TRANSPORT"))) {
+            transport = MagpieBusyPollChannel::new;
+        }
     }
 
     public MagpieOptions(int maxMessageSize) {
@@ -37,10 +107,190 @@ public class MagpieOptions {
         return reconnectIntervals;
     }
 
+    /**
+     * @param reconnectIntervals seconds, the first value is the minimal reconnect delay and the last one is the maximal.
+     *                           Delays in between are random (decorrelated jitter), so peers do not retry in lockstep.
+     */
     public void setReconnectIntervals(int... reconnectIntervals) {
         this.reconnectIntervals = reconnectIntervals;
     }
 
+    public int getMaxConnectsPerPoll() {
+        return maxConnectsPerPoll;
+    }
+
+    public void setMaxConnectsPerPoll(int maxConnectsPerPoll) {
+        this.maxConnectsPerPoll = maxConnectsPerPoll;
+    }
+
+    public int getMaxAcceptsPerPoll() {
+        return maxAcceptsPerPoll;
+    }
+
+    /**
+     * @param maxAcceptsPerPoll connections taken from listener accept queue per poll, the rest wait for the next one.
+     */
+    public void setMaxAcceptsPerPoll(int maxAcceptsPerPoll) {
+        this.maxAcceptsPerPoll = maxAcceptsPerPoll;
+    }
+
+    public long getGreetingTimeout() {
+        return greetingTimeout;
+    }
+
+    /**
+     * @param greetingTimeout connection which has not completed greetings in time is closed.
+     */
+    public void setGreetingTimeout(long greetingTimeout) {
+        this.greetingTimeout = greetingTimeout;
+    }
+
+    public int getOutboundLaneSize() {
+        return outboundLaneSize;
+    }
+
+    /**
+     * @param outboundLaneSize bytes queued per priority lane, endpoint is disconnected when exceeded.
+     */
+    public void setOutboundLaneSize(int outboundLaneSize) {
+        this.outboundLaneSize = outboundLaneSize;
+    }
+
+    public int getConflationKeys() {
+        return conflationKeys;
+    }
+
+    /**
+     * @param conflationKeys distinct keys queued per endpoint, each taking max message size of memory
+     *                       once conflated send is used, endpoint is disconnected when exceeded.
+     */
+    public void setConflationKeys(int conflationKeys) {
+        this.conflationKeys = conflationKeys;
+    }
+
+    /**
+     * Limits data sent to each endpoint, heartbeats and control messages are not counted.
+     *
+     * @param messagesPerSecond 0 - unlimited.
+     * @param bytesPerSecond    payload bytes, 0 - unlimited.
+     */
+    public void setRateLimit(long messagesPerSecond, long bytesPerSecond) {
+        this.rateLimitMessages = messagesPerSecond;
+        this.rateLimitBytes = bytesPerSecond;
+    }
+
+    /**
+     * Overrides rate limit for specified endpoint, accepted or connected, applied once its id is known from greeting.
+     */
+    public void setRateLimit(String endpointId, long messagesPerSecond, long bytesPerSecond) {
+        rateLimits.put(endpointId, new long[]{messagesPerSecond, bytesPerSecond});
+    }
+
+    public long getRateLimitMessages(String endpointId) {
+        long[] limits = rateLimits.get(endpointId);
+        return limits != null ? limits[0] : rateLimitMessages;
+    }
+
+    public long getRateLimitBytes(String endpointId) {
+        long[] limits = rateLimits.get(endpointId);
+        return limits != null ? limits[1] : rateLimitBytes;
+    }
+
+    public long getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    /**
+     * @param rateLimitBurst milliseconds of traffic at full rate allowed at once.
+     */
+    public void setRateLimitBurst(long rateLimitBurst) {
+        this.rateLimitBurst = rateLimitBurst;
+    }
+
+    public boolean isPacing() {
+        return pacing;
+    }
+
+    /**
+     * @param pacing whether messages over the rate limit are queued and sent as budget refills,
+     *               otherwise sending them fails. Paced messages are released by 'poll'.
+     */
+    public void setPacing(boolean pacing) {
+        this.pacing = pacing;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * @param stripes parallel connections initiated to each endpoint, presented as one endpoint id.
+     *                Messages sent with a key are spread across them keeping per-key order.
+     */
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    public boolean isRelay() {
+        return relay;
+    }
+
+    /**
+     * @param relay whether this instance is a hub: connected endpoints are advertised to each other as reachable
+     *              and messages between them are forwarded, so they need no direct connection.
+     */
+    public void setRelay(boolean relay) {
+        this.relay = relay;
+    }
+
+    public int getRelayIds() {
+        return relayIds;
+    }
+
+    /**
+     * @param relayIds max distinct endpoint ids reachable through hubs or relayed from,
+     *                 routes and frames of ids over that are dropped.
+     */
+    public void setRelayIds(int relayIds) {
+        this.relayIds = relayIds;
+    }
+
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * @param circuitBreakerThreshold consecutive connect failures after which circuit opens,
+     *                                i.e. endpoint is tried once per maximal reconnect interval
+     *                                and listeners are notified with {@link MagpieStatus#CIRCUIT_OPEN}.
+     */
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    public long getConnectJitter() {
+        return connectJitter;
+    }
+
+    /**
+     * @param connectJitter upper bound of random delay before connecting endpoint added by reconfiguration,
+     *                      so a configuration pushed to many nodes does not open all connections at once.
+     */
+    public void setConnectJitter(long connectJitter) {
+        this.connectJitter = connectJitter;
+    }
+
+    public long getDrainPeriod() {
+        return drainPeriod;
+    }
+
+    /**
+     * @param drainPeriod time connection removed by reconfiguration stays open to deliver messages in flight.
+     */
+    public void setDrainPeriod(long drainPeriod) {
+        this.drainPeriod = drainPeriod;
+    }
+
     public long getHeartbeatInterval() {
         return heartbeatInterval;
     }
@@ -65,6 +315,120 @@ public class MagpieOptions {
         this.delegateAll = delegateAll;
     }
 
+    public int getPollByteBudget() {
+        return pollByteBudget;
+    }
+
+    public void setPollByteBudget(int pollByteBudget) {
+        this.pollByteBudget = pollByteBudget;
+    }
+
+    public int getPollMessageBudget() {
+        return pollMessageBudget;
+    }
+
+    public void setPollMessageBudget(int pollMessageBudget) {
+        this.pollMessageBudget = pollMessageBudget;
+    }
+
+    public boolean isCompactHeader() {
+        return compactHeader;
+    }
+
+    public void setCompactHeader(boolean compactHeader) {
+        this.compactHeader = compactHeader;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(boolean checksum) {
+        this.checksum = checksum;
+    }
+
+    public MagpieTransport.Factory getTransport() {
+        return transport;
+    }
+
+    /**
+     * @param transport event loop factory, {@link MagpieChannel} by default,
+     *                  system property MAGPIE_TRANSPORT=busy-poll selects {@link MagpieBusyPollChannel}.
+     */
+    public void setTransport(MagpieTransport.Factory transport) {
+        this.transport = transport;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Applied to listeners as well, so accepted connections inherit it before TCP window scale is negotiated.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Overrides socket buffer sizes for specified endpoint, accepted or connected, 0 - keep global size.
+     * Applied once greeting names the endpoint: receive buffer grown after connect does not widen TCP window scale
+     * negotiated with the global size, so the global size should not be much smaller.
+     */
+    public void setSocketBuffers(String endpointId, int sendBufferSize, int receiveBufferSize) {
+        socketBuffers.put(endpointId, new int[]{sendBufferSize, receiveBufferSize});
+    }
+
+    /**
+     * @return sizes {send, receive} overriding global ones for specified endpoint or null.
+     */
+    public int[] getSocketBuffers(String endpointId) {
+        return socketBuffers.get(endpointId);
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public String getPollCpuMask() {
+        return pollCpuMask;
+    }
+
+    /**
+     * @param pollCpuMask hexadecimal CPU mask 'poll' thread is pinned to on first 'poll' (Linux 'taskset').
+     */
+    public void setPollCpuMask(String pollCpuMask) {
+        this.pollCpuMask = pollCpuMask;
+    }
+
     public Clock getClock() {
         return clock;
     }
@@ -73,9 +437,52 @@ public class MagpieOptions {
         this.clock = clock;
     }
 
+    public LongSupplier getNanoClock() {
+        return nanoClock;
+    }
+
+    /**
+     * @param nanoClock monotonic time source e.g. manually advanced in tests.
+     */
+    public void setNanoClock(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    public String getCaptureDirectory() {
+        return captureDirectory;
+    }
+
+    /**
+     * @param captureDirectory enables recording of frames to memory-mapped files for {@link MagpieReplay}.
+     */
+    public void setCaptureDirectory(String captureDirectory) {
+        this.captureDirectory = captureDirectory;
+    }
+
+    public int getCaptureFileSize() {
+        return captureFileSize;
+    }
+
+    public void setCaptureFileSize(int captureFileSize) {
+        this.captureFileSize = captureFileSize;
+    }
+
+    public int getCaptureFileCount() {
+        return captureFileCount;
+    }
+
+    /**
+     * @param captureFileCount the oldest capture file is deleted when this number is exceeded.
+     */
+    public void setCaptureFileCount(int captureFileCount) {
+        this.captureFileCount = captureFileCount;
+    }
+
     @Override
     public String toString() {
-        return String.format("maxMessageSize=%s heartbeatInterval=%s lazyWakeup=%s",
-                maxMessageSize, heartbeatInterval, lazyWakeup);
+        return String.format("maxMessageSize=%s heartbeatInterval=%s lazyWakeup=%s pollByteBudget=%s pollMessageBudget=%s compactHeader=%s compression=%s checksum=%s" +
+                        " sendBufferSize=%s receiveBufferSize=%s acceptBacklog=%s pollCpuMask=%s",
+                maxMessageSize, heartbeatInterval, lazyWakeup, pollByteBudget, pollMessageBudget, compactHeader, compression, checksum,
+                sendBufferSize, receiveBufferSize, acceptBacklog, pollCpuMask);
     }
 }
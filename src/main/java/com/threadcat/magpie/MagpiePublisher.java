@@ -0,0 +1,105 @@
+package com.threadcat.magpie;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes messages received from a single endpoint honoring subscriber demand.
+ * When demand runs out {@link Magpie} stops reading from endpoint channel, so TCP flow control
+ * pushes back on the sender. Messages are delivered from 'poll' thread, see {@link MagpieMessage}.
+ * Greetings and heartbeats do not consume demand. Unicast, only one subscriber at a time.
+ *
+ * @author threadcat
+ */
+public class MagpiePublisher implements Flow.Publisher<MagpieMessage> {
+    private final Magpie magpie;
+    private final String endpointId;
+    private final AtomicReference<Subscription> subscription = new AtomicReference<>();
+
+    MagpiePublisher(Magpie magpie, String endpointId) {
+        this.magpie = magpie;
+        this.endpointId = endpointId;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super MagpieMessage> subscriber) {
+        Subscription s = new Subscription(subscriber);
+        if (subscription.compareAndSet(null, s)) {
+            subscriber.onSubscribe(s);
+        } else {
+            s.cancelled = true;
+            subscriber.onSubscribe(s);
+            subscriber.onError(new IllegalStateException("Publisher already has subscriber " + endpointId));
+        }
+    }
+
+    public String getEndpointId() {
+        return endpointId;
+    }
+
+    /**
+     * @return true if there is no subscriber or subscriber has outstanding demand.
+     */
+    boolean hasDemand() {
+        Subscription s = subscription.get();
+        return s == null || s.demand.get() > 0;
+    }
+
+    /**
+     * @return false if there is no subscriber to deliver the message.
+     */
+    boolean offer(String source, long sequence, int type, ByteBuffer buffer, int offset, int length) {
+        Subscription s = subscription.get();
+        if (s == null) {
+            return false;
+        }
+        s.demand.decrementAndGet();
+        s.subscriber.onNext(s.message.wrap(source, sequence, type, buffer, offset, length));
+        return true;
+    }
+
+    void complete() {
+        Subscription s = subscription.getAndSet(null);
+        if (s != null) {
+            s.cancelled = true;
+            s.subscriber.onComplete();
+        }
+    }
+
+    private class Subscription implements Flow.Subscription {
+        final Flow.Subscriber<? super MagpieMessage> subscriber;
+        final MagpieMessage message = new MagpieMessage();
+        final AtomicLong demand = new AtomicLong();
+        volatile boolean cancelled;
+
+        Subscription(Flow.Subscriber<? super MagpieMessage> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (cancelled) {
+                return;
+            }
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Non-positive request " + n));
+                return;
+            }
+            long previous = demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            if (previous <= 0) {
+                magpie.resumeReading(endpointId);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            if (subscription.compareAndSet(this, null)) {
+                magpie.resumeReading(endpointId);
+            }
+        }
+    }
+}
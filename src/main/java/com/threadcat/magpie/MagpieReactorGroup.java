@@ -0,0 +1,147 @@
+package com.threadcat.magpie;
+
+import com.threadcat.magpie.internal.MagpieException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Group of {@link Magpie} instances sharing endpoint id and listening port, each one polled by its own thread.
+ * Listeners are bound with SO_REUSEPORT, so the kernel spreads incoming connections across reactors
+ * and accepting and reading is not funneled through a single thread.
+ * Connection stays with the reactor which accepted or initiated it, 'send' looks up that reactor by endpoint id.
+ * <p>
+ * > group = new MagpieReactorGroup("hub", port, 4)
+ * >                     .addStatusListener(listener)
+ * >                     .open();
+ * > group.start(dataHandler);
+ * <p>
+ * Data handler and status listeners are invoked from all reactor threads concurrently.
+ * Reactor options might differ e.g. by {@link MagpieOptions#getPollCpuMask()} to pin every thread to its core.
+ *
+ * @author threadcat
+ */
+public class MagpieReactorGroup {
+    private static final Logger LOG = LoggerFactory.getLogger(MagpieReactorGroup.class);
+    private final Magpie[] reactors;
+    private final Thread[] threads;
+    private volatile boolean running;
+    private int nextEndpoint;
+
+    public MagpieReactorGroup(String endpointId, int port, int reactors) {
+        this(endpointId, port, newOptions(reactors));
+    }
+
+    /**
+     * @param options one per reactor.
+     */
+    public MagpieReactorGroup(String endpointId, int port, MagpieOptions... options) {
+        if (options.length == 0) {
+            throw new MagpieException("At least one reactor expected");
+        }
+        this.reactors = new Magpie[options.length];
+        this.threads = new Thread[options.length];
+        for (int i = 0; i < options.length; i++) {
+            reactors[i] = new Magpie(endpointId, port, options[i]);
+        }
+    }
+
+    /**
+     * Outgoing connections are assigned to reactors in turn.
+     */
+    public MagpieReactorGroup addEndpoint(InetSocketAddress address) {
+        reactors[nextEndpoint++ % reactors.length].addEndpoint(address);
+        return this;
+    }
+
+    public MagpieReactorGroup addStatusListener(MagpieStatusListener listener) {
+        for (Magpie reactor : reactors) {
+            reactor.addStatusListener(listener);
+        }
+        return this;
+    }
+
+    public MagpieReactorGroup open() {
+        for (Magpie reactor : reactors) {
+            reactor.open();
+        }
+        return this;
+    }
+
+    /**
+     * Starts poll thread per reactor.
+     */
+    public void start(MagpieDataHandler dataHandler) {
+        running = true;
+        for (int i = 0; i < reactors.length; i++) {
+            Magpie reactor = reactors[i];
+            threads[i] = new Thread(() -> {
+                while (running && reactor.isOpen()) {
+                    reactor.poll(dataHandler);
+                }
+            }, "magpie-reactor-" + i);
+            threads[i].start();
+        }
+    }
+
+    public boolean send(String endpointId, MagpieDataTransformer transformer) {
+        return send(endpointId, transformer, Magpie.TYPE_DATA);
+    }
+
+    /**
+     * @return true if endpoint is connected to one of reactors and data were sent.
+     */
+    public boolean send(String endpointId, MagpieDataTransformer transformer, short dataType) {
+        Magpie reactor = reactorOf(endpointId);
+        return reactor != null && reactor.send(endpointId, transformer, dataType);
+    }
+
+    /**
+     * @return reactor holding connection with specified endpoint or null.
+     */
+    public Magpie reactorOf(String endpointId) {
+        for (Magpie reactor : reactors) {
+            if (reactor.slotOf(endpointId) >= 0) {
+                return reactor;
+            }
+        }
+        return null;
+    }
+
+    public Magpie getReactor(int index) {
+        return reactors[index];
+    }
+
+    public int size() {
+        return reactors.length;
+    }
+
+    /**
+     * Stops poll threads and closes all reactors.
+     */
+    public void close() {
+        running = false;
+        for (Thread thread : threads) {
+            if (thread != null) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOG.error("Interrupted waiting for {}", thread.getName());
+                }
+            }
+        }
+        for (Magpie reactor : reactors) {
+            reactor.close();
+        }
+    }
+
+    private static MagpieOptions[] newOptions(int reactors) {
+        MagpieOptions[] options = new MagpieOptions[reactors];
+        for (int i = 0; i < reactors; i++) {
+            options[i] = new MagpieOptions();
+        }
+        return options;
+    }
+}
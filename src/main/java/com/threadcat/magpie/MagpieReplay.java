@@ -0,0 +1,159 @@
+package com.threadcat.magpie;
+
+import com.threadcat.magpie.internal.MagpieCapture;
+import com.threadcat.magpie.internal.MagpieException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Feeds frames recorded by {@link MagpieOptions#getCaptureDirectory()} back into a data handler,
+ * either as fast as possible or at the original pace, e.g. to reproduce production latency issues
+ * or as realistic benchmark input. Only inbound frames of user data types (0 and above) are replayed,
+ * relayed frames are recorded unwrapped under their source id, control frames are skipped.
+ * <p>
+ * > java com.threadcat.magpie.MagpieReplay capture-dir [paced]
+ * <p>
+ * prints number of inbound and outbound frames per endpoint.
+ *
+ * @author threadcat
+ */
+public class MagpieReplay {
+    private final List<Path> files;
+    private final List<String> ids = new ArrayList<>();
+    private long inbound;
+    private long outbound;
+
+    public MagpieReplay(Path directory) {
+        try (Stream<Path> list = Files.list(directory)) {
+            this.files = list.filter(path -> MagpieCapture.fileIndex(path) >= 0)
+                    .sorted(Comparator.comparingInt(MagpieCapture::fileIndex))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new MagpieException("Failed listing capture directory " + directory, e);
+        }
+    }
+
+    /**
+     * @param paced whether to keep original intervals between frames, busy-spinning in between.
+     * @return number of frames handed over to data handler.
+     */
+    public long replay(MagpieDataHandler dataHandler, boolean paced) {
+        long replayed = 0L;
+        inbound = 0L;
+        outbound = 0L;
+        long firstTime = 0L;
+        long start = 0L;
+        for (Path file : files) {
+            ByteBuffer buffer = map(file);
+            for (int position = MagpieCapture.FILE_HEADER; position + MagpieCapture.RECORD_HEADER <= buffer.capacity(); ) {
+                int length = buffer.getInt(position + MagpieCapture.IDX_LENGTH);
+                if (length == 0) {
+                    break;
+                }
+                int type = buffer.getInt(position + MagpieCapture.IDX_TYPE);
+                long time = buffer.getLong(position + MagpieCapture.IDX_TIME);
+                int idLength = buffer.getShort(position + MagpieCapture.IDX_ID_LENGTH);
+                String id = id(buffer, position + MagpieCapture.RECORD_HEADER, idLength);
+                if (buffer.get(position + MagpieCapture.IDX_DIRECTION) == MagpieCapture.OUTBOUND) {
+                    outbound++;
+                } else if (type >= 0) {
+                    inbound++;
+                    if (replayed++ == 0L) {
+                        firstTime = time;
+                        start = System.nanoTime();
+                    } else if (paced) {
+                        while (System.nanoTime() - start < time - firstTime) {
+                            Thread.onSpinWait();
+                        }
+                    }
+                    long sequence = buffer.getLong(position + MagpieCapture.IDX_SEQUENCE);
+                    int payloadLength = buffer.getInt(position + MagpieCapture.IDX_PAYLOAD_LENGTH);
+                    dataHandler.process(id, sequence, type, buffer, position + MagpieCapture.RECORD_HEADER + idLength, payloadLength);
+                }
+                position += (length + 7) & ~7;
+            }
+        }
+        return replayed;
+    }
+
+    public long getInbound() {
+        return inbound;
+    }
+
+    public long getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * @return cached endpoint id, so replay does not allocate a string per frame.
+     */
+    private String id(ByteBuffer buffer, int offset, int length) {
+        if (length == 0) {
+            return null;
+        }
+        for (String id : ids) {
+            if (equalsAscii(id, buffer, offset, length)) {
+                return id;
+            }
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        String id = new String(bytes, StandardCharsets.US_ASCII);
+        ids.add(id);
+        return id;
+    }
+
+    private static boolean equalsAscii(String id, ByteBuffer buffer, int offset, int length) {
+        if (id.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (id.charAt(i) != buffer.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer map(Path file) {
+        try (FileChannel channel = FileChannel.open(file)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < MagpieCapture.FILE_HEADER || buffer.getLong(0) != MagpieCapture.MAGIC) {
+                throw new MagpieException("Not a capture file " + file);
+            }
+            return buffer;
+        } catch (IOException e) {
+            throw new MagpieException("Failed mapping capture file " + file, e);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: MagpieReplay capture-dir [paced]");
+            return;
+        }
+        MagpieReplay replay = new MagpieReplay(Paths.get(args[0]));
+        Map<String, long[]> counts = new TreeMap<>();
+        long start = System.nanoTime();
+        replay.replay((source, sequence, type, buffer, offset, length) ->
+                counts.computeIfAbsent(String.valueOf(source), k -> new long[1])[0]++, args.length > 1 && "paced".equals(args[1]));
+        long elapsed = System.nanoTime() - start;
+        counts.forEach((id, count) -> System.out.printf("%s %d%n", id, count[0]));
+        System.out.printf("Replayed %d inbound frames in %.3f ms, %d outbound frames recorded%n",
+                replay.getInbound(), elapsed / 1e6, replay.getOutbound());
+    }
+}
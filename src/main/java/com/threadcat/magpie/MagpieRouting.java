@@ -0,0 +1,11 @@
+package com.threadcat.magpie;
+
+/**
+ * Instance selection of {@link MagpieService}.
+ * ROUND_ROBIN - instances take turns.
+ * LEAST_OUTSTANDING - instance with the least data queued for sending, turns break ties.
+ * STICKY - instance chosen by key through rendezvous hashing, only keys of a failed instance move elsewhere.
+ *
+ * @author threadcat
+ */
+public enum MagpieRouting {ROUND_ROBIN, LEAST_OUTSTANDING, STICKY}
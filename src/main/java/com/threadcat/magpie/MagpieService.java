@@ -0,0 +1,166 @@
+package com.threadcat.magpie;
+
+import com.threadcat.magpie.internal.MagpieException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Logical service backed by endpoints having specified greeting ids, e.g. replicas "order-gateway-1..4".
+ * Instances join when connected and leave when {@link MagpieStatus#DISCONNECTED} or {@link MagpieStatus#DRAINING},
+ * send failing on the chosen instance is retried on the next one, so traffic fails over without caller involvement.
+ * <p>
+ * > magpie.addService("order-gateway", MagpieRouting.LEAST_OUTSTANDING, "order-gateway-1", "order-gateway-2");
+ * > gateway = magpie.service("order-gateway");
+ * > gateway.send(transformer, ORDER);
+ * <p>
+ * Live instances are kept in array copied on write, so sending takes no lock.
+ *
+ * @author threadcat
+ */
+public class MagpieService implements MagpieStatusListener {
+    private static final Instance[] NONE = new Instance[0];
+    private final Magpie magpie;
+    private final String name;
+    private final MagpieRouting routing;
+    private final Set<String> endpointIds;
+    private final AtomicInteger turn = new AtomicInteger();
+    private volatile Instance[] instances = NONE;
+
+    MagpieService(Magpie magpie, String name, MagpieRouting routing, Set<String> endpointIds) {
+        this.magpie = magpie;
+        this.name = name;
+        this.routing = routing;
+        this.endpointIds = endpointIds;
+        endpointIds.forEach(this::refresh);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MagpieRouting getRouting() {
+        return routing;
+    }
+
+    /**
+     * @return ids of connected instances, not draining.
+     */
+    public List<String> getInstances() {
+        return Arrays.stream(instances).map(instance -> instance.id).collect(Collectors.toList());
+    }
+
+    /**
+     * @return false if no instance accepted the message.
+     */
+    public boolean send(MagpieDataTransformer transformer, short dataType) {
+        if (routing == MagpieRouting.STICKY) {
+            throw new MagpieException("Service " + name + " routes by key");
+        }
+        return send(0L, transformer, dataType);
+    }
+
+    /**
+     * @param key routing key of {@link MagpieRouting#STICKY} service, ignored by others.
+     * @return false if no instance accepted the message.
+     */
+    public boolean send(long key, MagpieDataTransformer transformer, short dataType) {
+        Instance[] instances = this.instances;
+        int n = instances.length;
+        if (n == 0) {
+            return false;
+        }
+        int first = select(instances, key);
+        for (int i = 0; i < n; i++) {
+            String id = instances[(first + i) % n].id;
+            // Sticky keys keep their order across striped connections too
+            if (routing == MagpieRouting.STICKY ? magpie.send(id, key, transformer, dataType) : magpie.send(id, transformer, dataType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void statusChanged(String endpointId, MagpieStatus status) {
+        if (endpointIds.contains(endpointId)) {
+            switch (status) {
+                case ACCEPTED:
+                case CONNECTED:
+                case DISCONNECTED:
+                case DRAINING:
+                    refresh(endpointId);
+                    break;
+            }
+        }
+    }
+
+    private int select(Instance[] instances, long key) {
+        int n = instances.length;
+        switch (routing) {
+            case LEAST_OUTSTANDING:
+                int start = (turn.getAndIncrement() & Integer.MAX_VALUE) % n;
+                int best = start;
+                long least = Long.MAX_VALUE;
+                for (int i = 0; i < n && least > 0L; i++) {
+                    int index = (start + i) % n;
+                    long queued = magpie.getQueuedBytes(instances[index].id);
+                    if (queued < least) {
+                        least = queued;
+                        best = index;
+                    }
+                }
+                return best;
+            case STICKY:
+                int chosen = 0;
+                long highest = Long.MIN_VALUE;
+                for (int i = 0; i < n; i++) {
+                    long weight = mix(key ^ instances[i].hash);
+                    if (weight > highest) {
+                        highest = weight;
+                        chosen = i;
+                    }
+                }
+                return chosen;
+            default:
+                return (turn.getAndIncrement() & Integer.MAX_VALUE) % n;
+        }
+    }
+
+    /**
+     * Re-reads instance state, endpoint may still be reachable through another connection.
+     */
+    private synchronized void refresh(String endpointId) {
+        boolean live = magpie.slotOf(endpointId) >= 0 && !magpie.isDraining(endpointId);
+        Instance[] copy = Arrays.stream(instances).filter(instance -> !instance.id.equals(endpointId)).toArray(Instance[]::new);
+        if (live) {
+            copy = Arrays.copyOf(copy, copy.length + 1);
+            copy[copy.length - 1] = new Instance(endpointId);
+            // Stable order keeps round-robin fair and failover neighbours predictable
+            Arrays.sort(copy, (a, b) -> a.id.compareTo(b.id));
+        }
+        instances = copy;
+    }
+
+    /**
+     * SplitMix64 finalizer, spreads key and id bits so rendezvous weights are independent per instance.
+     */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    private static class Instance {
+        final String id;
+        final long hash;
+
+        Instance(String id) {
+            this.id = id;
+            this.hash = mix(id.hashCode() * 0x9e3779b97f4a7c15L);
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package com.threadcat.magpie;
 
 /**
+ * DRAINING - endpoint announced planned shutdown or its connection was removed by reconfiguration,
+ * new traffic should be routed elsewhere.
+ * CIRCUIT_OPEN - connecting failed too many times in a row, next attempt is put off.
+ * CIRCUIT_HALF_OPEN - trial connection after circuit was open.
+ *
  * @author threadcat
  */
-public enum MagpieStatus {ACCEPTED, CONNECTED, DISCONNECTED, ERROR}
+public enum MagpieStatus {ACCEPTED, CONNECTED, DISCONNECTED, ERROR, DRAINING, CIRCUIT_OPEN, CIRCUIT_HALF_OPEN}
@@ -0,0 +1,120 @@
+package com.threadcat.magpie;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends items to a single endpoint requesting them from upstream publisher in windows.
+ * Next half of the window is requested only while endpoint outgoing queue is below threshold,
+ * otherwise the request is put off until 'poll' finds the queue drained, so a slow peer slows upstream down
+ * instead of growing the queue. Items which could not be sent (e.g. endpoint disconnected) are dropped and counted.
+ *
+ * @author threadcat
+ */
+public class MagpieSubscriber<T> implements Flow.Subscriber<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(MagpieSubscriber.class);
+    private final Magpie magpie;
+    private final String endpointId;
+    private final MagpieMessageEncoder<T> encoder;
+    private final short dataType;
+    private final int window;
+    private final long queueThreshold;
+    private final MagpieDataTransformer transformer = this::write;
+    private final AtomicLong deferred = new AtomicLong();
+    private volatile Flow.Subscription subscription;
+    private T item;
+    private int received;
+    private volatile long dropped;
+
+    MagpieSubscriber(Magpie magpie, String endpointId, MagpieMessageEncoder<T> encoder, short dataType, int window, long queueThreshold) {
+        this.magpie = magpie;
+        this.endpointId = endpointId;
+        this.encoder = encoder;
+        this.dataType = dataType;
+        this.window = Math.max(window, 1);
+        this.queueThreshold = queueThreshold;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(window);
+    }
+
+    @Override
+    public void onNext(T item) {
+        this.item = item;
+        if (!magpie.send(endpointId, transformer, dataType)) {
+            dropped++;
+        }
+        this.item = null;
+        // Requesting next half of the window in advance
+        if (++received == (window + 1) / 2) {
+            received = 0;
+            deferred.addAndGet((window + 1) / 2);
+            requestDeferred();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        magpie.removeSubscriber(this);
+        LOG.error("Upstream failed, sending to {} stopped", endpointId, throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        magpie.removeSubscriber(this);
+        LOG.info("Upstream completed, sending to {} stopped", endpointId);
+    }
+
+    /**
+     * @return number of items not sent because endpoint was not available.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return number of items not requested from upstream yet because endpoint queue is backed up.
+     */
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    public void cancel() {
+        magpie.removeSubscriber(this);
+        synchronized (this) {
+            deferred.set(0L);
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+
+    /**
+     * Requests items put off while endpoint queue was backed up, called from 'onNext' and 'poll'.
+     * Synchronized as subscription calls must not overlap.
+     */
+    void requestDeferred() {
+        if (deferred.get() > 0L) {
+            synchronized (this) {
+                if (deferred.get() > 0L && magpie.getQueuedBytes(endpointId) < queueThreshold) {
+                    subscription.request(deferred.getAndSet(0L));
+                }
+            }
+        }
+    }
+
+    private int write(ByteBuffer buffer, int offset) {
+        return encoder.write(item, buffer, offset);
+    }
+}
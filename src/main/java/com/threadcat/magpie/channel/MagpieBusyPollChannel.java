@@ -0,0 +1,216 @@
+package com.threadcat.magpie.channel;
+
+import com.threadcat.magpie.MagpieOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Transport spinning over non-blocking sockets without {@link java.nio.channels.Selector}:
+ * every 'poll' tries to accept on each listener and to read from each connection in turn.
+ * No selector lock, no selected keys set and no wakeup system call, at the cost of a busy core
+ * and a 'read' system call per connection per poll. Suits a few latency sensitive connections,
+ * not thousands of idle ones. Option {@link MagpieOptions#getLazyWakeup()} is not used.
+ *
+ * @author threadcat
+ */
+public class MagpieBusyPollChannel extends MagpieChannel {
+    private static final Logger LOG = LoggerFactory.getLogger(MagpieBusyPollChannel.class);
+    private final List<ServerSocketChannel> acceptors = new CopyOnWriteArrayList<>();
+    private volatile boolean open;
+
+    public MagpieBusyPollChannel(MagpieOptions options) {
+        super(options);
+    }
+
+    public MagpieBusyPollChannel(InetSocketAddress address, MagpieOptions options) {
+        super(address, options);
+    }
+
+    public MagpieBusyPollChannel(int port, MagpieOptions options) {
+        super(port, options);
+    }
+
+    @Override
+    public MagpieBusyPollChannel open() {
+        open = true;
+        localAddresses.forEach(this::bind);
+        connect();
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        for (ServerSocketChannel acceptor : acceptors) {
+            closeQuietly(acceptor);
+        }
+        acceptors.clear();
+        channels.forEach(connection -> closeChannel(connection.address));
+    }
+
+    @Override
+    public boolean removeAcceptor(InetSocketAddress address) {
+        boolean removed = localAddresses.remove(address);
+        if (removed) {
+            acceptors.removeIf(acceptor -> {
+                if (address.equals(localAddress(acceptor))) {
+                    closeQuietly(acceptor);
+                    return true;
+                }
+                return false;
+            });
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean poll(MagpieChannelDataHandler dataHandler) {
+        connect();
+        pollCount++;
+        boolean processed = false;
+        for (int i = 0; i < acceptors.size(); i++) {
+            accept(acceptors.get(i));
+        }
+        // Starting point rotates so no connection is always served first
+        int n = channels.capacity();
+        int start = n > 0 ? (int) (pollCount % n) : 0;
+        for (int i = 0; i < n; i++) {
+            Connection connection = channels.get((start + i) % n);
+            if (connection != null && connection.flush) {
+                connection.flush = false;
+                dataHandler.writable(connection.address);
+            }
+            if (connection != null && !connection.paused) {
+                processed |= read(connection, dataHandler);
+            }
+        }
+        if (!processed) {
+            Thread.onSpinWait();
+        }
+        return processed;
+    }
+
+    @Override
+    public void pauseReading(InetSocketAddress address) {
+        Connection connection = channels.get(address);
+        if (connection != null) {
+            connection.paused = true;
+        }
+    }
+
+    @Override
+    public void resumeReading(InetSocketAddress address) {
+        Connection connection = channels.get(address);
+        if (connection != null) {
+            connection.resumed = true;
+            connection.paused = false;
+        }
+    }
+
+    @Override
+    public void deferReading(InetSocketAddress address) {
+        Connection connection = channels.get(address);
+        if (connection != null) {
+            connection.deferred = true;
+        }
+    }
+
+    /**
+     * Socket is polled for room on every spin while flush is requested.
+     */
+    @Override
+    public void requestFlush(InetSocketAddress address) {
+        Connection connection = channels.get(address);
+        if (connection != null) {
+            connection.flush = true;
+        }
+    }
+
+    @Override
+    public boolean isReadingPaused(InetSocketAddress address) {
+        Connection connection = channels.get(address);
+        return connection != null && connection.paused;
+    }
+
+    @Override
+    void bind(InetSocketAddress inetAddress) {
+        ServerSocketChannel serverChannel = openAcceptor(inetAddress);
+        if (serverChannel != null) {
+            acceptors.add(serverChannel);
+        }
+    }
+
+    @Override
+    void register(SocketChannel channel, InetSocketAddress address) {
+        Connection connection = newConnection(address, channel);
+        connection.slot = channels.add(connection);
+    }
+
+    /**
+     * @return true if data handler was invoked.
+     */
+    private boolean read(Connection connection, MagpieChannelDataHandler dataHandler) {
+        boolean pending = connection.deferred || connection.resumed;
+        connection.deferred = false;
+        connection.resumed = false;
+        try {
+            ByteBuffer buffer = connection.buffer;
+            int limit = buffer.limit();
+            int budget = options.getPollByteBudget();
+            if (budget > 0) {
+                buffer.limit(Math.min(limit, buffer.position() + budget));
+            }
+            int total = 0;
+            int n;
+            do {
+                n = connection.channel.read(buffer);
+                total += Math.max(n, 0);
+            } while (n > 0);
+            buffer.limit(limit);
+            if (n < 0) {
+                LOG.info("Disconnected {}", connection.address);
+                closeChannel(connection.address);
+                return false;
+            }
+            if (total > 0 || (pending && buffer.position() > 0)) {
+                connection.servedPoll = pollCount;
+                dataHandler.process(connection.address, buffer);
+                checkBuffer(connection);
+                return true;
+            }
+        } catch (IOException e) {
+            LOG.error("Failed reading data, closing channel {}", connection.address, e);
+            closeChannel(connection.address);
+        }
+        return false;
+    }
+
+    private static InetSocketAddress localAddress(ServerSocketChannel channel) {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(ServerSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.threadcat.magpie.channel;
 import com.threadcat.magpie.MagpieOptions;
 import com.threadcat.magpie.MagpieStatus;
 import com.threadcat.magpie.internal.MagpieException;
+import com.threadcat.magpie.internal.MagpieSlotTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,16 +13,23 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Socket channel multiplexer. Binds listeners to local addresses and connects to specified endpoints.
@@ -30,14 +38,21 @@ import java.util.concurrent.CopyOnWriteArraySet;
  *
  * @author threadcat
  */
-public class MagpieChannel {
+public class MagpieChannel implements MagpieTransport {
     private static final Logger LOG = LoggerFactory.getLogger(MagpieChannel.class);
-    private final Set<InetSocketAddress> localAddresses = new CopyOnWriteArraySet<>();
+    private static final char STRIPE_SEPARATOR = '#';
+    final Set<InetSocketAddress> localAddresses = new CopyOnWriteArraySet<>();
     private final ConcurrentMap<InetSocketAddress, Endpoint> remoteAddresses = new ConcurrentHashMap<>();
-    private final ConcurrentMap<InetSocketAddress, SocketChannel> channels = new ConcurrentHashMap<>();
-    private final MagpieOptions options;
+    final MagpieSlotTable<Connection> channels = new MagpieSlotTable<>(connection -> connection.address);
+    private final Queue<InetSocketAddress> resumed = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> deferred = new ArrayDeque<>();
+    final MagpieOptions options;
     private final List<MagpieChannelStatusListener> statusListeners = new CopyOnWriteArrayList<>();
+    private final AtomicReference<Set<InetSocketAddress>> reconfiguration = new AtomicReference<>();
     private Selector selector;
+    long pollCount;
+    private int connectOffset;
+    private int pendingBufferSize;
 
     /**
      * Creates client-only connection (incapable to accept incoming connections).
@@ -96,6 +111,7 @@ public class MagpieChannel {
      * Binds local address to listen for incoming connections in addition to the listener assigned in constructor.
      * Extra listeners might be needed if there are multiple network interfaces and/or different ports needed.
      */
+    @Override
     public MagpieChannel addAcceptor(InetSocketAddress address) {
         localAddresses.add(address);
         if (isOpen()) {
@@ -104,6 +120,7 @@ public class MagpieChannel {
         return this;
     }
 
+    @Override
     public boolean removeAcceptor(InetSocketAddress address) {
         boolean removed = localAddresses.remove(address);
         if (removed) {
@@ -116,11 +133,45 @@ public class MagpieChannel {
      * Specified connection will be initiated on {@link MagpieChannel#open()}.
      * Logical id will be received in heartbeat message.
      */
+    @Override
     public MagpieChannel addEndpoint(InetSocketAddress address) {
-        remoteAddresses.put(address, new Endpoint(options.getReconnectIntervals()));
+        remoteAddresses.put(address, new Endpoint(targetAddress(address)));
         return this;
     }
 
+    /**
+     * Key of additional connection to the same address, e.g. for {@link MagpieOptions#getStripes()}.
+     * Unresolved 'host#stripe' address never equals the real one, so transport treats every stripe
+     * as a separate endpoint and connects it to the real address.
+     */
+    public static InetSocketAddress stripeAddress(InetSocketAddress address, int stripe) {
+        if (stripe == 0) {
+            return address;
+        }
+        return InetSocketAddress.createUnresolved(address.getHostString() + STRIPE_SEPARATOR + stripe, address.getPort());
+    }
+
+    /**
+     * @return stripe number of address made by {@link #stripeAddress(InetSocketAddress, int)}, 0 for any other.
+     */
+    public static int stripeOf(InetSocketAddress address) {
+        String host = address.getHostString();
+        int i = host.lastIndexOf(STRIPE_SEPARATOR);
+        return address.isUnresolved() && i >= 0 ? Integer.parseInt(host.substring(i + 1)) : 0;
+    }
+
+    /**
+     * @return real address to connect, resolving stripe key.
+     */
+    static InetSocketAddress targetAddress(InetSocketAddress address) {
+        if (stripeOf(address) == 0) {
+            return address;
+        }
+        String host = address.getHostString();
+        return new InetSocketAddress(host.substring(0, host.lastIndexOf(STRIPE_SEPARATOR)), address.getPort());
+    }
+
+    @Override
     public boolean removeEndpoint(InetSocketAddress address) {
         boolean removed = remoteAddresses.remove(address) != null;
         if (removed) {
@@ -129,11 +180,22 @@ public class MagpieChannel {
         return removed;
     }
 
+    @Override
+    public void reconfigure(Set<InetSocketAddress> addresses) {
+        reconfiguration.set(Set.copyOf(addresses));
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
     public MagpieChannel addStatusListener(MagpieChannelStatusListener callback) {
         statusListeners.add(callback);
         return this;
     }
 
+    @Override
     public MagpieChannel open() throws MagpieException {
         try {
             selector = Selector.open();
@@ -148,23 +210,35 @@ public class MagpieChannel {
     /**
      * Stops listener (socket acceptor) and terminates all peer connections.
      */
+    @Override
     public void close() {
         try {
-            if (selector != null) {
+            if (selector != null && selector.isOpen()) {
+                // Closing selector only deregisters channels, peers would not see connections closed
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        //
+                    }
+                }
                 selector.close();
             }
         } catch (IOException e) {
             LOG.error("Failed closing selector", e);
         }
-        channels.keySet().forEach(address -> notifyStatusChange(address, MagpieStatus.DISCONNECTED));
-        channels.clear();
+        channels.forEach(connection -> {
+            channels.remove(connection.slot);
+            notifyStatusChange(connection.address, MagpieStatus.DISCONNECTED);
+        });
     }
 
+    @Override
     public void closeChannel(InetSocketAddress address) {
-        SocketChannel channel = channels.remove(address);
-        if (channel != null) {
+        Connection connection = channels.remove(address);
+        if (connection != null) {
             try {
-                channel.close();
+                connection.channel.close();
             } catch (IOException e) {
                 //
             }
@@ -177,11 +251,13 @@ public class MagpieChannel {
      *
      * @return true if end point was connected and data were sent.
      */
+    @Override
     public boolean send(InetSocketAddress address, ByteBuffer buffer) throws MagpieException {
-        SocketChannel channel = channels.get(address);
-        if (channel == null) {
+        Connection connection = channels.get(address);
+        if (connection == null) {
             return false;
         }
+        SocketChannel channel = connection.channel;
         synchronized (channel) {
             try {
                 for (int i = 0; buffer.remaining() > 0; ) {
@@ -207,129 +283,459 @@ public class MagpieChannel {
         }
     }
 
+    @Override
+    public int write(InetSocketAddress address, ByteBuffer buffer) {
+        Connection connection = channels.get(address);
+        if (connection == null) {
+            return -1;
+        }
+        try {
+            int total = 0;
+            for (int n; buffer.hasRemaining() && (n = connection.channel.write(buffer)) > 0; ) {
+                total += n;
+            }
+            return total;
+        } catch (IOException e) {
+            LOG.error("Failed writing to channel, closing {}", address, e);
+            closeChannel(address);
+            return -1;
+        }
+    }
+
+    @Override
+    public void requestFlush(InetSocketAddress address) {
+        SelectionKey key = selectionKey(address);
+        try {
+            if (key != null && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                selector.wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // Channel closed concurrently
+        }
+    }
+
     /**
      * Reads received messages invoking data handler for each one.
      *
      * @returns false if no data received in time defined by {@link MagpieOptions#getLazyWakeup()}.
      */
+    @Override
     public boolean poll(MagpieChannelDataHandler dataHandler) {
         try {
             connect();
-            int n = selector.select(options.getLazyWakeup());
+            pollCount++;
+            // Connections deferred in previous poll are served first (round-robin carry-over)
+            boolean processed = processDeferred(dataHandler);
+            boolean pending = processed || !deferred.isEmpty() || !resumed.isEmpty();
+            int n = pending ? selector.selectNow() : selector.select(options.getLazyWakeup());
             if (n > 0) {
                 selector.selectedKeys().removeIf(key -> processSelectionKey(key, dataHandler));
-                return true;
             }
-            return false;
+            return processResumed(dataHandler) || processed || n > 0;
         } catch (IOException e) {
             throw new MagpieException("Failed selecting channel keys");
         }
     }
 
+    /**
+     * Stops reading from specified channel leaving unread data in socket buffer,
+     * so TCP flow control pushes back on the sender. Data already read stays in channel buffer.
+     */
+    @Override
+    public void pauseReading(InetSocketAddress address) {
+        SelectionKey key = selectionKey(address);
+        try {
+            if (key != null) {
+                key.interestOpsAnd(~SelectionKey.OP_READ);
+            }
+        } catch (CancelledKeyException e) {
+            // Channel closed concurrently
+        }
+    }
+
+    /**
+     * Resumes reading from specified channel. Safe to call from any thread.
+     * Data left in channel buffer on pause is handed over to data handler on next 'poll'.
+     */
+    @Override
+    public void resumeReading(InetSocketAddress address) {
+        SelectionKey key = selectionKey(address);
+        try {
+            if (key != null) {
+                key.interestOpsOr(SelectionKey.OP_READ);
+                resumed.add(address);
+                selector.wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // Channel closed concurrently
+        }
+    }
+
+    /**
+     * Defers processing of data remaining in channel buffer to the next 'poll'.
+     * Supposed to be called by data handler from 'poll' thread when it ran out of per-poll budget,
+     * so other channels are served before this one gets another turn.
+     */
+    @Override
+    public void deferReading(InetSocketAddress address) {
+        SelectionKey key = selectionKey(address);
+        if (key != null) {
+            Connection connection = (Connection) key.attachment();
+            if (!connection.deferred) {
+                connection.deferred = true;
+                deferred.add(connection);
+            }
+        }
+    }
+
+    @Override
+    public boolean isReadingPaused(InetSocketAddress address) {
+        SelectionKey key = selectionKey(address);
+        try {
+            return key != null && (key.interestOps() & SelectionKey.OP_READ) == 0;
+        } catch (CancelledKeyException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void setPendingBufferSize(int size) {
+        this.pendingBufferSize = size;
+    }
+
+    @Override
+    public void setSocketBuffers(InetSocketAddress address, int sendBufferSize, int receiveBufferSize) {
+        Connection connection = channels.get(address);
+        if (connection != null) {
+            try {
+                configureBuffers(connection.channel, sendBufferSize, receiveBufferSize);
+            } catch (IOException e) {
+                LOG.error("Failed setting socket buffers {}", address, e);
+            }
+        }
+    }
+
+    @Override
+    public void authenticate(InetSocketAddress address) {
+        Connection connection = channels.get(address);
+        if (connection != null) {
+            connection.authenticated = true;
+        }
+    }
+
+    @Override
     public boolean isOpen() {
         return selector != null && selector.isOpen();
     }
 
+    @Override
     public boolean isAccepted(InetSocketAddress address) {
-        return !remoteAddresses.containsKey(address) && channels.containsKey(address);
+        return !remoteAddresses.containsKey(address) && channels.contains(address);
     }
 
+    @Override
     public boolean isInitiated(InetSocketAddress address) {
-        return remoteAddresses.containsKey(address) && channels.containsKey(address);
+        return remoteAddresses.containsKey(address) && channels.contains(address);
     }
 
-    private MagpieChannel bind(InetSocketAddress inetAddress) {
-        String host = inetAddress.getAddress().getHostAddress();
-        int port = inetAddress.getPort();
-        if (port > 0) {
+    void bind(InetSocketAddress inetAddress) {
+        ServerSocketChannel serverChannel = openAcceptor(inetAddress);
+        if (serverChannel != null) {
             try {
-                LOG.info("Starting connection acceptor {}:{}", host, port);
-                ServerSocketChannel serverChannel = ServerSocketChannel.open();
-                serverChannel.configureBlocking(false);
-                serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
-                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
-                serverChannel.bind(inetAddress);
                 serverChannel.register(selector, SelectionKey.OP_ACCEPT);
             } catch (IOException e) {
-                throw new MagpieException(String.format("Failed initiating acceptor %s:%s", host, port), e);
+                throw new MagpieException("Failed registering acceptor " + inetAddress, e);
             }
         }
-        return this;
+    }
+
+    /**
+     * @return non-blocking listener bound to specified address or null if port is not specified.
+     */
+    ServerSocketChannel openAcceptor(InetSocketAddress inetAddress) {
+        String host = inetAddress.getAddress().getHostAddress();
+        int port = inetAddress.getPort();
+        if (port <= 0) {
+            return null;
+        }
+        try {
+            LOG.info("Starting connection acceptor {}:{}", host, port);
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+            if (options.getReceiveBufferSize() > 0) {
+                // Inherited by accepted sockets before window scale is negotiated
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, options.getReceiveBufferSize());
+            }
+            serverChannel.bind(inetAddress, options.getAcceptBacklog());
+            return serverChannel;
+        } catch (IOException e) {
+            throw new MagpieException(String.format("Failed initiating acceptor %s:%s", host, port), e);
+        }
     }
 
     private boolean processSelectionKey(SelectionKey key, MagpieChannelDataHandler dataHandler) {
-        if (key.isReadable()) {
+        if (key.isValid() && key.isWritable()) {
+            processWritableKey(key, dataHandler);
+        }
+        if (key.isValid() && key.isReadable()) {
             processReadableKey(key, dataHandler);
-        } else if (key.isAcceptable()) {
+        } else if (key.isValid() && key.isAcceptable()) {
             processAcceptableKey(key);
         }
         return true;
     }
 
     private void processAcceptableKey(SelectionKey key) {
-        InetSocketAddress address = null;
-        try {
-            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
-            address = (InetSocketAddress) channel.getRemoteAddress();
-            LOG.info("Accepted connection from {}", address);
-            configureChannel(channel);
-            channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(options.getMaxMessageSize()));
-            channels.put(address, channel);
-            notifyStatusChange(address, MagpieStatus.ACCEPTED);
-        } catch (IOException e) {
-            LOG.error("Failed accepting request {}", address, e);
-            if (address != null) {
-                closeChannel(address);
+        accept((ServerSocketChannel) key.channel());
+    }
+
+    /**
+     * Drains listener backlog up to {@link MagpieOptions#getMaxAcceptsPerPoll()} connections,
+     * so a connection storm is taken in batches without starving established connections.
+     */
+    void accept(ServerSocketChannel serverChannel) {
+        int budget = options.getMaxAcceptsPerPoll() > 0 ? options.getMaxAcceptsPerPoll() : Integer.MAX_VALUE;
+        for (; budget > 0; budget--) {
+            InetSocketAddress address = null;
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+                address = (InetSocketAddress) channel.getRemoteAddress();
+                LOG.info("Accepted connection from {}", address);
+                configureBuffers(channel);
+                configureChannel(channel);
+                register(channel, address);
+                notifyStatusChange(address, MagpieStatus.ACCEPTED);
+            } catch (IOException e) {
+                LOG.error("Failed accepting request {}", address, e);
+                if (address != null) {
+                    closeChannel(address);
+                }
             }
         }
     }
 
+    private void processWritableKey(SelectionKey key, MagpieChannelDataHandler dataHandler) {
+        try {
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+        } catch (CancelledKeyException e) {
+            return;
+        }
+        dataHandler.writable(((Connection) key.attachment()).address);
+    }
+
     private void processReadableKey(SelectionKey key, MagpieChannelDataHandler dataHandler) {
-        InetSocketAddress address = null;
+        Connection connection = (Connection) key.attachment();
+        if (connection.servedPoll == pollCount) {
+            return; // Already served from carry-over queue
+        }
+        connection.servedPoll = pollCount;
+        InetSocketAddress address = connection.address;
         try {
             SocketChannel channel = (SocketChannel) key.channel();
-            address = (InetSocketAddress) channel.getRemoteAddress();
-            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            ByteBuffer buffer = connection.buffer;
+            int limit = buffer.limit();
+            int budget = options.getPollByteBudget();
+            if (budget > 0) {
+                buffer.limit(Math.min(limit, buffer.position() + budget));
+            }
             int n;
             do {
                 n = channel.read(buffer);
             } while (n > 0);
+            buffer.limit(limit);
             if (n == 0) {
                 dataHandler.process(address, buffer);
+                checkBuffer(connection);
             } else {
                 LOG.info("Disconnected {}", address);
                 closeChannel(address);
             }
         } catch (IOException e) {
             LOG.error("Failed reading data, closing channel {}", address, e);
-            if (address != null) {
-                closeChannel(address);
+            closeChannel(address);
+        }
+    }
+
+    private boolean processDeferred(MagpieChannelDataHandler dataHandler) {
+        boolean processed = false;
+        for (int i = deferred.size(); i > 0; i--) {
+            Connection connection = deferred.poll();
+            connection.deferred = false;
+            if (channels.get(connection.slot) == connection && connection.buffer.position() > 0) {
+                connection.servedPoll = pollCount;
+                dataHandler.process(connection.address, connection.buffer);
+                checkBuffer(connection);
+                processed = true;
             }
         }
+        return processed;
     }
 
-    private void connect() {
-        long currentMillis = options.getClock().millis();
-        remoteAddresses.forEach((address, endpoint) -> {
-            if (!channels.containsKey(address) && endpoint.canConnect(currentMillis)) {
-                try {
-                    LOG.info("Connecting {}", address);
-                    SocketChannel channel = SocketChannel.open(address);
-                    configureChannel(channel);
-                    channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(options.getMaxMessageSize()));
-                    channels.put(address, channel);
-                    endpoint.reset();
-                    notifyStatusChange(address, MagpieStatus.CONNECTED);
-                } catch (IOException e) {
-                    int pause = endpoint.updateNext(currentMillis);
-                    LOG.info("Failed connecting {}, next try in {} seconds", address, pause);
+    private boolean processResumed(MagpieChannelDataHandler dataHandler) {
+        boolean processed = false;
+        for (InetSocketAddress address; (address = resumed.poll()) != null; ) {
+            SelectionKey key = selectionKey(address);
+            if (key != null) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.buffer.position() > 0) {
+                    dataHandler.process(address, connection.buffer);
+                    checkBuffer(connection);
+                    processed = true;
+                }
+            }
+        }
+        return processed;
+    }
+
+    /**
+     * @return valid selection key of connected channel or null.
+     */
+    private SelectionKey selectionKey(InetSocketAddress address) {
+        Connection connection = channels.get(address);
+        if (connection == null || selector == null) {
+            return null;
+        }
+        SelectionKey key = connection.channel.keyFor(selector);
+        return key != null && key.isValid() ? key : null;
+    }
+
+    void connect() {
+        // Monotonic, so wall clock adjustments do not shift reconnect and drain deadlines
+        long currentMillis = options.getNanoClock().getAsLong() / 1_000_000L;
+        Set<InetSocketAddress> desired = reconfiguration.getAndSet(null);
+        if (desired != null) {
+            reconfigure(desired, currentMillis);
+        }
+        int budget = options.getMaxConnectsPerPoll() > 0 ? options.getMaxConnectsPerPoll() : Integer.MAX_VALUE;
+        // Starting after the last attempted endpoint, so endpoints over the budget get their turn next 'poll'
+        int start = connectOffset;
+        int index = 0;
+        for (int pass = 0; pass < 2; pass++, index = 0) {
+            for (Map.Entry<InetSocketAddress, Endpoint> entry : remoteAddresses.entrySet()) {
+                if ((index++ >= start) != (pass == 0)) {
+                    continue;
+                }
+                InetSocketAddress address = entry.getKey();
+                Endpoint endpoint = entry.getValue();
+                if (endpoint.isDrained(currentMillis)) {
+                    LOG.info("Closing removed endpoint {}", address);
+                    remoteAddresses.remove(address);
                     closeChannel(address);
+                } else if (endpoint.connected && !channels.contains(address)) {
+                    endpoint.lost(currentMillis, options.getReconnectIntervals()[0] * 1000L);
+                } else if (budget > 0 && !endpoint.isDraining() && !channels.contains(address) && endpoint.canConnect(currentMillis)) {
+                    budget--;
+                    connectOffset = index;
+                    connect(address, endpoint, currentMillis);
                 }
             }
-        });
+        }
+    }
+
+    private void connect(InetSocketAddress address, Endpoint endpoint, long currentMillis) {
+        if (endpoint.open) {
+            LOG.info("Circuit half-open, trying {}", address);
+            notifyStatusChange(address, MagpieStatus.CIRCUIT_HALF_OPEN);
+        }
+        SocketChannel channel = null;
+        try {
+            LOG.info("Connecting {}", address);
+            channel = SocketChannel.open();
+            // Buffer sizes are set before connecting, so receive window scale matches them
+            configureBuffers(channel);
+            channel.connect(endpoint.target);
+            configureChannel(channel);
+            register(channel, address);
+            endpoint.reset();
+            notifyStatusChange(address, MagpieStatus.CONNECTED);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            closeChannel(address);
+            int[] intervals = options.getReconnectIntervals();
+            long base = intervals[0] * 1000L;
+            long cap = intervals[intervals.length - 1] * 1000L;
+            int threshold = options.getCircuitBreakerThreshold();
+            if (threshold > 0 && endpoint.failures + 1 >= threshold) {
+                endpoint.open(currentMillis, cap);
+                LOG.info("Failed connecting {} {} times, circuit open for {} millis", address, endpoint.failures, cap);
+                notifyStatusChange(address, MagpieStatus.CIRCUIT_OPEN);
+            } else {
+                long pause = endpoint.updateNext(currentMillis, base, cap);
+                LOG.info("Failed connecting {}, next try in {} millis", address, pause);
+            }
+        }
+    }
+
+    private void reconfigure(Set<InetSocketAddress> desired, long currentMillis) {
+        int added = 0;
+        int removed = 0;
+        for (InetSocketAddress address : desired) {
+            Endpoint endpoint = remoteAddresses.get(address);
+            if (endpoint == null) {
+                endpoint = new Endpoint(targetAddress(address));
+                long jitter = options.getConnectJitter();
+                endpoint.nextReconnect = currentMillis + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter) : -1L);
+                remoteAddresses.put(address, endpoint);
+                added++;
+            } else if (endpoint.isDraining()) {
+                // Added back before closed, draining connection is no longer routed to so it is replaced
+                endpoint.drainDeadline = 0L;
+                closeChannel(address);
+            }
+        }
+        for (Map.Entry<InetSocketAddress, Endpoint> entry : remoteAddresses.entrySet()) {
+            Endpoint endpoint = entry.getValue();
+            if (!desired.contains(entry.getKey()) && !endpoint.isDraining()) {
+                if (channels.contains(entry.getKey())) {
+                    endpoint.drainDeadline = currentMillis + Math.max(options.getDrainPeriod(), 1L);
+                    notifyStatusChange(entry.getKey(), MagpieStatus.DRAINING);
+                } else {
+                    remoteAddresses.remove(entry.getKey());
+                }
+                removed++;
+            }
+        }
+        LOG.info("Reconfigured endpoints: {} added, {} removed, {} total", added, removed, desired.size());
+    }
+
+    /**
+     * Grows read buffer of authenticated connection to full size keeping unprocessed data,
+     * closes unauthenticated one if its buffer is full and data handler could not make progress.
+     */
+    void checkBuffer(Connection connection) {
+        ByteBuffer buffer = connection.buffer;
+        if (buffer.capacity() >= options.getMaxMessageSize()) {
+            return;
+        }
+        if (connection.authenticated) {
+            connection.buffer = ByteBuffer.allocateDirect(options.getMaxMessageSize()).put(buffer.flip());
+        } else if (!buffer.hasRemaining()) {
+            LOG.error("Greeting does not fit {} bytes, closing {}", buffer.capacity(), connection.address);
+            closeChannel(connection.address);
+        }
+    }
+
+    void register(SocketChannel channel, InetSocketAddress address) throws IOException {
+        Connection connection = newConnection(address, channel);
+        channel.register(selector, SelectionKey.OP_READ, connection);
+        connection.slot = channels.add(connection);
+    }
+
+    /**
+     * @return connection with small read buffer if pending buffer size is set.
+     */
+    Connection newConnection(InetSocketAddress address, SocketChannel channel) {
+        int size = options.getMaxMessageSize();
+        return new Connection(address, channel, pendingBufferSize > 0 ? Math.min(pendingBufferSize, size) : size);
     }
 
-    private void notifyStatusChange(InetSocketAddress address, MagpieStatus status) {
+    void notifyStatusChange(InetSocketAddress address, MagpieStatus status) {
         for (MagpieChannelStatusListener listener : statusListeners) {
             try {
                 listener.statusChanged(address, status);
@@ -339,36 +745,131 @@ public class MagpieChannel {
         }
     }
 
-    private static void configureChannel(SocketChannel channel) throws IOException {
+    /**
+     * Socket options are applied on every connect and accept, so they survive reconnects.
+     */
+    void configureChannel(SocketChannel channel) throws IOException {
         channel.configureBlocking(false);
         channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
     }
 
-    private static class Endpoint {
-        private final int[] intervals;
+    void configureBuffers(SocketChannel channel) throws IOException {
+        configureBuffers(channel, options.getSendBufferSize(), options.getReceiveBufferSize());
+    }
+
+    private static void configureBuffers(SocketChannel channel, int sendBufferSize, int receiveBufferSize) throws IOException {
+        if (sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //
+            }
+        }
+    }
+
+    /**
+     * Selection key attachment holding connection read buffer.
+     */
+    static class Connection {
+        final InetSocketAddress address;
+        final SocketChannel channel;
+        ByteBuffer buffer;
+        int slot;
+        boolean authenticated;
+        long servedPoll;
+        boolean deferred;
+        // Flags used by busy-poll transport having no selection key
+        volatile boolean paused;
+        volatile boolean resumed;
+        volatile boolean flush;
+
+        Connection(InetSocketAddress address, SocketChannel channel, int bufferSize) {
+            this.address = address;
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+
+    /**
+     * Reconnect state of configured endpoint: decorrelated jitter backoff
+     * (random delay between base and three times the previous one, base for the first failure, capped)
+     * and circuit breaker opened after too many consecutive failures.
+     * The first attempt after a lost connection is random within base, so peers dropped together spread out too.
+     */
+    static class Endpoint {
+        private final InetSocketAddress target;
         private long nextReconnect;
-        private int counter;
+        private long drainDeadline;
+        private long delay;
+        private int failures;
+        private boolean open;
+        private boolean connected;
+
+        Endpoint(InetSocketAddress target) {
+            this.target = target;
+        }
+
+        /**
+         * @return true if endpoint is removed and waits to be closed.
+         */
+        public boolean isDraining() {
+            return drainDeadline > 0L;
+        }
 
-        public Endpoint(int[] intervals) {
-            this.intervals = intervals;
+        public boolean isDrained(long time) {
+            return drainDeadline > 0L && time >= drainDeadline;
         }
 
         public boolean canConnect(long time) {
             return time > nextReconnect;
         }
 
-        public int updateNext(long time) {
-            int delay = intervals[counter];
-            nextReconnect = time + delay * 1000;
-            if (counter < intervals.length - 1) {
-                counter++;
-            }
+        /**
+         * @return delay before next attempt, milliseconds.
+         */
+        public long updateNext(long time, long base, long cap) {
+            failures++;
+            long previous = Math.max(base, delay);
+            delay = Math.min(cap, ThreadLocalRandom.current().nextLong(base, previous * 3 + 1));
+            nextReconnect = time + delay;
             return delay;
         }
 
+        /**
+         * @return delay before the first attempt after connection is lost, milliseconds.
+         */
+        public long lost(long time, long base) {
+            connected = false;
+            long pause = ThreadLocalRandom.current().nextLong(base + 1);
+            nextReconnect = time + pause;
+            return pause;
+        }
+
+        /**
+         * Opens circuit, single trial connection is allowed after specified period.
+         */
+        public void open(long time, long period) {
+            failures++;
+            open = true;
+            delay = period;
+            nextReconnect = time + period;
+        }
+
         public void reset() {
-            nextReconnect = 0;
-            counter = 0;
+            nextReconnect = 0L;
+            delay = 0L;
+            failures = 0;
+            open = false;
+            connected = true;
         }
     }
 }
@@ -8,4 +8,11 @@ import java.nio.ByteBuffer;
  */
 public interface MagpieChannelDataHandler {
     void process(InetSocketAddress address, ByteBuffer buffer);
+
+    /**
+     * Invoked from 'poll' when channel requested by {@link MagpieTransport#requestFlush(InetSocketAddress)}
+     * is able to accept more data.
+     */
+    default void writable(InetSocketAddress address) {
+    }
 }
@@ -0,0 +1,126 @@
+package com.threadcat.magpie.channel;
+
+import com.threadcat.magpie.MagpieOptions;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * Event loop connecting, accepting and reading socket channels underneath {@link com.threadcat.magpie.Magpie}.
+ * Method 'poll' supposed to be used from a single-thread dispatcher, 'send', 'pauseReading' and 'resumeReading'
+ * are available to concurrent threads.
+ * <p>
+ * {@link MagpieChannel} is the default selector based implementation,
+ * {@link MagpieBusyPollChannel} spins over non-blocking sockets instead.
+ * Implementation is chosen by {@link MagpieOptions#setTransport(Factory)}.
+ *
+ * @author threadcat
+ */
+public interface MagpieTransport {
+
+    /**
+     * Creates transport accepting connections on specified port of all network interfaces, 0 - client only.
+     */
+    interface Factory {
+        MagpieTransport create(int port, MagpieOptions options);
+    }
+
+    MagpieTransport addAcceptor(InetSocketAddress address);
+
+    boolean removeAcceptor(InetSocketAddress address);
+
+    /**
+     * Specified connection will be initiated on {@link #open()} and reconnected when broken.
+     */
+    MagpieTransport addEndpoint(InetSocketAddress address);
+
+    boolean removeEndpoint(InetSocketAddress address);
+
+    /**
+     * Replaces configured endpoints with specified set atomically. Difference is applied by 'poll' thread:
+     * unchanged connections are kept, removed ones are reported {@link com.threadcat.magpie.MagpieStatus#DRAINING}
+     * and closed after {@link MagpieOptions#getDrainPeriod()}, added ones connect after random delay
+     * up to {@link MagpieOptions#getConnectJitter()}. Draining connection added back is closed and connects again.
+     * Safe to call from any thread, the latest set wins.
+     */
+    void reconfigure(Set<InetSocketAddress> addresses);
+
+    MagpieTransport addStatusListener(MagpieChannelStatusListener listener);
+
+    MagpieTransport open();
+
+    boolean isOpen();
+
+    /**
+     * Stops listeners and terminates all peer connections.
+     */
+    void close();
+
+    void closeChannel(InetSocketAddress address);
+
+    /**
+     * @return true if end point was connected and data were sent.
+     */
+    boolean send(InetSocketAddress address, ByteBuffer buffer);
+
+    /**
+     * Writes as much as socket accepts without waiting.
+     *
+     * @return number of bytes written or -1 if end point is not connected.
+     */
+    int write(InetSocketAddress address, ByteBuffer buffer);
+
+    /**
+     * Asks 'poll' to invoke {@link MagpieChannelDataHandler#writable(InetSocketAddress)} once socket
+     * has room for more data. Safe to call from any thread.
+     */
+    void requestFlush(InetSocketAddress address);
+
+    /**
+     * Reads received messages invoking data handler for each connection having data.
+     *
+     * @return false if no data received.
+     */
+    boolean poll(MagpieChannelDataHandler dataHandler);
+
+    /**
+     * Stops reading from specified channel leaving unread data in socket buffer,
+     * so TCP flow control pushes back on the sender.
+     */
+    void pauseReading(InetSocketAddress address);
+
+    /**
+     * Resumes reading, data left in channel buffer on pause is handed over to data handler on next 'poll'.
+     */
+    void resumeReading(InetSocketAddress address);
+
+    /**
+     * Defers processing of data remaining in channel buffer to the next 'poll',
+     * called by data handler from 'poll' thread when it ran out of per-poll budget.
+     */
+    void deferReading(InetSocketAddress address);
+
+    boolean isReadingPaused(InetSocketAddress address);
+
+    /**
+     * Makes new connections start with a small read buffer until {@link #authenticate(InetSocketAddress)},
+     * so unauthenticated sockets do not hold max message size buffers. Connection is closed
+     * if its small buffer fills up with no progress. 0 - full size buffer from the start (default).
+     */
+    void setPendingBufferSize(int size);
+
+    /**
+     * Sets SO_SNDBUF and SO_RCVBUF of connected socket, 0 - leave as is.
+     */
+    void setSocketBuffers(InetSocketAddress address, int sendBufferSize, int receiveBufferSize);
+
+    /**
+     * Gives connection full size read buffer, called when its greeting is accepted.
+     */
+    void authenticate(InetSocketAddress address);
+
+    boolean isAccepted(InetSocketAddress address);
+
+    boolean isInitiated(InetSocketAddress address);
+}
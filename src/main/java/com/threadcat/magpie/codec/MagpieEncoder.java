@@ -0,0 +1,59 @@
+package com.threadcat.magpie.codec;
+
+import com.threadcat.magpie.MagpieDataTransformer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable {@link MagpieSchema} message encoder plugging into {@link com.threadcat.magpie.Magpie#send}.
+ * Sending buffer is wrapped at payload offset and {@link #encode()} sets fields straight into it,
+ * so nothing is staged or copied. No allocation per message. Sending buffer is reused, so encoder
+ * leaving some fields unset starts with {@link #clear()}.
+ * <p>
+ * > class QuoteEncoder extends MagpieEncoder {
+ * >     long price;
+ * >     QuoteEncoder() { super(QUOTE); }
+ * >     protected void encode() { putAscii(SYMBOL, "EURUSD").putLong(PRICE, price); }
+ * > }
+ * > encoder.price = price;
+ * > magpie.send("order-gateway", encoder, QUOTE.getType());
+ * <p>
+ * Not thread safe, one instance per sending thread.
+ *
+ * @author threadcat
+ */
+public abstract class MagpieEncoder extends MagpieFlyweight implements MagpieDataTransformer {
+
+    public MagpieEncoder(MagpieSchema schema) {
+        super(schema);
+    }
+
+    /**
+     * Sets all fields of wrapped message to zero.
+     */
+    public MagpieEncoder clear() {
+        ByteBuffer buffer = getBuffer();
+        int offset = getOffset();
+        int size = getSchema().size();
+        int i = 0;
+        for (; i + 8 <= size; i += 8) {
+            buffer.putLong(offset + i, 0L);
+        }
+        for (; i < size; i++) {
+            buffer.put(offset + i, (byte) 0);
+        }
+        return this;
+    }
+
+    @Override
+    public int write(ByteBuffer buffer, int offset) {
+        wrap(buffer, offset);
+        encode();
+        return getSchema().size();
+    }
+
+    /**
+     * Sets message fields through flyweight methods, invoked by {@link #write(ByteBuffer, int)}.
+     */
+    protected abstract void encode();
+}
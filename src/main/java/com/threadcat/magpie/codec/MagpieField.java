@@ -0,0 +1,46 @@
+package com.threadcat.magpie.codec;
+
+/**
+ * Fixed position field of {@link MagpieSchema}, used as accessor key by {@link MagpieFlyweight}.
+ *
+ * @author threadcat
+ */
+public class MagpieField {
+    public enum Kind {INT8, INT16, INT32, INT64, FLOAT64, ASCII}
+
+    private final String name;
+    private final Kind kind;
+    private final int offset;
+    private final int length;
+
+    MagpieField(String name, Kind kind, int offset, int length) {
+        this.name = name;
+        this.kind = kind;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return offset relative to message start.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s offset=%s length=%s", name, kind, offset, length);
+    }
+}
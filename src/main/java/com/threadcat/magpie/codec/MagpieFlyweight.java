@@ -0,0 +1,167 @@
+package com.threadcat.magpie.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Zero-copy view of a {@link MagpieSchema} message inside byte buffer.
+ * Reads and writes fields directly at wrapped offset, no allocation except {@link #getAscii(MagpieField)}.
+ * Typical use inside {@link com.threadcat.magpie.MagpieDataHandler}:
+ * <p>
+ * > long price = quote.wrap(buffer, offset).getLong(PRICE);
+ * <p>
+ * Field kinds are not verified on access, reading a field with accessor of other kind returns its raw bytes.
+ *
+ * @author threadcat
+ */
+public class MagpieFlyweight {
+    private final MagpieSchema schema;
+    private ByteBuffer buffer;
+    private int offset;
+
+    public MagpieFlyweight(MagpieSchema schema) {
+        this.schema = schema;
+    }
+
+    public MagpieFlyweight wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    public MagpieSchema getSchema() {
+        return schema;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public byte getByte(MagpieField field) {
+        return buffer.get(offset + field.getOffset());
+    }
+
+    public short getShort(MagpieField field) {
+        return buffer.getShort(offset + field.getOffset());
+    }
+
+    public int getInt(MagpieField field) {
+        return buffer.getInt(offset + field.getOffset());
+    }
+
+    public long getLong(MagpieField field) {
+        return buffer.getLong(offset + field.getOffset());
+    }
+
+    public double getDouble(MagpieField field) {
+        return buffer.getDouble(offset + field.getOffset());
+    }
+
+    /**
+     * Appends ASCII field value to provided builder without allocation.
+     */
+    public StringBuilder getAscii(MagpieField field, StringBuilder sb) {
+        int start = offset + field.getOffset();
+        for (int i = start, end = start + field.getLength(); i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == 0) {
+                break;
+            }
+            sb.append((char) b);
+        }
+        return sb;
+    }
+
+    public String getAscii(MagpieField field) {
+        return getAscii(field, new StringBuilder(field.getLength())).toString();
+    }
+
+    /**
+     * @return true if ASCII field holds specified value, compared without allocation.
+     */
+    public boolean equalsAscii(MagpieField field, CharSequence value) {
+        int start = offset + field.getOffset();
+        int length = field.getLength();
+        if (value.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            byte expected = i < value.length() ? (byte) value.charAt(i) : 0;
+            if (buffer.get(start + i) != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public MagpieFlyweight putByte(MagpieField field, byte value) {
+        buffer.put(offset + field.getOffset(), value);
+        return this;
+    }
+
+    public MagpieFlyweight putShort(MagpieField field, short value) {
+        buffer.putShort(offset + field.getOffset(), value);
+        return this;
+    }
+
+    public MagpieFlyweight putInt(MagpieField field, int value) {
+        buffer.putInt(offset + field.getOffset(), value);
+        return this;
+    }
+
+    public MagpieFlyweight putLong(MagpieField field, long value) {
+        buffer.putLong(offset + field.getOffset(), value);
+        return this;
+    }
+
+    public MagpieFlyweight putDouble(MagpieField field, double value) {
+        buffer.putDouble(offset + field.getOffset(), value);
+        return this;
+    }
+
+    /**
+     * Writes ASCII value truncated or padded with zeros to the field length.
+     */
+    public MagpieFlyweight putAscii(MagpieField field, CharSequence value) {
+        int start = offset + field.getOffset();
+        int length = field.getLength();
+        for (int i = 0; i < length; i++) {
+            buffer.put(start + i, i < value.length() ? (byte) value.charAt(i) : 0);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(schema.getName()).append('{');
+        for (MagpieField field : schema.getFields()) {
+            sb.append(field.getName()).append('=');
+            switch (field.getKind()) {
+                case INT8:
+                    sb.append(getByte(field));
+                    break;
+                case INT16:
+                    sb.append(getShort(field));
+                    break;
+                case INT32:
+                    sb.append(getInt(field));
+                    break;
+                case INT64:
+                    sb.append(getLong(field));
+                    break;
+                case FLOAT64:
+                    sb.append(getDouble(field));
+                    break;
+                case ASCII:
+                    getAscii(field, sb);
+                    break;
+            }
+            sb.append(' ');
+        }
+        sb.setLength(sb.length() - 1);
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,108 @@
+package com.threadcat.magpie.codec;
+
+import com.threadcat.magpie.internal.MagpieException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fixed layout message description. Fields are placed one after another in declaration order.
+ * <p>
+ * > MagpieSchema quote = new MagpieSchema("quote", (short) 10);
+ * > MagpieField SYMBOL = quote.ascii("symbol", 8);
+ * > MagpieField PRICE = quote.int64("price");
+ * > MagpieField QTY = quote.int32("qty");
+ *
+ * @author threadcat
+ */
+public class MagpieSchema {
+    private final String name;
+    private final short type;
+    private final List<MagpieField> fields = new ArrayList<>();
+    private int size;
+
+    /**
+     * @param type message type used for sending, see {@link com.threadcat.magpie.Magpie#send(String, com.threadcat.magpie.MagpieDataTransformer, short)},
+     *             positive as zero and negative types are reserved for heartbeats, greetings and other control messages.
+     */
+    public MagpieSchema(String name, short type) {
+        if (type <= 0) {
+            throw new MagpieException("Type " + type + " of schema " + name + " is reserved for control messages");
+        }
+        this.name = name;
+        this.type = type;
+    }
+
+    public MagpieField int8(String name) {
+        return add(name, MagpieField.Kind.INT8, 1);
+    }
+
+    public MagpieField int16(String name) {
+        return add(name, MagpieField.Kind.INT16, 2);
+    }
+
+    public MagpieField int32(String name) {
+        return add(name, MagpieField.Kind.INT32, 4);
+    }
+
+    public MagpieField int64(String name) {
+        return add(name, MagpieField.Kind.INT64, 8);
+    }
+
+    public MagpieField float64(String name) {
+        return add(name, MagpieField.Kind.FLOAT64, 8);
+    }
+
+    /**
+     * @param length fixed length, shorter values are padded with zeros.
+     */
+    public MagpieField ascii(String name, int length) {
+        return add(name, MagpieField.Kind.ASCII, length);
+    }
+
+    public MagpieField field(String name) {
+        for (MagpieField field : fields) {
+            if (field.getName().equals(name)) {
+                return field;
+            }
+        }
+        throw new MagpieException("No field " + name + " in schema " + this.name);
+    }
+
+    public List<MagpieField> getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public short getType() {
+        return type;
+    }
+
+    /**
+     * @return message length in bytes.
+     */
+    public int size() {
+        return size;
+    }
+
+    private MagpieField add(String name, MagpieField.Kind kind, int length) {
+        for (MagpieField field : fields) {
+            if (field.getName().equals(name)) {
+                throw new MagpieException("Duplicate field " + name + " in schema " + this.name);
+            }
+        }
+        MagpieField field = new MagpieField(name, kind, size, length);
+        fields.add(field);
+        size += length;
+        return field;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s type=%s size=%s %s", name, type, size, fields);
+    }
+}
@@ -0,0 +1,57 @@
+package com.threadcat.magpie.internal;
+
+import java.util.Arrays;
+
+/**
+ * Copy-on-write array sets for values of concurrent maps updated with 'compute',
+ * readers iterate published arrays without locks.
+ * Removing the last element returns null, so 'compute' drops the map entry.
+ *
+ * @author threadcat
+ */
+public class MagpieArrays {
+
+    public static int[] add(int[] array, int value) {
+        if (array == null) {
+            return new int[]{value};
+        }
+        for (int v : array) {
+            if (v == value) {
+                return array;
+            }
+        }
+        int[] copy = Arrays.copyOf(array, array.length + 1);
+        copy[array.length] = value;
+        return copy;
+    }
+
+    public static int[] remove(int[] array, int value) {
+        if (array == null) {
+            return null;
+        }
+        int[] copy = Arrays.stream(array).filter(v -> v != value).toArray();
+        return copy.length > 0 ? copy : null;
+    }
+
+    public static String[] add(String[] array, String value) {
+        if (array == null) {
+            return new String[]{value};
+        }
+        for (String v : array) {
+            if (v.equals(value)) {
+                return array;
+            }
+        }
+        String[] copy = Arrays.copyOf(array, array.length + 1);
+        copy[array.length] = value;
+        return copy;
+    }
+
+    public static String[] remove(String[] array, String value) {
+        if (array == null) {
+            return null;
+        }
+        String[] copy = Arrays.stream(array).filter(v -> !v.equals(value)).toArray(String[]::new);
+        return copy.length > 0 ? copy : null;
+    }
+}
@@ -0,0 +1,27 @@
+package com.threadcat.magpie.internal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Absolute bulk copy between byte buffers, which ByteBuffer offers only since Java 16.
+ * Positions and limits stay intact and nothing is allocated, so it is safe on send and receive paths.
+ *
+ * @author threadcat
+ */
+public class MagpieBuffers {
+
+    /**
+     * Copies by 'longs' with a byte tail, regions must not overlap.
+     */
+    public static void copy(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset, int length) {
+        boolean swap = src.order() != dst.order();
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long value = src.getLong(srcOffset + i);
+            dst.putLong(dstOffset + i, swap ? Long.reverseBytes(value) : value);
+        }
+        for (; i < length; i++) {
+            dst.put(dstOffset + i, src.get(srcOffset + i));
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.threadcat.magpie.internal;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Frame recorder writing to rolling memory-mapped files, see {@code MagpieReplay} for reading.
+ * Recording is a memory copy without system calls: the next file is mapped ahead by a background thread,
+ * which also flushes full files and deletes old ones. Frames are dropped rather than waited for
+ * if the next file is not ready yet. Safe for concurrent threads: space is reserved by atomic 'long' increment,
+ * which keeps growing past the file end while frames are dropped, but never wraps,
+ * record length is published last, so a reader stops at a record still being written.
+ * <p>
+ * File layout: header {magic, epoch millis, nano time} followed by 8-byte aligned records
+ * {length, direction, 0, id length, type, nano time, sequence, payload length, id ASCII, payload}.
+ * Zero length marks end of file.
+ *
+ * @author threadcat
+ */
+public class MagpieCapture {
+    public static final long MAGIC = 0x4d41475049434150L; // MAGPICAP
+    public static final byte INBOUND = 0;
+    public static final byte OUTBOUND = 1;
+    public static final String SUFFIX = ".cap";
+    public static final int FILE_HEADER = 24;
+    public static final int IDX_LENGTH = 0;
+    public static final int IDX_DIRECTION = 4;
+    public static final int IDX_ID_LENGTH = 6;
+    public static final int IDX_TYPE = 8;
+    public static final int IDX_TIME = 12;
+    public static final int IDX_SEQUENCE = 20;
+    public static final int IDX_PAYLOAD_LENGTH = 28;
+    public static final int RECORD_HEADER = 32;
+    private static final VarHandle INT_HANDLE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private final Path directory;
+    private final int fileSize;
+    private final int fileCount;
+    private final Deque<Path> files = new ArrayDeque<>(); // used by background thread after constructor
+    private final ExecutorService background = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "magpie-capture");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Segment segment;
+    private volatile Segment next;
+    private volatile MagpieException failure;
+    private int fileIndex;
+
+    /**
+     * @param fileSize  capture file size, bytes.
+     * @param fileCount number of files kept, the oldest one is deleted when exceeded.
+     */
+    public MagpieCapture(Path directory, int fileSize, int fileCount) {
+        this.directory = directory;
+        this.fileSize = fileSize;
+        this.fileCount = Math.max(fileCount, 1);
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> list = Files.list(directory)) {
+                // Continuing numbering of previous runs, so files sort in capture order
+                fileIndex = list.mapToInt(MagpieCapture::fileIndex).max().orElse(-1) + 1;
+            }
+        } catch (IOException e) {
+            throw new MagpieException("Failed opening capture directory " + directory, e);
+        }
+        this.segment = map();
+        prepare();
+    }
+
+    /**
+     * @param id endpoint id or null if not known yet.
+     * @return false if frame is dropped as the next file is not mapped yet, see {@link #getDropped()}.
+     * @throws MagpieException if frame does not fit a file or the next file could not be mapped.
+     */
+    public boolean record(byte direction, String id, int type, long sequence, ByteBuffer buffer, int offset, int length) {
+        int idLength = id != null ? id.length() : 0;
+        int size = RECORD_HEADER + idLength + length;
+        int aligned = (size + 7) & ~7;
+        if (aligned > fileSize - FILE_HEADER) {
+            throw new MagpieException("Frame of " + length + " bytes does not fit capture file");
+        }
+        long time = System.nanoTime();
+        for (; ; ) {
+            Segment s = segment;
+            long reserved = s.position.getAndAdd(aligned);
+            if (reserved + aligned <= fileSize) {
+                int position = (int) reserved;
+                ByteBuffer b = s.buffer;
+                b.put(position + IDX_DIRECTION, direction);
+                b.putShort(position + IDX_ID_LENGTH, (short) idLength);
+                b.putInt(position + IDX_TYPE, type);
+                b.putLong(position + IDX_TIME, time);
+                b.putLong(position + IDX_SEQUENCE, sequence);
+                b.putInt(position + IDX_PAYLOAD_LENGTH, length);
+                int i = position + RECORD_HEADER;
+                for (int k = 0; k < idLength; k++) {
+                    b.put(i++, (byte) id.charAt(k));
+                }
+                MagpieBuffers.copy(buffer, offset, b, i, length);
+                INT_HANDLE.setRelease(b, position + IDX_LENGTH, size);
+                return true;
+            }
+            if (!roll(s)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return number of frames dropped while the next file was being mapped.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits for background work, flushes current file and deletes the one mapped ahead.
+     */
+    public void close() {
+        background.shutdown();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        release();
+    }
+
+    /**
+     * Closes without waiting: background thread finishes pending work and releases files,
+     * e.g. when capture fails on 'poll' thread. Failure deleting the file mapped ahead is not reported.
+     */
+    public void closeInBackground() {
+        try {
+            background.execute(() -> {
+                try {
+                    release();
+                } catch (MagpieException e) {
+                    failure = e;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return; // Already closed
+        }
+        background.shutdown();
+    }
+
+    private void release() {
+        segment.buffer.force();
+        Segment unused = next;
+        if (unused != null) {
+            try {
+                Files.deleteIfExists(unused.path);
+            } catch (IOException e) {
+                throw new MagpieException("Failed deleting capture file " + unused.path, e);
+            }
+        }
+    }
+
+    /**
+     * Switches to the file mapped ahead, flushing the full one and mapping another in background.
+     *
+     * @return false if the next file is not ready yet.
+     */
+    private synchronized boolean roll(Segment full) {
+        if (segment != full) {
+            return true;
+        }
+        Segment prepared = next;
+        if (prepared == null) {
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        }
+        next = null;
+        segment = prepared;
+        try {
+            background.execute(() -> {
+                full.buffer.force();
+                while (files.size() > fileCount) {
+                    Path path = files.poll();
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException e) {
+                        failure = new MagpieException("Failed deleting capture file " + path, e);
+                    }
+                }
+            });
+            prepare();
+        } catch (RejectedExecutionException e) {
+            // Closed, frames keep going into the current file while it has room
+        }
+        return true;
+    }
+
+    private void prepare() {
+        background.execute(() -> {
+            try {
+                next = map();
+            } catch (MagpieException e) {
+                failure = e;
+            }
+        });
+    }
+
+    private Segment map() {
+        Path path = directory.resolve(String.format("magpie-%06d%s", fileIndex++, SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            buffer.putLong(0, MAGIC);
+            buffer.putLong(8, System.currentTimeMillis());
+            buffer.putLong(16, System.nanoTime());
+            files.add(path);
+            return new Segment(path, buffer);
+        } catch (IOException e) {
+            throw new MagpieException("Failed mapping capture file " + path, e);
+        }
+    }
+
+    /**
+     * @return index of capture file or -1 if that is not one.
+     */
+    public static int fileIndex(Path path) {
+        String name = path.getFileName().toString();
+        if (name.startsWith("magpie-") && name.endsWith(SUFFIX)) {
+            try {
+                return Integer.parseInt(name, 7, name.length() - SUFFIX.length(), 10);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        final AtomicLong position = new AtomicLong(FILE_HEADER);
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+}
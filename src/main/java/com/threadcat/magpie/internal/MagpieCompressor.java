@@ -0,0 +1,217 @@
+package com.threadcat.magpie.internal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java payload codec producing LZ4 block format, no native libraries required.
+ * Compressed payload is prefixed with 4-byte original length.
+ * Buffers and hash table are allocated once per endpoint, no allocation per message.
+ * Compression is used by senders under endpoint lock, decompression by 'poll' thread,
+ * so those two share nothing but configuration.
+ *
+ * @author threadcat
+ */
+public class MagpieCompressor {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xffff;
+    private static final int HASH_LOG = 12;
+    private static final int ML_MASK = 0x0f;
+    private static final int RUN_MASK = 0x0f;
+    private final int threshold;
+    private final int[] table = new int[1 << HASH_LOG];
+    private final ByteBuffer compressed;
+    private final ByteBuffer decompressed;
+
+    /**
+     * @param maxMessageSize max payload size.
+     * @param threshold      payloads shorter than that are not compressed.
+     */
+    public MagpieCompressor(int maxMessageSize, int threshold) {
+        this.threshold = threshold;
+        this.compressed = ByteBuffer.allocateDirect(maxMessageSize);
+        this.decompressed = ByteBuffer.allocateDirect(maxMessageSize);
+    }
+
+    /**
+     * Compresses payload in place.
+     *
+     * @return compressed length or -1 if payload left uncompressed (too short or incompressible).
+     */
+    public int compress(ByteBuffer buffer, int offset, int length) {
+        if (length < threshold) {
+            return -1;
+        }
+        compressed.putInt(0, length);
+        int n = compress(buffer, offset, length, compressed, 4, length - 4);
+        if (n < 0) {
+            return -1;
+        }
+        MagpieBuffers.copy(compressed, 0, buffer, offset, n + 4);
+        return n + 4;
+    }
+
+    /**
+     * Decompresses payload into internal buffer valid until next invocation, see {@link #getBuffer()}.
+     *
+     * @return original length or -1 if payload is malformed.
+     */
+    public int decompress(ByteBuffer buffer, int offset, int length) {
+        if (length < 4) {
+            return -1;
+        }
+        int original = buffer.getInt(offset);
+        if (original < 0 || original > decompressed.capacity()) {
+            return -1;
+        }
+        int n = decompress(buffer, offset + 4, length - 4, decompressed, 0, original);
+        return n == original ? n : -1;
+    }
+
+    /**
+     * @return buffer holding payload decompressed from offset 0.
+     */
+    public ByteBuffer getBuffer() {
+        return decompressed;
+    }
+
+    /**
+     * @return compressed length or -1 if it does not fit into destination capacity.
+     */
+    int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int dstCap) {
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstCap;
+        final int matchLimit = srcEnd - LAST_LITERALS;
+        final int mfLimit = srcEnd - MF_LIMIT;
+        int anchor = srcOff;
+        int op = dstOff;
+        int ip = srcOff;
+        while (ip < mfLimit) {
+            // Looking for a match, stale table entries are verified by comparing bytes
+            int ref = -1;
+            for (int step = 1; ip < mfLimit; ip += step, step = 1 + ((ip - anchor) >>> 6)) {
+                int sequence = src.getInt(ip);
+                int h = hash(sequence);
+                int candidate = table[h];
+                table[h] = ip;
+                if (candidate >= srcOff && candidate < ip && ip - candidate <= MAX_OFFSET && src.getInt(candidate) == sequence) {
+                    ref = candidate;
+                    break;
+                }
+            }
+            if (ref < 0) {
+                break;
+            }
+            while (ip > anchor && ref > srcOff && src.get(ip - 1) == src.get(ref - 1)) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src.get(ip + matchLength) == src.get(ref + matchLength)) {
+                matchLength++;
+            }
+            int literals = ip - anchor;
+            int ml = matchLength - MIN_MATCH;
+            if (op + 1 + literals / 255 + 1 + literals + 2 + ml / 255 + 1 > dstEnd) {
+                return -1;
+            }
+            int token = op++;
+            op = putLength(dst, op, literals);
+            MagpieBuffers.copy(src, anchor, dst, op, literals);
+            op += literals;
+            dst.put(op++, (byte) (ip - ref));
+            dst.put(op++, (byte) ((ip - ref) >>> 8));
+            int tokenValue = Math.min(literals, RUN_MASK) << 4 | Math.min(ml, ML_MASK);
+            op = putLength(dst, op, ml);
+            dst.put(token, (byte) tokenValue);
+            ip += matchLength;
+            anchor = ip;
+        }
+        int literals = srcEnd - anchor;
+        if (op + 1 + literals / 255 + 1 + literals > dstEnd) {
+            return -1;
+        }
+        dst.put(op++, (byte) (Math.min(literals, RUN_MASK) << 4));
+        op = putLength(dst, op, literals);
+        MagpieBuffers.copy(src, anchor, dst, op, literals);
+        op += literals;
+        return op - dstOff;
+    }
+
+    /**
+     * @return decompressed length or -1 if source is malformed or does not fit into destination capacity.
+     */
+    static int decompress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int dstCap) {
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstCap;
+        int ip = srcOff;
+        int op = dstOff;
+        while (ip < srcEnd) {
+            int token = src.get(ip++) & 0xff;
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                for (int b = 255; b == 255; literals += b) {
+                    if (ip >= srcEnd) {
+                        return -1;
+                    }
+                    b = src.get(ip++) & 0xff;
+                }
+            }
+            if (ip + literals > srcEnd || op + literals > dstEnd) {
+                return -1;
+            }
+            MagpieBuffers.copy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == srcEnd) {
+                break; // Last literals
+            }
+            if (ip + 2 > srcEnd) {
+                return -1;
+            }
+            int offset = (src.get(ip) & 0xff) | (src.get(ip + 1) & 0xff) << 8;
+            ip += 2;
+            int matchLength = token & ML_MASK;
+            if (matchLength == ML_MASK) {
+                for (int b = 255; b == 255; matchLength += b) {
+                    if (ip >= srcEnd) {
+                        return -1;
+                    }
+                    b = src.get(ip++) & 0xff;
+                }
+            }
+            matchLength += MIN_MATCH;
+            int ref = op - offset;
+            if (offset == 0 || ref < dstOff || op + matchLength > dstEnd) {
+                return -1;
+            }
+            // Match might overlap its own output, copying by 8 bytes only when it does not
+            int end = op + matchLength;
+            if (offset >= 8) {
+                for (; op + 8 <= end; op += 8, ref += 8) {
+                    dst.putLong(op, dst.getLong(ref));
+                }
+            }
+            for (; op < end; op++, ref++) {
+                dst.put(op, dst.get(ref));
+            }
+        }
+        return op - dstOff;
+    }
+
+    private static int putLength(ByteBuffer dst, int op, int length) {
+        if (length >= RUN_MASK) {
+            int n = length - RUN_MASK;
+            for (; n >= 255; n -= 255) {
+                dst.put(op++, (byte) 255);
+            }
+            dst.put(op++, (byte) n);
+        }
+        return op;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
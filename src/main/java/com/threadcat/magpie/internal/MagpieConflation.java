@@ -0,0 +1,172 @@
+package com.threadcat.magpie.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Conflating queue of payloads keyed by user supplied 'long' key, e.g. instrument id of a price update.
+ * Payload offered while another one with the same key is still queued replaces it in place, keeping its
+ * position, so a slow consumer gets the latest value per key and memory is bounded by number of keys.
+ * <p>
+ * Entries live in preallocated slots of max payload size, indexed by open addressing table,
+ * so neither offer nor poll allocates. Used under endpoint lock.
+ *
+ * @author threadcat
+ */
+public class MagpieConflation {
+    private final int capacity;
+    private final int slotSize;
+    private final ByteBuffer payloads;
+    private final long[] keys;
+    private final short[] types;
+    private final int[] lengths;
+    private final int[] table; // entry index or -1
+    private final int mask;
+    private final int[] queue; // ring of entry indices in arrival order
+    private final int[] free;
+    private int head;
+    private int size;
+    private int freeCount;
+    private int queuedBytes;
+    private long replaced;
+    private short type;
+
+    /**
+     * @param capacity       max number of distinct keys queued.
+     * @param maxPayloadSize max payload length.
+     */
+    public MagpieConflation(int capacity, int maxPayloadSize) {
+        this.capacity = capacity;
+        this.slotSize = maxPayloadSize;
+        this.payloads = ByteBuffer.allocateDirect(capacity * maxPayloadSize);
+        this.keys = new long[capacity];
+        this.types = new short[capacity];
+        this.lengths = new int[capacity];
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1;
+        this.table = new int[tableSize];
+        this.mask = tableSize - 1;
+        Arrays.fill(table, -1);
+        this.queue = new int[capacity];
+        this.free = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = capacity - 1 - i;
+        }
+        this.freeCount = capacity;
+    }
+
+    /**
+     * Replaces payload queued with the same key or appends a new one.
+     *
+     * @return false if all keys are taken.
+     */
+    public boolean offer(long key, short type, ByteBuffer src, int offset, int length) {
+        if (length > slotSize) {
+            throw new MagpieException("Payload length " + length + " exceeds conflation slot size " + slotSize);
+        }
+        int cell = find(key);
+        int entry;
+        if (table[cell] >= 0) {
+            entry = table[cell];
+            queuedBytes -= lengths[entry];
+            replaced++;
+        } else if (freeCount == 0) {
+            return false;
+        } else {
+            entry = free[--freeCount];
+            keys[entry] = key;
+            table[cell] = entry;
+            queue[(head + size++) % capacity] = entry;
+        }
+        types[entry] = type;
+        lengths[entry] = length;
+        MagpieBuffers.copy(src, offset, payloads, entry * slotSize, length);
+        queuedBytes += length;
+        return true;
+    }
+
+    /**
+     * Copies the oldest payload.
+     *
+     * @return payload length or -1 if empty, see {@link #getType()}.
+     */
+    public int poll(ByteBuffer dst, int offset) {
+        if (size == 0) {
+            return -1;
+        }
+        int entry = queue[head];
+        head = (head + 1) % capacity;
+        size--;
+        remove(find(keys[entry]));
+        free[freeCount++] = entry;
+        int length = lengths[entry];
+        type = types[entry];
+        MagpieBuffers.copy(payloads, entry * slotSize, dst, offset, length);
+        queuedBytes -= length;
+        return length;
+    }
+
+    /**
+     * @return length of payload to be returned by the next poll, queue must not be empty.
+     */
+    public int peekLength() {
+        return lengths[queue[head]];
+    }
+
+    /**
+     * @return type of payload returned by the last {@link #poll(ByteBuffer, int)}.
+     */
+    public short getType() {
+        return type;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return number of payloads dropped by being replaced with newer ones.
+     */
+    public long getReplaced() {
+        return replaced;
+    }
+
+    /**
+     * @return table cell holding the key or empty cell where it belongs.
+     */
+    private int find(long key) {
+        int i = cell(key);
+        while (table[i] >= 0 && keys[table[i]] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Linear probing removal, following entries are shifted back so lookups need no tombstones.
+     */
+    private void remove(int i) {
+        table[i] = -1;
+        for (int j = (i + 1) & mask; table[j] >= 0; j = (j + 1) & mask) {
+            int home = cell(keys[table[j]]);
+            // Entry at 'j' moves into the gap unless its home cell lies cyclically in (i, j]
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                table[i] = table[j];
+                table[j] = -1;
+                i = j;
+            }
+        }
+    }
+
+    private int cell(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
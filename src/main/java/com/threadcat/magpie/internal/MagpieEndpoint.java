@@ -2,6 +2,8 @@ package com.threadcat.magpie.internal;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
  * Endpoint status data holder. Updates heartbeat time and message sequences.
@@ -9,19 +11,51 @@ import java.nio.ByteBuffer;
  * @author threadcat
  */
 public class MagpieEndpoint {
-    private final ByteBuffer buffer;
     private final InetSocketAddress address;
     private final long heartbeatTimeout;
+    private final long created;
+    private final int maxMessageSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private ByteBuffer buffer;
+    private MagpieOutbound outbound;
+    private MagpieRateLimiter rateLimiter;
     private long lastReceived;
     private long sequenceOut;
     private long sequenceIn;
+    private long decodedSequence;
+    private volatile short version;
+    private volatile int capabilities;
+    private MagpieCompressor compressor;
+    private CRC32C checksumOut;
+    private CRC32C checksumIn;
+    private volatile long corrupted;
+    private boolean malformed;
+    private volatile long shutdown;
+    private volatile boolean removed;
     private String id;
+    private long idHigh;
+    private long idLow;
+    private int slot = -1;
+    private int stripe;
+    private int stripes = 1;
 
     public MagpieEndpoint(InetSocketAddress address, long lastReceived, long heartbeatInterval, int msgSize) {
-        this.buffer = ByteBuffer.allocateDirect(msgSize);
         this.address = address;
         this.heartbeatTimeout = heartbeatInterval * 3;
         this.lastReceived = lastReceived;
+        this.created = lastReceived;
+        this.maxMessageSize = msgSize;
+    }
+
+    /**
+     * Sending lock guarding buffer and outgoing sequence, held across calls by {@code MagpieClaim}.
+     */
+    public void lock() {
+        lock.lock();
+    }
+
+    public void unlock() {
+        lock.unlock();
     }
 
     public String getId() {
@@ -29,17 +63,93 @@ public class MagpieEndpoint {
     }
 
     public void setId(String id) {
+        this.idHigh = MagpieGreeting.idHigh(id);
+        this.idLow = MagpieGreeting.idLow(id);
         this.id = id;
     }
 
+    public long getIdHigh() {
+        return idHigh;
+    }
+
+    public long getIdLow() {
+        return idLow;
+    }
+
+    /**
+     * @return stripe number of connection, from 0 to {@link #getStripes()} - 1.
+     */
+    public int getStripe() {
+        return stripe;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    public void setStripe(int stripe, int stripes) {
+        this.stripe = stripe;
+        this.stripes = Math.max(stripes, 1);
+    }
+
+    /**
+     * @return slot in {@link MagpieEndpointTable} or -1.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    void setSlot(int slot) {
+        this.slot = slot;
+    }
+
     public InetSocketAddress getAddress() {
         return address;
     }
 
+    /**
+     * @return sending buffer allocated on first use, supposed to be called under endpoint lock.
+     */
     public ByteBuffer getBuffer() {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(maxMessageSize);
+        }
         return buffer;
     }
 
+    /**
+     * @return outgoing queue created when socket did not accept a packet at once, or null.
+     */
+    public MagpieOutbound getOutbound() {
+        return outbound;
+    }
+
+    public void setOutbound(MagpieOutbound outbound) {
+        this.outbound = outbound;
+    }
+
+    /**
+     * @return limiter of data sent to endpoint or null if unlimited.
+     */
+    public MagpieRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void setRateLimiter(MagpieRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * @return monotonic time connection was established, milliseconds.
+     */
+    public long getCreated() {
+        return created;
+    }
+
     public void updateLastReceived(long currentMillis) {
         this.lastReceived = currentMillis;
     }
@@ -67,6 +177,127 @@ public class MagpieEndpoint {
         }
     }
 
+    /**
+     * @return sequence number of the last decoded packet, compact packet takes the next one.
+     */
+    public long decodedSequence() {
+        return decodedSequence;
+    }
+
+    public void updateDecodedSequence(long sequence) {
+        this.decodedSequence = sequence;
+    }
+
+    /**
+     * @return protocol version agreed in greetings, 0 until then.
+     */
+    public short getVersion() {
+        return version;
+    }
+
+    /**
+     * @return capability bits agreed in greetings, see {@link MagpieGreeting}.
+     */
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    public void setProtocol(short version, int capabilities) {
+        this.version = version;
+        this.capabilities = capabilities;
+    }
+
+    public boolean hasCapability(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    /**
+     * @return payload compressor or null if compression is not agreed.
+     */
+    public MagpieCompressor getCompressor() {
+        return compressor;
+    }
+
+    public void setCompressor(MagpieCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * @return checksum for outgoing packets or null if checksum is not agreed.
+     */
+    public CRC32C getChecksumOut() {
+        return checksumOut;
+    }
+
+    public void setChecksumOut(CRC32C checksumOut) {
+        this.checksumOut = checksumOut;
+    }
+
+    /**
+     * @return checksum verifying incoming packets, used from 'poll' thread only.
+     */
+    public CRC32C getChecksumIn() {
+        if (checksumIn == null) {
+            checksumIn = new CRC32C();
+        }
+        return checksumIn;
+    }
+
+    /**
+     * @return number of received packets dropped because of checksum mismatch or malformed payload.
+     */
+    public long getCorrupted() {
+        return corrupted;
+    }
+
+    public void incrementCorrupted() {
+        corrupted++;
+    }
+
+    /**
+     * @return true if received stream lost packet boundaries, see {@link MagpiePacket}.
+     */
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    public void markMalformed() {
+        malformed = true;
+    }
+
+    /**
+     * @return planned shutdown time announced by endpoint heartbeat, 0 if none.
+     */
+    public long getShutdown() {
+        return shutdown;
+    }
+
+    public void setShutdown(long shutdown) {
+        this.shutdown = shutdown;
+    }
+
+    public boolean isDraining() {
+        return shutdown != 0L;
+    }
+
+    /**
+     * @return true if connection was removed by reconfiguration and is only kept open to drain.
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    public void setRemoved() {
+        this.removed = true;
+    }
+
+    /**
+     * @return true if compact packet header is agreed for both directions.
+     */
+    public boolean isCompact() {
+        return (capabilities & MagpieGreeting.CAP_COMPACT_HEADER) != 0;
+    }
+
     /**
      * Increment and get outgoing message sequence.
      */
@@ -0,0 +1,211 @@
+package com.threadcat.magpie.internal;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Endpoint table indexed by socket address and, once greeting is received, by 128-bit endpoint id.
+ * See {@link MagpieSlotTable} for concurrency.
+ *
+ * @author threadcat
+ */
+public class MagpieEndpointTable extends MagpieSlotTable<MagpieEndpoint> {
+    private volatile MagpieLongIntMap byId = MagpieLongIntMap.EMPTY;
+
+    public MagpieEndpointTable() {
+        super(MagpieEndpoint::getAddress);
+    }
+
+    @Override
+    public synchronized int add(MagpieEndpoint endpoint) {
+        int slot = super.add(endpoint);
+        endpoint.setSlot(slot);
+        return slot;
+    }
+
+    /**
+     * Makes endpoint available for lookup by its current id.
+     */
+    public synchronized void bindId(MagpieEndpoint endpoint) {
+        int slot = endpoint.getSlot();
+        if (get(slot) == endpoint) {
+            byId = byId.removeValue(slot).put(idKey(endpoint.getIdHigh(), endpoint.getIdLow()), slot);
+        }
+    }
+
+    /**
+     * Excludes endpoint from lookup by id, it stays available by address.
+     */
+    public synchronized void unbindId(MagpieEndpoint endpoint) {
+        int slot = endpoint.getSlot();
+        if (get(slot) == endpoint) {
+            byId = byId.removeValue(slot);
+        }
+    }
+
+    /**
+     * @return slot of endpoint with specified id or -1.
+     */
+    public int slotOf(long idHigh, long idLow) {
+        MagpieLongIntMap index = byId;
+        long key = idKey(idHigh, idLow);
+        for (int i = index.find(key); i >= 0; i = index.next(i, key)) {
+            int slot = index.valueAt(i);
+            MagpieEndpoint endpoint = get(slot);
+            if (endpoint != null && endpoint.getIdHigh() == idHigh && endpoint.getIdLow() == idLow) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if endpoint in slot has completed greeting and is available by id.
+     */
+    public boolean isBound(int slot) {
+        MagpieEndpoint endpoint = get(slot);
+        if (endpoint == null) {
+            return false;
+        }
+        MagpieLongIntMap index = byId;
+        long key = idKey(endpoint.getIdHigh(), endpoint.getIdLow());
+        for (int i = index.find(key); i >= 0; i = index.next(i, key)) {
+            if (index.valueAt(i) == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks one of connections bound to the same id (striped connections, see {@link #countOf(long, long)})
+     * by key: key belongs to a fixed stripe, key % stripes, and keeps it while other stripes drop or reconnect.
+     * Only keys of a stripe which is down move, spread over live connections ranked by slot.
+     *
+     * @return slot of endpoint with specified id or -1.
+     */
+    public int slotOf(long idHigh, long idLow, long key) {
+        MagpieLongIntMap index = byId;
+        long idKey = idKey(idHigh, idLow);
+        int n = countOf(index, idKey, idHigh, idLow);
+        if (n <= 1) {
+            return slotOf(idHigh, idLow);
+        }
+        for (int i = index.find(idKey); i >= 0; i = index.next(i, idKey)) {
+            MagpieEndpoint endpoint = get(index.valueAt(i));
+            if (endpoint != null && endpoint.getIdHigh() == idHigh && endpoint.getIdLow() == idLow
+                    && endpoint.getStripe() == Math.floorMod(key, (long) endpoint.getStripes())) {
+                return index.valueAt(i);
+            }
+        }
+        int rank = (int) Math.floorMod(key, (long) n);
+        for (int i = index.find(idKey); i >= 0; i = index.next(i, idKey)) {
+            int slot = index.valueAt(i);
+            if (matches(slot, idHigh, idLow) && rankOf(index, idKey, slot, idHigh, idLow) == rank) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of connections bound to id, more than one if connections are striped.
+     */
+    public int countOf(long idHigh, long idLow) {
+        return countOf(byId, idKey(idHigh, idLow), idHigh, idLow);
+    }
+
+    private int countOf(MagpieLongIntMap index, long key, long idHigh, long idLow) {
+        int count = 0;
+        for (int i = index.find(key); i >= 0; i = index.next(i, key)) {
+            if (matches(index.valueAt(i), idHigh, idLow)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of function over connections bound to id, allocation-free for non-capturing function.
+     */
+    public long sum(String id, ToLongFunction<MagpieEndpoint> function) {
+        long idHigh = MagpieGreeting.idHigh(id);
+        long idLow = MagpieGreeting.idLow(id);
+        MagpieLongIntMap index = byId;
+        long key = idKey(idHigh, idLow);
+        long sum = 0L;
+        for (int i = index.find(key); i >= 0; i = index.next(i, key)) {
+            int slot = index.valueAt(i);
+            if (matches(slot, idHigh, idLow)) {
+                sum += function.applyAsLong(get(slot));
+            }
+        }
+        return sum;
+    }
+
+    public void forEach(String id, Consumer<MagpieEndpoint> consumer) {
+        anyMatch(id, endpoint -> {
+            consumer.accept(endpoint);
+            return false;
+        });
+    }
+
+    /**
+     * @return true if any connection bound to id matches predicate.
+     */
+    public boolean anyMatch(String id, Predicate<MagpieEndpoint> predicate) {
+        long idHigh = MagpieGreeting.idHigh(id);
+        long idLow = MagpieGreeting.idLow(id);
+        MagpieLongIntMap index = byId;
+        long key = idKey(idHigh, idLow);
+        for (int i = index.find(key); i >= 0; i = index.next(i, key)) {
+            int slot = index.valueAt(i);
+            if (matches(slot, idHigh, idLow) && predicate.test(get(slot))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses id without allocation, see {@link MagpieGreeting#setId(String)}.
+     *
+     * @return slot of endpoint with specified id or -1.
+     */
+    public int slotOf(String id) {
+        return slotOf(MagpieGreeting.idHigh(id), MagpieGreeting.idLow(id));
+    }
+
+    public MagpieEndpoint get(String id) {
+        return get(slotOf(id));
+    }
+
+    @Override
+    protected void removed(MagpieEndpoint endpoint, int slot) {
+        byId = byId.removeValue(slot);
+    }
+
+    private boolean matches(int slot, long idHigh, long idLow) {
+        MagpieEndpoint endpoint = get(slot);
+        return endpoint != null && endpoint.getIdHigh() == idHigh && endpoint.getIdLow() == idLow;
+    }
+
+    /**
+     * @return number of connections bound to id having lower slot.
+     */
+    private int rankOf(MagpieLongIntMap index, long key, int slot, long idHigh, long idLow) {
+        int rank = 0;
+        for (int i = index.find(key); i >= 0; i = index.next(i, key)) {
+            int other = index.valueAt(i);
+            if (other < slot && matches(other, idHigh, idLow)) {
+                rank++;
+            }
+        }
+        return rank;
+    }
+
+    private static long idKey(long idHigh, long idLow) {
+        return idHigh * 31 + idLow;
+    }
+}
@@ -1,39 +1,91 @@
 package com.threadcat.magpie.internal;
 
 import java.nio.ByteBuffer;
-import java.util.UUID;
-import java.util.regex.Pattern;
 
 /**
  * Authentication message to provide endpoint id (16 bytes).
  * Method {@link #setId(String)} supports 16-character long ASCII and UUID to transform string into two 'longs'.
  * UUID string example: 9a866451-32d2-4ab6-a35c-8ec580f94358
+ * <p>
+ * Since protocol version 1 greeting also advertises supported protocol versions and capability bits,
+ * both sides agree on the highest common version and common capabilities.
+ * Capabilities, and packet flags they enable, take effect only when version 1 is agreed,
+ * a peer limited to version 0 talks the original protocol whatever bits it sends.
+ * Legacy 24-byte greeting is read as version 0 without capabilities.
+ * Initiator of striped connections also tells stripe number and count, 32-byte greeting is read as a single stripe.
  *
  * @author threadcat
  */
 public class MagpieGreeting {
-    // UUID string example: 9a866451-32d2-4ab6-a35c-8ec580f94358
-    private static final Pattern UUID_PATTERN = Pattern.compile("[0-9,a-f]{8}-[0-9,a-f]{4}-[0-9,a-f]{4}-[0-9,a-f]{4}-[0-9,a-f]{12}");
+    public static final short MIN_VERSION = 0;
+    public static final short MAX_VERSION = 1;
+    public static final short CAPABILITIES_VERSION = 1;
+    // Capability bits
+    public static final int CAP_COMPACT_HEADER = 1;
+    public static final int CAP_COMPRESSION = 2;
+    public static final int CAP_CHECKSUM = 4;
+    public static final int CAP_TOPICS = 8;
+    public static final int CAP_RELAY = 16;
+    private static final int LEGACY_LENGTH = 24;
+    private static final int STRIPED_LENGTH = 36;
     public long timestamp;
     // Most significant bits of end point id
     public long idHigh;
     // Least significant bits of end point id
     public long idLow;
+    public short minVersion = MIN_VERSION;
+    public short maxVersion = MAX_VERSION;
+    public int capabilities;
+    public short stripe;
+    public short stripes = 1;
 
     public int toBuffer(ByteBuffer buffer, int offset) {
         buffer.putLong(offset, timestamp);
         buffer.putLong(offset + 8, idLow);
         buffer.putLong(offset + 16, idHigh);
-        return 24;
+        buffer.putShort(offset + 24, minVersion);
+        buffer.putShort(offset + 26, maxVersion);
+        buffer.putInt(offset + 28, capabilities);
+        buffer.putShort(offset + 32, stripe);
+        buffer.putShort(offset + 34, stripes);
+        return 36;
     }
 
     public MagpieGreeting fromBuffer(ByteBuffer buffer, int offset) {
+        return fromBuffer(buffer, offset, STRIPED_LENGTH);
+    }
+
+    public MagpieGreeting fromBuffer(ByteBuffer buffer, int offset, int length) {
         timestamp = buffer.getLong(offset);
         idLow = buffer.getLong(offset + 8);
         idHigh = buffer.getLong(offset + 16);
+        if (length > LEGACY_LENGTH) {
+            minVersion = buffer.getShort(offset + 24);
+            maxVersion = buffer.getShort(offset + 26);
+            capabilities = buffer.getInt(offset + 28);
+        } else {
+            minVersion = 0;
+            maxVersion = 0;
+            capabilities = 0;
+        }
+        if (length >= STRIPED_LENGTH) {
+            stripe = buffer.getShort(offset + 32);
+            stripes = buffer.getShort(offset + 34);
+        } else {
+            stripe = 0;
+            stripes = 1;
+        }
         return this;
     }
 
+    /**
+     * @return the highest protocol version supported by both sides or -1 if there is none.
+     */
+    public short agreeVersion(short localMin, short localMax) {
+        short version = (short) Math.min(localMax, maxVersion);
+        return version >= Math.max(localMin, minVersion) ? version : -1;
+    }
+
     public String getId() {
         StringBuilder sb = new StringBuilder();
         if (isAscii(idLow) && isAscii(idHigh)) {
@@ -51,14 +103,48 @@ public class MagpieGreeting {
     }
 
     public void setId(String id) {
-        if (UUID_PATTERN.matcher(id).matches()) {
-            UUID uuid = UUID.fromString(id);
-            idHigh = uuid.getMostSignificantBits();
-            idLow = uuid.getLeastSignificantBits();
-        } else {
-            idLow = convertToLong(id, 0);
-            idHigh = convertToLong(id, 8);
+        idHigh = idHigh(id);
+        idLow = idLow(id);
+    }
+
+    /**
+     * @return most significant bits of id, parsed without allocation.
+     */
+    public static long idHigh(String id) {
+        return isUuid(id) ? parseHex(id, 0, 18) : convertToLong(id, 8);
+    }
+
+    /**
+     * @return least significant bits of id, parsed without allocation.
+     */
+    public static long idLow(String id) {
+        return isUuid(id) ? parseHex(id, 19, 36) : convertToLong(id, 0);
+    }
+
+    // UUID string example: 9a866451-32d2-4ab6-a35c-8ec580f94358
+    private static boolean isUuid(String id) {
+        if (id.length() != 36) {
+            return false;
         }
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            boolean valid = (i == 8 || i == 13 || i == 18 || i == 23) ? c == '-' : (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(String s, int from, int to) {
+        long bits = 0L;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c != '-') {
+                bits = bits << 4 | Character.digit(c, 16);
+            }
+        }
+        return bits;
     }
 
     private static boolean isAscii(long num) {
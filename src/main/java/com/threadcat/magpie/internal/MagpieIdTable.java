@@ -0,0 +1,91 @@
+package com.threadcat.magpie.internal;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded open addressing table of endpoint ids keyed by the two 'longs' they are written as,
+ * so ids read from frames resolve to cached strings in constant time without allocation.
+ * Entries are never removed. Lookups are lock free, inserts are synchronized:
+ * id string is published after its key, an empty cell ends the probe.
+ *
+ * @author threadcat
+ */
+public class MagpieIdTable {
+    private final AtomicReferenceArray<String> ids;
+    private final long[] idHighs;
+    private final long[] idLows;
+    private final int capacity;
+    private final int mask;
+    private final MagpieGreeting scratch = new MagpieGreeting();
+    private int size;
+
+    /**
+     * @param capacity max number of ids, cells are kept at least twice as many.
+     */
+    public MagpieIdTable(int capacity) {
+        int cells = Integer.highestOneBit(Math.max(capacity * 2 - 1, 1)) << 1;
+        this.ids = new AtomicReferenceArray<>(cells);
+        this.idHighs = new long[cells];
+        this.idLows = new long[cells];
+        this.capacity = capacity;
+        this.mask = cells - 1;
+    }
+
+    /**
+     * @return cell index of id, added if absent, -1 if table is full.
+     */
+    public int indexOf(long idHigh, long idLow) {
+        int i = find(idHigh, idLow);
+        return i >= 0 ? i : insert(idHigh, idLow);
+    }
+
+    /**
+     * @return number of cells, indexes are below it.
+     */
+    public int cells() {
+        return mask + 1;
+    }
+
+    public String id(int index) {
+        return ids.get(index);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private int find(long idHigh, long idLow) {
+        for (int i = cell(idHigh, idLow); ; i = (i + 1) & mask) {
+            if (ids.get(i) == null) {
+                return -1;
+            }
+            if (idHighs[i] == idHigh && idLows[i] == idLow) {
+                return i;
+            }
+        }
+    }
+
+    private synchronized int insert(long idHigh, long idLow) {
+        int i = cell(idHigh, idLow);
+        for (; ids.get(i) != null; i = (i + 1) & mask) {
+            if (idHighs[i] == idHigh && idLows[i] == idLow) {
+                return i; // Inserted by another thread in between
+            }
+        }
+        if (size == capacity) {
+            return -1;
+        }
+        idHighs[i] = idHigh;
+        idLows[i] = idLow;
+        scratch.idHigh = idHigh;
+        scratch.idLow = idLow;
+        ids.set(i, scratch.getId());
+        size++;
+        return i;
+    }
+
+    private int cell(long idHigh, long idLow) {
+        long h = (idHigh * 31 + idLow) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
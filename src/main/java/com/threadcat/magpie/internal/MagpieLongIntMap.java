@@ -0,0 +1,105 @@
+package com.threadcat.magpie.internal;
+
+import java.util.Arrays;
+
+/**
+ * Immutable open addressing map of primitive 'long' keys to 'int' values, no boxing.
+ * Updates return a new copy, so a map published through volatile field is safe to read from any thread without locks.
+ * Equal keys are allowed (hash collisions of the original objects), lookup iterates them:
+ * <p>
+ * > for (int i = map.find(key); i >= 0; i = map.next(i, key)) {
+ * >     value = map.valueAt(i);
+ * > }
+ *
+ * @author threadcat
+ */
+public class MagpieLongIntMap {
+    public static final MagpieLongIntMap EMPTY = new MagpieLongIntMap(8);
+    private final long[] keys;
+    private final int[] values;
+    private final int mask;
+    private int size;
+
+    private MagpieLongIntMap(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(values, -1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return cell index of the first entry with specified key or -1.
+     */
+    public int find(long key) {
+        return scan(cell(key), key);
+    }
+
+    /**
+     * @return cell index of the next entry with the same key after specified cell or -1.
+     */
+    public int next(int index, long key) {
+        return scan((index + 1) & mask, key);
+    }
+
+    public int valueAt(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return copy with added entry, load factor kept below 0.5.
+     */
+    public MagpieLongIntMap put(long key, int value) {
+        int capacity = keys.length;
+        while ((size + 1) * 2 > capacity) {
+            capacity <<= 1;
+        }
+        MagpieLongIntMap map = copy(capacity, -1);
+        map.insert(key, value);
+        return map;
+    }
+
+    /**
+     * @return copy without entries having specified value.
+     */
+    public MagpieLongIntMap removeValue(int value) {
+        return copy(keys.length, value);
+    }
+
+    private MagpieLongIntMap copy(int capacity, int skipValue) {
+        MagpieLongIntMap map = new MagpieLongIntMap(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] >= 0 && values[i] != skipValue) {
+                map.insert(keys[i], values[i]);
+            }
+        }
+        return map;
+    }
+
+    private void insert(long key, int value) {
+        int i = cell(key);
+        while (values[i] >= 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    private int scan(int i, long key) {
+        for (; values[i] >= 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int cell(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,210 @@
+package com.threadcat.magpie.internal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Outgoing frames waiting for socket room, in two priority lanes: urgent frames (heartbeats, control,
+ * latency-critical data) are flushed ahead of queued bulk frames. Packet partially written to socket
+ * is kept aside and completed first, so frames never interleave on the wire.
+ * Conflated frames, see {@link MagpieConflation}, take turns with bulk frames.
+ * <p>
+ * Frames are queued as payloads {type, length, payload}, packet header and sequence are written at flush,
+ * so sequence numbers follow the order frames leave, whichever lane they came from.
+ * Used under endpoint lock.
+ *
+ * @author threadcat
+ */
+public class MagpieOutbound {
+    public static final int URGENT = 0;
+    public static final int BULK = 1;
+    public static final int CONFLATED = 2;
+    private static final int FRAME_HEADER = 6;
+    private final Lane urgent;
+    private final Lane bulk;
+    private final ByteBuffer inFlight;
+    private final ByteBuffer packet;
+    private final int conflationKeys;
+    private final int maxMessageSize;
+    private MagpieConflation conflation;
+    private boolean conflationTurn;
+    private volatile boolean throttled;
+    private short type;
+
+    /**
+     * @param laneSize       bytes queued per lane.
+     * @param conflationKeys max number of distinct keys queued for conflation.
+     * @param maxMessageSize max packet size.
+     */
+    public MagpieOutbound(int laneSize, int conflationKeys, int maxMessageSize) {
+        this.urgent = new Lane(laneSize);
+        this.bulk = new Lane(laneSize);
+        this.inFlight = ByteBuffer.allocateDirect(maxMessageSize).flip();
+        this.packet = ByteBuffer.allocateDirect(maxMessageSize);
+        this.conflationKeys = conflationKeys;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Conflated payload replaces queued one having the same key, conflation queue is created on first use.
+     *
+     * @param lane {@link #URGENT}, {@link #BULK} or {@link #CONFLATED}.
+     * @param key  conflation key, ignored by other lanes.
+     * @return false if lane has no room or all conflation keys are taken.
+     */
+    public boolean offer(int lane, long key, short type, ByteBuffer src, int offset, int length) {
+        switch (lane) {
+            case URGENT:
+                return urgent.offer(type, src, offset, length);
+            case CONFLATED:
+                if (conflation == null) {
+                    conflation = new MagpieConflation(conflationKeys, maxMessageSize - MagpiePacket.MAX_OVERHEAD);
+                }
+                return conflation.offer(key, type, src, offset, length);
+            default:
+                return bulk.offer(type, src, offset, length);
+        }
+    }
+
+    /**
+     * Copies the next payload, urgent lane first, then conflated and bulk ones in turn.
+     *
+     * @return payload length or -1 if nothing is queued, see {@link #getType()}.
+     */
+    public int poll(ByteBuffer dst, int offset) {
+        return poll(dst, offset, null, 0L);
+    }
+
+    /**
+     * Same as {@link #poll(ByteBuffer, int)} with conflated and bulk payloads paced by rate limiter,
+     * urgent ones are not counted.
+     *
+     * @return payload length or -1 if nothing is queued or rate limit is reached, see {@link #isThrottled()}.
+     */
+    public int poll(ByteBuffer dst, int offset, MagpieRateLimiter limiter, long nanos) {
+        throttled = false;
+        if (!urgent.isEmpty()) {
+            return urgent.poll(dst, offset);
+        }
+        boolean conflated = conflation != null && !conflation.isEmpty();
+        if (conflated && (conflationTurn || bulk.isEmpty())) {
+            if (limiter != null && !limiter.tryAcquire(nanos, conflation.peekLength())) {
+                throttled = true;
+                return -1;
+            }
+            conflationTurn = false;
+            int length = conflation.poll(dst, offset);
+            type = conflation.getType();
+            return length;
+        }
+        if (limiter != null && !bulk.isEmpty() && !limiter.tryAcquire(nanos, bulk.peekLength())) {
+            throttled = true;
+            return -1;
+        }
+        conflationTurn = conflated;
+        return bulk.poll(dst, offset);
+    }
+
+    /**
+     * @return true if the last poll stopped on rate limit leaving payloads queued.
+     */
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    /**
+     * @return type of payload returned by the last {@link #poll(ByteBuffer, int)}.
+     */
+    public short getType() {
+        return type;
+    }
+
+    /**
+     * @return buffer queued payloads are polled into and sent from, so flushing never overwrites
+     * payload which sender has in endpoint buffer.
+     */
+    public ByteBuffer getPacket() {
+        return packet;
+    }
+
+    /**
+     * @return buffer holding unwritten remainder of the last packet, ready for channel write.
+     */
+    public ByteBuffer getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Keeps unwritten remainder of packet.
+     */
+    public void setInFlight(ByteBuffer packet) {
+        inFlight.clear();
+        inFlight.put(packet).flip();
+    }
+
+    public boolean isEmpty() {
+        return !inFlight.hasRemaining() && urgent.isEmpty() && bulk.isEmpty()
+                && (conflation == null || conflation.isEmpty());
+    }
+
+    public int getQueuedBytes() {
+        return inFlight.remaining() + urgent.buffer.position() - urgent.read + bulk.buffer.position() - bulk.read
+                + (conflation != null ? conflation.getQueuedBytes() : 0);
+    }
+
+    /**
+     * @return number of conflated payloads replaced by newer ones before being sent.
+     */
+    public long getConflated() {
+        return conflation != null ? conflation.getReplaced() : 0L;
+    }
+
+    private class Lane {
+        private final ByteBuffer buffer;
+        private int read;
+
+        Lane(int size) {
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        boolean isEmpty() {
+            return read == buffer.position();
+        }
+
+        int peekLength() {
+            return buffer.getInt(read + 2);
+        }
+
+        boolean offer(short type, ByteBuffer src, int offset, int length) {
+            if (buffer.remaining() < FRAME_HEADER + length && read > 0) {
+                // Moving unread frames to the start
+                buffer.flip().position(read);
+                buffer.compact();
+                read = 0;
+            }
+            if (buffer.remaining() < FRAME_HEADER + length) {
+                return false;
+            }
+            int position = buffer.position();
+            buffer.putShort(position, type);
+            buffer.putInt(position + 2, length);
+            MagpieBuffers.copy(src, offset, buffer, position + FRAME_HEADER, length);
+            buffer.position(position + FRAME_HEADER + length);
+            return true;
+        }
+
+        int poll(ByteBuffer dst, int offset) {
+            if (isEmpty()) {
+                return -1;
+            }
+            type = buffer.getShort(read);
+            int length = buffer.getInt(read + 2);
+            MagpieBuffers.copy(buffer, read + FRAME_HEADER, dst, offset, length);
+            read += FRAME_HEADER + length;
+            if (read == buffer.position()) {
+                read = 0;
+                buffer.clear();
+            }
+            return length;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.threadcat.magpie.MagpieDataHandler;
 import com.threadcat.magpie.MagpieDataTransformer;
 
 import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
 
@@ -13,21 +14,67 @@ import static java.nio.charset.StandardCharsets.US_ASCII;
  * |Size (bytes)| Name
  * +------------+--------------------------------------------------------------+
  * |      6     | Marker
- * |      2     | Version
+ * |      2     | Version (low byte), packet flags (high byte)
  * |      4     | Packet length including start marker and payload
  * |      4     | Message type
  * |      8     | Sequence number
  * |      N     | Payload
+ * <p>
+ * Compact packet layout (used once both sides agreed {@link MagpieGreeting#CAP_COMPACT_HEADER} in greetings):
+ * <p>
+ * |Size (bytes)| Name
+ * +------------+--------------------------------------------------------------+
+ * |      1     | Tag 0x80 with packet flags in low 4 bits, never equal to the first marker byte
+ * |    1..5    | Payload length, varint
+ * |    1..5    | Message type, zigzag varint
+ * |      N     | Payload
+ * <p>
+ * Compact packet carries no sequence: it is the previous packet sequence plus one, packets dropped as corrupted
+ * count too, so a lost packet shows up as a gap. Compact packet has no marker either, a malformed compact header
+ * leaves no way to find the next packet: endpoint is marked malformed and the connection is to be closed.
+ * Both layouts start payload at the same buffer offset on writing, compact header is aligned to the right.
+ * Flag {@link #FLAG_COMPRESSED} marks payload compressed by {@link MagpieCompressor}.
+ * Flag {@link #FLAG_CHECKSUM} marks 4-byte CRC32C trailer calculated over header and payload,
+ * full header packet length includes the trailer, compact header payload length does not.
  *
  * @author threadcat
  */
 public class MagpiePacket {
+    public static final int FLAG_COMPRESSED = 1;
+    public static final int FLAG_CHECKSUM = 2;
+    private static final int CHECKSUM_LENGTH = 4;
     private static final byte[] MAGPIE = "MAGPIE".getBytes(US_ASCII);
     private static final int IDX_VERSION = MAGPIE.length;
     private static final int IDX_LENGTH = IDX_VERSION + 2;
     private static final int IDX_TYPE = IDX_LENGTH + 4;
     private static final int IDX_SEQUENCE = IDX_TYPE + 4;
     private static final int IDX_DATA = IDX_SEQUENCE + 8;
+    // Payload starts at the same index in both layouts, compact header is written backwards from it
+    public static final int PAYLOAD_OFFSET = IDX_DATA;
+    public static final int MAX_OVERHEAD = IDX_DATA + CHECKSUM_LENGTH;
+    private static final int COMPACT_TAG = 0x80;
+    private static final int COMPACT_TAG_MASK = 0xf0;
+
+    /**
+     * Moves next packet start to the beginning of buffer skipping any garbage.
+     * Once endpoint agreed compact header, buffer must start with a compact tag or a full header marker,
+     * anything else marks endpoint malformed as there is no marker to resynchronize on.
+     *
+     * @return true if buffer starts with a packet header.
+     */
+    public static boolean lookupHeader(ByteBuffer buffer, MagpieEndpoint endpoint) {
+        if (endpoint.isCompact() && buffer.position() > 0) {
+            byte first = buffer.get(0);
+            if (isCompactTag(first)) {
+                return true;
+            }
+            if (first != MAGPIE[0]) {
+                endpoint.markMalformed();
+                return false;
+            }
+        }
+        return lookupHeader(buffer);
+    }
 
     public static boolean lookupHeader(ByteBuffer buffer) {
         int n = 0;
@@ -50,48 +97,279 @@ public class MagpiePacket {
     }
 
     /**
+     * Writes packet with full header, buffer is left ready for channel write.
+     *
      * @return Returns total number of bytes written to byte buffer (packet length)
      */
     public static int writePacket(long sequence, int type, ByteBuffer wrBuffer, MagpieDataTransformer transformer) {
+        return writePacket((short) 0, sequence, type, wrBuffer, transformer, null, null);
+    }
+
+    /**
+     * @param compressor payload compressor or null if compression is not agreed.
+     * @param checksum   trailer checksum or null if checksum is not agreed.
+     */
+    public static int writePacket(short version, long sequence, int type, ByteBuffer wrBuffer,
+                                  MagpieDataTransformer transformer, MagpieCompressor compressor, CRC32C checksum) {
+        wrBuffer.clear();
+        return writePacket(version, sequence, type, wrBuffer, transformer.write(wrBuffer, IDX_DATA), compressor, checksum);
+    }
+
+    /**
+     * Completes packet with payload already written at {@link #PAYLOAD_OFFSET}.
+     */
+    public static int writePacket(short version, long sequence, int type, ByteBuffer wrBuffer,
+                                  int payloadLength, MagpieCompressor compressor, CRC32C checksum) {
         wrBuffer.clear();
+        int flags = 0;
+        if (compressor != null) {
+            int compressed = compressor.compress(wrBuffer, IDX_DATA, payloadLength);
+            if (compressed > 0) {
+                payloadLength = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+        if (checksum != null) {
+            flags |= FLAG_CHECKSUM;
+        }
         wrBuffer.put(0, MAGPIE);
-        wrBuffer.putShort(IDX_VERSION, (short) 0);
+        wrBuffer.putShort(IDX_VERSION, (short) (version & 0xff | flags << 8));
         wrBuffer.putInt(IDX_TYPE, type);
         wrBuffer.putLong(IDX_SEQUENCE, sequence);
-        int length = IDX_DATA + transformer.write(wrBuffer, IDX_DATA);
-        wrBuffer.putInt(IDX_LENGTH, length)
-                .position(length)
-                .flip();
+        int end = IDX_DATA + payloadLength;
+        int length = checksum != null ? end + CHECKSUM_LENGTH : end;
+        wrBuffer.putInt(IDX_LENGTH, length);
+        if (checksum != null) {
+            wrBuffer.putInt(end, checksum(checksum, wrBuffer, 0, end));
+        }
+        wrBuffer.limit(length).position(0);
         return length;
     }
 
     /**
+     * Writes packet with compact header, buffer is left ready for channel write (position at header start).
+     * Sequence is implicit, packets must be written in sequence order.
+     *
+     * @param compressor payload compressor or null if compression is not agreed.
+     * @param checksum   trailer checksum or null if checksum is not agreed.
+     * @return Returns total number of bytes written to byte buffer (packet length)
+     */
+    public static int writeCompactPacket(int type, ByteBuffer wrBuffer, MagpieDataTransformer transformer,
+                                         MagpieCompressor compressor, CRC32C checksum) {
+        wrBuffer.clear();
+        return writeCompactPacket(type, wrBuffer, transformer.write(wrBuffer, IDX_DATA), compressor, checksum);
+    }
+
+    /**
+     * Completes compact packet with payload already written at {@link #PAYLOAD_OFFSET}.
+     */
+    public static int writeCompactPacket(int type, ByteBuffer wrBuffer, int payloadLength,
+                                         MagpieCompressor compressor, CRC32C checksum) {
+        wrBuffer.clear();
+        int flags = 0;
+        if (compressor != null) {
+            int compressed = compressor.compress(wrBuffer, IDX_DATA, payloadLength);
+            if (compressed > 0) {
+                payloadLength = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+        if (checksum != null) {
+            flags |= FLAG_CHECKSUM;
+        }
+        long zigzagType = zigzag(type) & 0xffffffffL;
+        int start = IDX_DATA - 1 - varintSize(payloadLength) - varintSize(zigzagType);
+        wrBuffer.put(start, (byte) (COMPACT_TAG | flags));
+        int i = putVarint(wrBuffer, start + 1, payloadLength);
+        putVarint(wrBuffer, i, zigzagType);
+        int end = IDX_DATA + payloadLength;
+        if (checksum != null) {
+            wrBuffer.putInt(end, checksum(checksum, wrBuffer, start, end));
+            end += CHECKSUM_LENGTH;
+        }
+        wrBuffer.limit(end).position(start);
+        return end - start;
+    }
+
+    /**
+     * Reads a single packet of either layout and updates endpoint decoding state.
+     *
      * @return true if buffer has more messages
      */
-    public static boolean readPacket(ByteBuffer rdBuffer, MagpieDataHandler dataHandler) {
+    public static boolean readPacket(ByteBuffer rdBuffer, MagpieEndpoint endpoint, MagpieDataHandler dataHandler) {
+        if (rdBuffer.position() > 0 && isCompactTag(rdBuffer.get(0))) {
+            return readCompactPacket(rdBuffer, endpoint, dataHandler);
+        }
         if (rdBuffer.position() < IDX_DATA) {
             return false;
         }
         int packetLength = rdBuffer.getInt(IDX_LENGTH);
-        if (packetLength > rdBuffer.capacity()) {
+        if (packetLength > maxPacketLength(rdBuffer, endpoint) || packetLength < IDX_DATA) {
             rdBuffer.flip()
                     .position(IDX_VERSION)
                     .compact();
             return rdBuffer.position() > 0;
         }
         if (rdBuffer.position() >= packetLength) {
+            int flags = rdBuffer.get(IDX_VERSION) & 0xff; // High byte of big-endian version field
             int type = rdBuffer.getInt(IDX_TYPE);
             long sequence = rdBuffer.getLong(IDX_SEQUENCE);
             int payloadLength = packetLength - IDX_DATA;
+            if ((flags & FLAG_CHECKSUM) != 0) {
+                payloadLength -= CHECKSUM_LENGTH;
+            }
             int position = rdBuffer.position();
-            dataHandler.process(null, sequence, type, rdBuffer, IDX_DATA, payloadLength);
+            if (payloadLength >= 0 && isIntact(flags, rdBuffer, IDX_DATA + payloadLength, endpoint)) {
+                endpoint.updateDecodedSequence(sequence);
+                process(flags, sequence, type, rdBuffer, IDX_DATA, payloadLength, endpoint, dataHandler);
+            } else {
+                endpoint.incrementCorrupted();
+            }
             rdBuffer.position(position)
                     .flip()
                     .position(packetLength)
                     .compact();
-            return rdBuffer.position() >= IDX_DATA;
+            return rdBuffer.position() > 0;
         } else {
             return false;
         }
     }
-}
\ No newline at end of file
+
+    private static boolean readCompactPacket(ByteBuffer rdBuffer, MagpieEndpoint endpoint, MagpieDataHandler dataHandler) {
+        int end = rdBuffer.position();
+        int lengthIdx = 1;
+        int typeIdx = varintEnd(rdBuffer, lengthIdx, end, 5);
+        int payloadIdx = typeIdx > 0 ? varintEnd(rdBuffer, typeIdx, end, 5) : typeIdx;
+        if (payloadIdx == 0) {
+            return false; // Incomplete header
+        }
+        long payloadLength = payloadIdx > 0 ? getVarint(rdBuffer, lengthIdx) : -1L;
+        if (payloadLength < 0 || payloadIdx + payloadLength > maxPacketLength(rdBuffer, endpoint)) {
+            // No marker to resynchronize on, whatever follows cannot be trusted
+            endpoint.incrementCorrupted();
+            endpoint.markMalformed();
+            rdBuffer.clear();
+            return false;
+        }
+        int flags = rdBuffer.get(0) & ~COMPACT_TAG_MASK;
+        int packetLength = payloadIdx + (int) payloadLength;
+        if ((flags & FLAG_CHECKSUM) != 0) {
+            packetLength += CHECKSUM_LENGTH;
+        }
+        if (end < packetLength) {
+            return false;
+        }
+        // Corrupted packet consumes its sequence too, so the loss is seen as a gap
+        long sequence = endpoint.decodedSequence() + 1;
+        endpoint.updateDecodedSequence(sequence);
+        if (isIntact(flags, rdBuffer, payloadIdx + (int) payloadLength, endpoint)) {
+            int type = (int) unzigzag(getVarint(rdBuffer, typeIdx));
+            process(flags, sequence, type, rdBuffer, payloadIdx, (int) payloadLength, endpoint, dataHandler);
+        } else {
+            endpoint.incrementCorrupted();
+        }
+        rdBuffer.position(end)
+                .flip()
+                .position(packetLength)
+                .compact();
+        return rdBuffer.position() > 0;
+    }
+
+    /**
+     * Buffer of not yet authenticated connection might be smaller than max message size,
+     * longer packet is not treated as garbage, the buffer grows after authentication.
+     */
+    private static int maxPacketLength(ByteBuffer rdBuffer, MagpieEndpoint endpoint) {
+        return Math.max(rdBuffer.capacity(), endpoint.getMaxMessageSize());
+    }
+
+    /**
+     * Verifies checksum trailer at specified index, if packet has one, before any header field is trusted.
+     * Packet starts at buffer index 0.
+     */
+    private static boolean isIntact(int flags, ByteBuffer buffer, int end, MagpieEndpoint endpoint) {
+        return (flags & FLAG_CHECKSUM) == 0 || buffer.getInt(end) == checksum(endpoint.getChecksumIn(), buffer, 0, end);
+    }
+
+    /**
+     * Decompresses payload if needed, then hands the payload over to data handler.
+     * Packet is counted as corrupted and dropped on failure.
+     */
+    private static void process(int flags, long sequence, int type, ByteBuffer buffer, int offset, int length,
+                                MagpieEndpoint endpoint, MagpieDataHandler dataHandler) {
+        if ((flags & FLAG_COMPRESSED) == 0) {
+            dataHandler.process(null, sequence, type, buffer, offset, length);
+            return;
+        }
+        MagpieCompressor compressor = endpoint.getCompressor();
+        int n = compressor != null ? compressor.decompress(buffer, offset, length) : -1;
+        if (n >= 0) {
+            dataHandler.process(null, sequence, type, compressor.getBuffer(), 0, n);
+        } else {
+            endpoint.incrementCorrupted();
+        }
+    }
+
+    /**
+     * Calculates CRC32C of buffer range in place (intrinsic for direct buffers), buffer position and limit are kept.
+     */
+    private static int checksum(CRC32C checksum, ByteBuffer buffer, int start, int end) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        checksum.reset();
+        checksum.update(buffer.limit(end).position(start));
+        buffer.limit(limit).position(position);
+        return (int) checksum.getValue();
+    }
+
+    private static boolean isCompactTag(byte b) {
+        return (b & COMPACT_TAG_MASK) == COMPACT_TAG;
+    }
+
+    /**
+     * @return index following varint, 0 if varint is incomplete or -1 if it is longer than allowed.
+     */
+    private static int varintEnd(ByteBuffer buffer, int index, int end, int maxSize) {
+        for (int i = index; i < end; i++) {
+            if (i - index == maxSize) {
+                return -1;
+            }
+            if ((buffer.get(i) & 0x80) == 0) {
+                return i + 1;
+            }
+        }
+        return end - index >= maxSize ? -1 : 0;
+    }
+
+    private static long getVarint(ByteBuffer buffer, int index) {
+        long value = 0L;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(index++);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int putVarint(ByteBuffer buffer, int index, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put(index++, (byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(index++, (byte) value);
+        return index;
+    }
+
+    private static int varintSize(long value) {
+        return value == 0 ? 1 : (63 - Long.numberOfLeadingZeros(value)) / 7 + 1;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,128 @@
+package com.threadcat.magpie.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets limiting messages and bytes per second, implemented as generic cell rate algorithm:
+ * each bucket keeps only theoretical arrival time updated by CAS, so senders never lock and nothing refills on timer.
+ * Message conforms when theoretical arrival time is not later than now plus burst tolerance,
+ * then theoretical arrival time moves by message cost. Idle bucket always admits one message, even a large one.
+ *
+ * @author threadcat
+ */
+public class MagpieRateLimiter {
+    private final Bucket messages;
+    private final Bucket bytes;
+
+    /**
+     * @param messagesPerSecond message rate, 0 - unlimited.
+     * @param bytesPerSecond    payload byte rate, 0 - unlimited.
+     * @param burstNanos        burst tolerance, time of traffic at full rate sent at once.
+     * @param nanos             current monotonic time, buckets start full.
+     */
+    public MagpieRateLimiter(long messagesPerSecond, long bytesPerSecond, long burstNanos, long nanos) {
+        this.messages = messagesPerSecond > 0 ? new Bucket(1_000_000_000.0 / messagesPerSecond, burstNanos, nanos) : null;
+        this.bytes = bytesPerSecond > 0 ? new Bucket(1_000_000_000.0 / bytesPerSecond, burstNanos, nanos) : null;
+    }
+
+    /**
+     * Takes one message and specified number of bytes from buckets, nothing is taken if either bucket is short.
+     */
+    public boolean tryAcquire(long nanos, int length) {
+        long previous = 0L;
+        if (messages != null && (previous = messages.tryAcquire(nanos, 1)) == Long.MIN_VALUE) {
+            return false;
+        }
+        if (bytes != null && bytes.tryAcquire(nanos, length) == Long.MIN_VALUE) {
+            if (messages != null) {
+                messages.release(previous, nanos, 1);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back message and bytes taken by {@link #tryAcquire(long, int)} for data which was not sent after all.
+     */
+    public void release(int length) {
+        if (messages != null) {
+            messages.release(1);
+        }
+        if (bytes != null) {
+            bytes.release(length);
+        }
+    }
+
+    /**
+     * @return nanoseconds until buckets admit a message, 0 if now.
+     */
+    public long getDelayNanos(long nanos) {
+        long delay = messages != null ? messages.delay(nanos) : 0L;
+        return bytes != null ? Math.max(delay, bytes.delay(nanos)) : delay;
+    }
+
+    /**
+     * @return messages which can be sent at once, Long.MAX_VALUE if unlimited.
+     */
+    public long getRemainingMessages(long nanos) {
+        return messages != null ? messages.remaining(nanos) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return payload bytes which can be sent at once, Long.MAX_VALUE if unlimited.
+     */
+    public long getRemainingBytes(long nanos) {
+        return bytes != null ? bytes.remaining(nanos) : Long.MAX_VALUE;
+    }
+
+    private static class Bucket {
+        private final AtomicLong tat;
+        private final double interval;
+        private final long tolerance;
+
+        Bucket(double interval, long tolerance, long nanos) {
+            this.tat = new AtomicLong(nanos);
+            this.interval = interval;
+            this.tolerance = tolerance;
+        }
+
+        /**
+         * @return previous theoretical arrival time or Long.MIN_VALUE if not conforming (never a real time).
+         */
+        long tryAcquire(long nanos, int cost) {
+            for (; ; ) {
+                long current = tat.get();
+                if (current - nanos > tolerance) {
+                    return Long.MIN_VALUE;
+                }
+                long next = Math.max(current, nanos) + (long) (cost * interval);
+                if (tat.compareAndSet(current, next)) {
+                    return current;
+                }
+            }
+        }
+
+        /**
+         * Gives back cost taken by {@link #tryAcquire(long, int)}, exactly if nobody acquired in between.
+         */
+        void release(long previous, long nanos, int cost) {
+            long taken = Math.max(previous, nanos) + (long) (cost * interval);
+            if (!tat.compareAndSet(taken, previous)) {
+                tat.addAndGet(-(long) (cost * interval));
+            }
+        }
+
+        void release(int cost) {
+            tat.addAndGet(-(long) (cost * interval));
+        }
+
+        long delay(long nanos) {
+            return Math.max(0L, tat.get() - nanos - tolerance);
+        }
+
+        long remaining(long nanos) {
+            return Math.max(0L, (long) Math.floor((nanos + tolerance - Math.max(tat.get(), nanos)) / interval) + 1L);
+        }
+    }
+}
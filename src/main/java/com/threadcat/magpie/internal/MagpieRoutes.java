@@ -0,0 +1,162 @@
+package com.threadcat.magpie.internal;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Endpoints reachable through relay hubs: slots of hub connections indexed by endpoint id.
+ * Route control message payload is {add flag, id, id, ...}, id is written as two 'longs' like in greeting.
+ * Relay frame payload starts with {@link #RELAY_HEADER} bytes {id, sequence, type}: target id on the way to hub,
+ * source id on the way from hub. Sequence is counted per source and target pair, hub forwards it intact,
+ * so target detects frames lost or reordered on the way. Counters restart when the last route to the other side
+ * is removed, and at sequence 1 sent by a restarted source.
+ * <p>
+ * Hub arrays are copied on write and ids read from frames are cached in a bounded table,
+ * so neither sending nor receiving allocates.
+ *
+ * @author threadcat
+ */
+public class MagpieRoutes {
+    public static final byte REMOVE = 0;
+    public static final byte ADD = 1;
+    public static final int ID_LENGTH = 16;
+    public static final int IDX_SEQUENCE = 16;
+    public static final int IDX_TYPE = 24;
+    public static final int RELAY_HEADER = 26;
+    private static final int[] NONE = new int[0];
+    private final ConcurrentMap<String, int[]> routes = new ConcurrentHashMap<>();
+    private final MagpieIdTable ids;
+    // Indexed by id table cell: last sequence relayed to target, guarded by hub lock, and received from source
+    private final AtomicLongArray sequencesOut;
+    private final long[] sequencesIn;
+
+    /**
+     * @param maxIds max distinct ids of routes and relayed sources, see {@link MagpieIdTable}.
+     */
+    public MagpieRoutes(int maxIds) {
+        this.ids = new MagpieIdTable(maxIds);
+        this.sequencesOut = new AtomicLongArray(ids.cells());
+        this.sequencesIn = new long[ids.cells()];
+    }
+
+    /**
+     * @return slots of hubs relaying to endpoint, not to be modified.
+     */
+    public int[] hubs(String id) {
+        return routes.getOrDefault(id, NONE);
+    }
+
+    public boolean isEmpty() {
+        return routes.isEmpty();
+    }
+
+    /**
+     * @return true if endpoint is reachable through hub in specified slot.
+     */
+    public boolean isRouted(String id, int slot) {
+        for (int s : hubs(id)) {
+            if (s == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies route control message received from hub in specified slot, ids over the table capacity are skipped.
+     *
+     * @return number of skipped ids.
+     */
+    public int processRoutes(int slot, ByteBuffer buffer, int offset, int length) {
+        boolean add = buffer.get(offset) == ADD;
+        int skipped = 0;
+        for (int i = offset + 1, end = offset + length; i + ID_LENGTH <= end; i += ID_LENGTH) {
+            int index = index(buffer, i);
+            if (index < 0) {
+                skipped++;
+            } else if (routes.compute(ids.id(index), (k, slots) -> add ? MagpieArrays.add(slots, slot) : MagpieArrays.remove(slots, slot)) == null) {
+                resetSequences(index);
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Drops all routes through disconnected hub.
+     */
+    public void removeHub(int slot) {
+        for (String id : routes.keySet()) {
+            if (routes.computeIfPresent(id, (k, slots) -> MagpieArrays.remove(slots, slot)) == null) {
+                resetSequences(index(id));
+            }
+        }
+    }
+
+    /**
+     * @return id table index of id written at specified offset, -1 if table is full.
+     */
+    public int index(ByteBuffer buffer, int offset) {
+        return ids.indexOf(buffer.getLong(offset + 8), buffer.getLong(offset));
+    }
+
+    /**
+     * @return id table index, -1 if table is full.
+     */
+    public int index(String id) {
+        return ids.indexOf(MagpieGreeting.idHigh(id), MagpieGreeting.idLow(id));
+    }
+
+    /**
+     * @return cached id string.
+     */
+    public String id(int index) {
+        return ids.id(index);
+    }
+
+    /**
+     * @return sequence of the next frame relayed to target, taken by {@link #commitSequence(int, long)} once sent.
+     */
+    public long nextSequence(int index) {
+        return sequencesOut.get(index) + 1;
+    }
+
+    public void commitSequence(int index, long sequence) {
+        sequencesOut.set(index, sequence);
+    }
+
+    /**
+     * Verifies sequence of frame relayed from source like {@link MagpieEndpoint#verifySequence(long)},
+     * but a gap does not stop the source: later frames are accepted after it is reported. Poll thread only.
+     *
+     * @return 0 if in order, number of frames missed before this one, negative if frame is late or repeated.
+     */
+    public long verifySequence(int index, long sequence) {
+        long gap = sequence == 1L ? 0L : sequence - sequencesIn[index] - 1;
+        if (gap >= 0L) {
+            sequencesIn[index] = sequence;
+        }
+        return gap;
+    }
+
+    public long lastSequence(int index) {
+        return sequencesIn[index];
+    }
+
+    private void resetSequences(int index) {
+        if (index >= 0) {
+            sequencesOut.set(index, 0L);
+            sequencesIn[index] = 0L;
+        }
+    }
+
+    /**
+     * @return number of bytes written.
+     */
+    public static int writeId(ByteBuffer buffer, int offset, long idHigh, long idLow) {
+        buffer.putLong(offset, idLow);
+        buffer.putLong(offset + 8, idHigh);
+        return ID_LENGTH;
+    }
+}
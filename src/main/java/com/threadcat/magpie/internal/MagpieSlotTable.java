@@ -0,0 +1,127 @@
+package com.threadcat.magpie.internal;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Connection table assigning every entry an 'int' slot, indexed by socket address through {@link MagpieLongIntMap}.
+ * Slot array and index are copy-on-write snapshots: updates are serialized, reads from any thread take no locks.
+ * Slot of removed entry is reused, so holders of a slot should verify the entry they get.
+ *
+ * @author threadcat
+ */
+public class MagpieSlotTable<T> {
+    private static final Object[] NO_SLOTS = new Object[0];
+    private final Function<T, InetSocketAddress> addressOf;
+    private volatile Object[] slots = NO_SLOTS;
+    private volatile MagpieLongIntMap byAddress = MagpieLongIntMap.EMPTY;
+
+    public MagpieSlotTable(Function<T, InetSocketAddress> addressOf) {
+        this.addressOf = addressOf;
+    }
+
+    /**
+     * @return slot assigned to added entry.
+     */
+    public synchronized int add(T entry) {
+        Object[] current = slots;
+        int slot = 0;
+        while (slot < current.length && current[slot] != null) {
+            slot++;
+        }
+        Object[] updated = new Object[slot < current.length ? current.length : Math.max(16, current.length * 2)];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[slot] = entry;
+        slots = updated;
+        byAddress = byAddress.put(addressKey(addressOf.apply(entry)), slot);
+        return slot;
+    }
+
+    /**
+     * @return removed entry or null if slot is empty.
+     */
+    public synchronized T remove(int slot) {
+        T entry = get(slot);
+        if (entry != null) {
+            removed(entry, slot);
+            byAddress = byAddress.removeValue(slot);
+            Object[] updated = slots.clone();
+            updated[slot] = null;
+            slots = updated;
+        }
+        return entry;
+    }
+
+    public T remove(InetSocketAddress address) {
+        int slot = slotOf(address);
+        return slot >= 0 ? remove(slot) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int slot) {
+        Object[] current = slots;
+        return slot >= 0 && slot < current.length ? (T) current[slot] : null;
+    }
+
+    public T get(InetSocketAddress address) {
+        return get(slotOf(address));
+    }
+
+    /**
+     * @return slot of entry with specified address or -1.
+     */
+    public int slotOf(InetSocketAddress address) {
+        MagpieLongIntMap index = byAddress;
+        long key = addressKey(address);
+        for (int i = index.find(key); i >= 0; i = index.next(i, key)) {
+            int slot = index.valueAt(i);
+            T entry = get(slot);
+            if (entry != null && address.equals(addressOf.apply(entry))) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return current slot array length, entries are available through {@link #get(int)}.
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    public boolean contains(InetSocketAddress address) {
+        return slotOf(address) >= 0;
+    }
+
+    public boolean isEmpty() {
+        return byAddress.size() == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<T> consumer) {
+        for (Object entry : slots) {
+            if (entry != null) {
+                consumer.accept((T) entry);
+            }
+        }
+    }
+
+    /**
+     * Invoked under table lock before entry is removed, lets subclasses drop their own indexes.
+     */
+    protected void removed(T entry, int slot) {
+    }
+
+    /**
+     * IPv4 address and port packed without loss, IPv6 and unresolved addresses hashed.
+     * Computed without allocation.
+     */
+    static long addressKey(InetSocketAddress address) {
+        InetAddress inetAddress = address.getAddress();
+        int hash = inetAddress != null ? inetAddress.hashCode() : address.hashCode();
+        return (hash & 0xffffffffL) << 16 | address.getPort();
+    }
+}
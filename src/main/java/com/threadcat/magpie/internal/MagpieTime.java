@@ -0,0 +1,43 @@
+package com.threadcat.magpie.internal;
+
+import java.time.Clock;
+import java.util.function.LongSupplier;
+
+/**
+ * Time cached once per 'poll': wall clock for timestamps sent to peers and monotonic time for timeouts,
+ * so wall clock adjustments do not cause false heartbeat timeouts.
+ * Updated by 'poll' thread, readable by sender threads (stale by one 'poll' at most).
+ *
+ * @author threadcat
+ */
+public class MagpieTime {
+    private final Clock clock;
+    private final LongSupplier nanoClock;
+    private volatile long millis;
+    private volatile long monotonicMillis;
+
+    public MagpieTime(Clock clock, LongSupplier nanoClock) {
+        this.clock = clock;
+        this.nanoClock = nanoClock;
+        update();
+    }
+
+    public void update() {
+        millis = clock.millis();
+        monotonicMillis = nanoClock.getAsLong() / 1_000_000L;
+    }
+
+    /**
+     * @return cached wall clock time, milliseconds since epoch.
+     */
+    public long millis() {
+        return millis;
+    }
+
+    /**
+     * @return cached monotonic time, milliseconds since arbitrary origin.
+     */
+    public long monotonicMillis() {
+        return monotonicMillis;
+    }
+}
@@ -0,0 +1,156 @@
+package com.threadcat.magpie.internal;
+
+import com.threadcat.magpie.MagpieDataHandler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Topic subscriptions: local topic handlers and remote subscribers indexed by endpoint id,
+ * so a striped endpoint is one subscriber whichever of its connections subscription came through.
+ * Topic is an ASCII string up to 255 characters, written into message payload as {length, characters}.
+ * Subscription control message payload is {subscribe flag, topic, topic, ...}.
+ * <p>
+ * Local handlers are looked up by payload bytes, remote subscriber arrays are copied on write,
+ * so neither receiving nor publishing allocates.
+ *
+ * @author threadcat
+ */
+public class MagpieTopics {
+    public static final byte UNSUBSCRIBE = 0;
+    public static final byte SUBSCRIBE = 1;
+    private static final String[] NONE = new String[0];
+    private volatile Topic[] local = new Topic[0];
+    private final ConcurrentMap<String, String[]> remote = new ConcurrentHashMap<>();
+
+    /**
+     * @return true if topic was not subscribed before.
+     */
+    public synchronized boolean subscribe(String topic, MagpieDataHandler handler) {
+        checkTopic(topic);
+        for (int i = 0; i < local.length; i++) {
+            if (local[i].name.equals(topic)) {
+                Topic[] copy = local.clone();
+                copy[i] = new Topic(topic, handler);
+                local = copy;
+                return false;
+            }
+        }
+        Topic[] copy = Arrays.copyOf(local, local.length + 1);
+        copy[local.length] = new Topic(topic, handler);
+        local = copy;
+        return true;
+    }
+
+    /**
+     * @return true if topic was subscribed.
+     */
+    public synchronized boolean unsubscribe(String topic) {
+        List<Topic> copy = new ArrayList<>(Arrays.asList(local));
+        boolean removed = copy.removeIf(t -> t.name.equals(topic));
+        local = copy.toArray(new Topic[0]);
+        return removed;
+    }
+
+    public List<String> getLocalTopics() {
+        List<String> topics = new ArrayList<>();
+        for (Topic topic : local) {
+            topics.add(topic.name);
+        }
+        return topics;
+    }
+
+    /**
+     * @return handler of topic written at specified offset or null if not subscribed.
+     */
+    public MagpieDataHandler handler(ByteBuffer buffer, int offset) {
+        int length = buffer.get(offset) & 0xff;
+        for (Topic topic : local) {
+            if (topic.equals(buffer, offset + 1, length)) {
+                return topic.handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return ids of endpoints subscribed to topic, not to be modified.
+     */
+    public String[] subscribers(String topic) {
+        return remote.getOrDefault(topic, NONE);
+    }
+
+    /**
+     * Applies subscription control message received from endpoint with specified id.
+     */
+    public void processSubscription(String id, ByteBuffer buffer, int offset, int length) {
+        boolean subscribe = buffer.get(offset) == SUBSCRIBE;
+        for (int i = offset + 1, end = offset + length; i < end; ) {
+            int n = buffer.get(i) & 0xff;
+            byte[] bytes = new byte[n];
+            buffer.get(i + 1, bytes);
+            String topic = new String(bytes, StandardCharsets.US_ASCII);
+            remote.compute(topic, (k, ids) -> subscribe ? MagpieArrays.add(ids, id) : MagpieArrays.remove(ids, id));
+            i += 1 + n;
+        }
+    }
+
+    /**
+     * Drops all subscriptions of endpoint which has no connections left.
+     */
+    public void removeSubscriber(String id) {
+        for (String topic : remote.keySet()) {
+            remote.computeIfPresent(topic, (k, ids) -> MagpieArrays.remove(ids, id));
+        }
+    }
+
+    /**
+     * @return number of bytes written.
+     */
+    public static int writeTopic(ByteBuffer buffer, int offset, String topic) {
+        int length = topic.length();
+        buffer.put(offset, (byte) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + 1 + i, (byte) topic.charAt(i));
+        }
+        return 1 + length;
+    }
+
+    public static void checkTopic(String topic) {
+        if (topic.isEmpty() || topic.length() > 255) {
+            throw new MagpieException("Topic length out of range 1..255: " + topic);
+        }
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) > 127) {
+                throw new MagpieException("Topic is not ASCII: " + topic);
+            }
+        }
+    }
+
+    private static class Topic {
+        final String name;
+        final MagpieDataHandler handler;
+
+        Topic(String name, MagpieDataHandler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        boolean equals(ByteBuffer buffer, int offset, int length) {
+            if (name.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (name.charAt(i) != buffer.get(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
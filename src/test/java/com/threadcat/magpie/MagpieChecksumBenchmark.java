@@ -0,0 +1,64 @@
+package com.threadcat.magpie;
+
+import com.threadcat.magpie.internal.MagpieEndpoint;
+import com.threadcat.magpie.internal.MagpiePacket;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Measures CRC32C packet checksum cost per payload size: writing and reading a compact packet
+ * with and without checksum trailer through direct buffers.
+ * <p>
+ * Nanoseconds per packet (write + read), 1 vCPU, JDK 17:
+ * <p>
+ * payload   plain  checksum  difference
+ * 16         78.3      79.8         1.5
+ * 64         63.0      92.0        29.0
+ * 256        76.7     145.7        69.0
+ * 1024       69.8     167.5        97.8
+ * 4096      117.6     291.5       173.9
+ * <p>
+ * Checksum adds roughly 0.04 ns per payload byte, the difference for small payloads is within run-to-run noise.
+ */
+public class MagpieChecksumBenchmark {
+    private static final int[] SIZES = {16, 64, 256, 1024, 4096};
+    private static final int WARMUP = 2_000_000;
+    private static final int MEASURE = 2_000_000;
+
+    public static void main(String[] args) {
+        System.out.println("payload   plain  checksum  difference");
+        for (int size : SIZES) {
+            double plain = measure(size, null);
+            double checksum = measure(size, new CRC32C());
+            System.out.printf("%-7d %7.1f %9.1f %11.1f\n", size, plain, checksum, checksum - plain);
+        }
+    }
+
+    private static double measure(int size, CRC32C checksum) {
+        ByteBuffer wrBuffer = ByteBuffer.allocateDirect(size + 64);
+        ByteBuffer rdBuffer = ByteBuffer.allocateDirect(size + 64);
+        MagpieEndpoint endpoint = new MagpieEndpoint(new InetSocketAddress("localhost", 11001), 0L, 1000L, 64);
+        MagpieDataTransformer transformer = (buffer, offset) -> {
+            buffer.putLong(offset, size);
+            return size;
+        };
+        long[] sink = new long[1];
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> sink[0] += buffer.getLong(offset);
+        long start = 0L;
+        for (int i = 1; i <= WARMUP + MEASURE; i++) {
+            if (i == WARMUP + 1) {
+                start = System.nanoTime();
+            }
+            MagpiePacket.writeCompactPacket(Magpie.TYPE_DATA, wrBuffer, transformer, null, checksum);
+            rdBuffer.put(wrBuffer);
+            MagpiePacket.readPacket(rdBuffer, endpoint, handler);
+        }
+        long stop = System.nanoTime();
+        if (sink[0] != (long) size * (WARMUP + MEASURE)) {
+            throw new IllegalStateException("Lost packets");
+        }
+        return (double) (stop - start) / MEASURE;
+    }
+}
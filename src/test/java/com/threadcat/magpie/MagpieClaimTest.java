@@ -0,0 +1,55 @@
+package com.threadcat.magpie;
+
+import com.threadcat.magpie.internal.MagpieException;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieClaimTest {
+
+    @Test
+    void testCommitAndAbort() {
+        int port = 11061;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        List<Long> received = new ArrayList<>();
+        List<MagpieStatus> errors = new ArrayList<>();
+        Magpie magpie = new Magpie("claimer", port, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .addStatusListener((id, status) -> {
+                    if (status == MagpieStatus.ERROR) {
+                        errors.add(status);
+                    }
+                })
+                .open();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> received.add(buffer.getLong(offset));
+        for (int i = 0; i < 100 && magpie.slotOf("claimer") < 0; i++) {
+            magpie.poll(handler);
+        }
+        MagpieClaim claim = new MagpieClaim();
+        assertFalse(magpie.tryClaim("unknown", 8, claim));
+        assertThrows(MagpieException.class, () -> magpie.tryClaim("claimer", options.getMaxMessageSize(), claim));
+        // Aborted claim consumes no sequence, so the next message is in order
+        assertTrue(magpie.tryClaim("claimer", 8, claim));
+        claim.getBuffer().putLong(claim.getOffset(), 1L);
+        claim.abort();
+        assertFalse(claim.isActive());
+        assertTrue(magpie.tryClaim("claimer", 8, claim));
+        claim.getBuffer().putLong(claim.getOffset(), 2L);
+        claim.commit();
+        assertThrows(MagpieException.class, claim::commit);
+        for (int i = 0; i < 100 && received.isEmpty(); i++) {
+            magpie.poll(handler);
+        }
+        assertEquals(List.of(2L), received);
+        assertTrue(errors.isEmpty());
+        magpie.close();
+    }
+}
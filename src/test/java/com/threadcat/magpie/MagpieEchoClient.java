@@ -14,6 +14,11 @@ import java.nio.charset.StandardCharsets;
  * Executed 100000 pings in 1.783 seconds, one-way max latency 277.731 µs, average 8.873 µs
  *
  * Conclusion: timing cost of Magpie functionality is ( 19.224 - 8.873 * 2 = 1.478 ) microseconds, ~ 8%
+ *
+ * Transport is chosen with -DMAGPIE_TRANSPORT=busy-poll on both sides, see {@link com.threadcat.magpie.channel.MagpieTransport}.
+ * Shared single vCPU virtual machine without CPU masks, round trip microseconds (server/client):
+ * selector/selector 18.3, busy-poll/selector 33.8, selector/busy-poll 27.3, busy-poll/busy-poll 8019.2
+ * i.e. a spinning loop only pays off on its own isolated core, otherwise it steals time from its peer.
  */
 public class MagpieEchoClient {
     static final String THREAD_NAME = "echo-client";
@@ -0,0 +1,130 @@
+package com.threadcat.magpie;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpiePollBudgetTest {
+
+    @Test
+    void testUnlimitedBudget() throws Exception {
+        MagpieOptions options = new MagpieOptions();
+        options.setPollMessageBudget(0);
+        options.setPollByteBudget(0);
+        assertEquals(List.of(10), pollCounts(11251, options));
+    }
+
+    @Test
+    void testMessageBudget() throws Exception {
+        MagpieOptions options = new MagpieOptions();
+        options.setPollMessageBudget(3);
+        assertEquals(List.of(3, 3, 3, 1), pollCounts(11252, options));
+    }
+
+    @Test
+    void testByteBudget() throws Exception {
+        // 32-byte packets, 24-byte header and 8-byte payload
+        MagpieOptions options = new MagpieOptions();
+        options.setPollByteBudget(64);
+        assertEquals(List.of(2, 2, 2, 2, 2), pollCounts(11253, options));
+    }
+
+    @Test
+    void testPause() {
+        int port = 11254;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        List<String> events = new CopyOnWriteArrayList<>();
+        Magpie server = new Magpie("server", port, options)
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .open();
+        Magpie client = new Magpie("client", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .open();
+        List<Integer> received = new ArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> received.add(buffer.getInt(offset));
+        connect(server, client, handler, events);
+        server.pause("client");
+        assertTrue(server.isPaused("client"));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(client.send("server", payload(i), (short) 1));
+        }
+        // Data waits in socket while paused
+        for (int i = 0; i < 20; i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertEquals(List.of(), received);
+        server.resume("client");
+        for (int i = 0; i < 100 && received.size() < 3; i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertEquals(List.of(0, 1, 2), received);
+        client.close();
+        server.close();
+    }
+
+    /**
+     * @return numbers of messages delivered by server polls, once 10 messages sent by client have arrived.
+     */
+    private static List<Integer> pollCounts(int port, MagpieOptions serverOptions) throws Exception {
+        serverOptions.setLazyWakeup(1L);
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        List<String> events = new CopyOnWriteArrayList<>();
+        Magpie server = new Magpie("server", port, serverOptions)
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .open();
+        Magpie client = new Magpie("client", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .open();
+        List<Integer> received = new ArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> received.add(buffer.getInt(offset));
+        connect(server, client, handler, events);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(client.send("server", payload(i), (short) 1));
+        }
+        Thread.sleep(50L);
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 0; i < 100 && received.size() < 10; i++) {
+            int before = received.size();
+            server.poll(handler);
+            if (received.size() > before) {
+                counts.add(received.size() - before);
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, (int) received.get(i));
+        }
+        client.close();
+        server.close();
+        return counts;
+    }
+
+    private static void connect(Magpie server, Magpie client, MagpieDataHandler handler, List<String> events) {
+        for (int i = 0; i < 200 && !(events.contains("server CONNECTED") && events.contains("client ACCEPTED")); i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+    }
+
+    /**
+     * @return 8-byte payload {index, index}.
+     */
+    private static MagpieDataTransformer payload(int index) {
+        return (buffer, offset) -> {
+            buffer.putInt(offset, index);
+            buffer.putInt(offset + 4, index);
+            return 8;
+        };
+    }
+}
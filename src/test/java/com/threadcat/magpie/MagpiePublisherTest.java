@@ -0,0 +1,121 @@
+package com.threadcat.magpie;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpiePublisherTest {
+
+    @Test
+    void testDemand() {
+        int port = 11201;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        List<String> events = new CopyOnWriteArrayList<>();
+        MagpieStatusListener listener = (endpointId, status) -> events.add(endpointId + " " + status);
+        Magpie server = new Magpie("server", port, options)
+                .addStatusListener(listener)
+                .open();
+        Magpie client = new Magpie("client", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .addStatusListener(listener)
+                .open();
+        List<Integer> handled = new CopyOnWriteArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> handled.add(buffer.getInt(offset));
+        for (int i = 0; i < 200 && !(events.contains("server CONNECTED") && events.contains("client ACCEPTED")); i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        TestSubscriber subscriber = new TestSubscriber();
+        server.publisher("client").subscribe(subscriber);
+        subscriber.subscription.request(2);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(client.send("server", payload(i), (short) 1));
+        }
+        // Reading is paused when demand runs out, the rest waits in socket
+        poll(server, client, handler, 20);
+        assertEquals(List.of(0, 1), subscriber.received);
+        subscriber.subscription.request(3);
+        poll(server, client, handler, 20);
+        assertEquals(List.of(0, 1, 2, 3, 4), subscriber.received);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        for (int i = 0; i < 200 && subscriber.received.size() < 10; i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), subscriber.received);
+        assertEquals(List.of(), handled);
+        // Unicast, second subscriber is refused
+        TestSubscriber second = new TestSubscriber();
+        server.publisher("client").subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+        // Invalid request cancels subscription, messages go to data handler again
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertTrue(client.send("server", payload(10), (short) 1));
+        for (int i = 0; i < 200 && handled.isEmpty(); i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertEquals(List.of(10), handled);
+        assertEquals(10, subscriber.received.size());
+        // Closing completes current subscriber
+        TestSubscriber third = new TestSubscriber();
+        server.publisher("client").subscribe(third);
+        assertNull(third.error);
+        client.close();
+        server.close();
+        assertTrue(third.completed);
+        assertFalse(subscriber.completed);
+    }
+
+    private static void poll(Magpie server, Magpie client, MagpieDataHandler handler, int times) {
+        for (int i = 0; i < times; i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+    }
+
+    private static MagpieDataTransformer payload(int index) {
+        return (buffer, offset) -> {
+            buffer.putInt(offset, index);
+            return 4;
+        };
+    }
+
+    private static class TestSubscriber implements Flow.Subscriber<MagpieMessage> {
+        final List<Integer> received = new CopyOnWriteArrayList<>();
+        Flow.Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(MagpieMessage item) {
+            assertEquals("client", item.getSource());
+            received.add(item.getBuffer().getInt(item.getOffset()));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.threadcat.magpie;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieReactorGroupTest {
+
+    @Test
+    void testSharedPort() throws Exception {
+        int port = 11051;
+        MagpieOptions[] options = {new MagpieOptions(), new MagpieOptions()};
+        for (MagpieOptions o : options) {
+            o.setLazyWakeup(1L);
+        }
+        MagpieReactorGroup group = new MagpieReactorGroup("hub", port, options).open();
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        group.start((source, sequence, type, buffer, offset, length) -> received.add(source));
+        MagpieOptions clientOptions = new MagpieOptions();
+        clientOptions.setLazyWakeup(1L);
+        List<Magpie> clients = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            clients.add(new Magpie("client-" + i, 0, clientOptions)
+                    .addEndpoint(new InetSocketAddress("localhost", port))
+                    .open());
+        }
+        StringTransformer transformer = new StringTransformer();
+        for (int n = 0; n < 1000 && received.size() < clients.size(); n++) {
+            for (Magpie client : clients) {
+                client.poll((source, sequence, type, buffer, offset, length) -> {
+                });
+                client.send("hub", transformer.writing("hello"));
+            }
+        }
+        assertEquals(Set.of("client-0", "client-1", "client-2", "client-3"), received);
+        // Every connection is owned by one of reactors, whichever the kernel has chosen
+        for (int i = 0; i < clients.size(); i++) {
+            assertNotNull(group.reactorOf("client-" + i));
+            assertTrue(group.send("client-" + i, transformer.writing("bye")));
+        }
+        group.close();
+        clients.forEach(Magpie::close);
+    }
+}
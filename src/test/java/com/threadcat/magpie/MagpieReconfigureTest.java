@@ -0,0 +1,117 @@
+package com.threadcat.magpie;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieReconfigureTest {
+
+    @Test
+    void testReconfigure() throws Exception {
+        int port = 11261;
+        InetSocketAddress a = new InetSocketAddress("localhost", port);
+        InetSocketAddress b = new InetSocketAddress("localhost", port + 1);
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        options.setConnectJitter(0L);
+        options.setDrainPeriod(50L);
+        List<String> events = new CopyOnWriteArrayList<>();
+        Magpie alpha = new Magpie("alpha", port, options).open();
+        Magpie beta = new Magpie("beta", port + 1, options).open();
+        Magpie client = new Magpie("client", 0, options)
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .addEndpoint(a)
+                .open();
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> received.add(buffer.getInt(offset));
+        Magpie[] all = {alpha, beta, client};
+        poll(all, handler, () -> client.slotOf("alpha") < 0);
+        // Unchanged connection is kept, added one connects
+        client.reconfigure(Set.of(a, b));
+        poll(all, handler, () -> client.slotOf("beta") < 0);
+        assertEquals(List.of("alpha CONNECTED", "beta CONNECTED"), events);
+        assertTrue(client.send("alpha", payload(1, 8), (short) 1));
+        assertTrue(client.send("beta", payload(2, 8), (short) 1));
+        poll(all, handler, () -> received.size() < 2);
+        assertEquals(Set.of(1, 2), Set.copyOf(received));
+        // Removed connection is closed after drain period
+        client.reconfigure(Set.of(b));
+        Thread.sleep(60L);
+        poll(all, handler, () -> !events.contains("alpha DISCONNECTED"));
+        assertEquals(List.of("alpha CONNECTED", "beta CONNECTED", "alpha DRAINING", "alpha DISCONNECTED"), events);
+        assertTrue(client.send("beta", payload(3, 8), (short) 1));
+        poll(all, handler, () -> received.size() < 3);
+        assertEquals(3, (int) received.get(2));
+        client.close();
+        alpha.close();
+        beta.close();
+    }
+
+    private static void poll(Magpie[] magpies, MagpieDataHandler handler, BooleanSupplier condition) {
+        for (int i = 0; i < 200 && condition.getAsBoolean(); i++) {
+            for (Magpie magpie : magpies) {
+                magpie.poll(handler);
+            }
+        }
+    }
+
+    @Test
+    void testRemovedEndpointNotRouted() {
+        int port = 11181;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        options.setDrainPeriod(60_000L);
+        List<String> events = new CopyOnWriteArrayList<>();
+        Magpie server = new Magpie("server", port, options).open();
+        Magpie client = new Magpie("client", 0, options)
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> received.add(buffer.getInt(offset));
+        for (int i = 0; i < 200 && client.slotOf("server") < 0; i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertTrue(client.send("server", payload(1, 8), (short) 1));
+        // Connection stays open for the drain period, but new sends are not routed to it
+        client.reconfigure(Set.of());
+        for (int i = 0; i < 100 && !events.contains("server DRAINING"); i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertTrue(events.contains("server DRAINING"));
+        assertFalse(events.contains("server DISCONNECTED"));
+        assertFalse(client.send("server", payload(2, 8), (short) 1));
+        assertTrue(server.send("client", payload(3, 8), (short) 1));
+        for (int i = 0; i < 100 && received.size() < 2; i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertEquals(List.of(1, 3), received.stream().sorted().collect(Collectors.toList()));
+        client.close();
+        server.close();
+    }
+
+    /**
+     * @return payload {index, index bytes...}.
+     */
+    private static MagpieDataTransformer payload(int index, int length) {
+        return (buffer, offset) -> {
+            buffer.putInt(offset, index);
+            for (int i = 4; i < length; i++) {
+                buffer.put(offset + i, (byte) index);
+            }
+            return length;
+        };
+    }
+}
@@ -0,0 +1,105 @@
+package com.threadcat.magpie;
+
+import com.threadcat.magpie.internal.MagpieCapture;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MagpieReplayTest {
+
+    @Test
+    void testRoundTrip() throws Exception {
+        int port = 11071;
+        Path directory = Files.createTempDirectory("magpie-capture");
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        options.setCaptureDirectory(directory.toString());
+        options.setCaptureFileSize(1 << 16);
+        List<String> received = new ArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) ->
+                received.add(source + " " + sequence + " " + StringTransformer.fromBuffer(buffer, offset));
+        Magpie magpie = new Magpie("recorder", port, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        for (int i = 0; i < 100 && magpie.slotOf("recorder") < 0; i++) {
+            magpie.poll(handler);
+        }
+        StringTransformer transformer = new StringTransformer();
+        for (int i = 0; i < 10; i++) {
+            magpie.send("recorder", transformer.writing("message-" + i));
+        }
+        for (int i = 0; i < 100 && received.size() < 10; i++) {
+            magpie.poll(handler);
+        }
+        magpie.close();
+        List<String> replayed = new ArrayList<>();
+        MagpieReplay replay = new MagpieReplay(directory);
+        assertEquals(10L, replay.replay((source, sequence, type, buffer, offset, length) ->
+                replayed.add(source + " " + sequence + " " + StringTransformer.fromBuffer(buffer, offset)), false));
+        assertEquals(received, replayed);
+        // Both greetings are outbound frames as well
+        assertEquals(12L, replay.getOutbound());
+    }
+
+    @Test
+    void testCaptureFailureStopsCapture() throws Exception {
+        int port = 11072;
+        Path directory = Files.createTempDirectory("magpie-capture");
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        options.setCaptureDirectory(directory.toString());
+        // Greeting does not fit
+        options.setCaptureFileSize(64);
+        List<String> received = new ArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) ->
+                received.add(StringTransformer.fromBuffer(buffer, offset));
+        Magpie magpie = new Magpie("recorder", port, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        for (int i = 0; i < 100 && magpie.slotOf("recorder") < 0; i++) {
+            magpie.poll(handler);
+        }
+        magpie.send("recorder", new StringTransformer().writing("still delivered"));
+        for (int i = 0; i < 100 && received.isEmpty(); i++) {
+            magpie.poll(handler);
+        }
+        magpie.close();
+        assertEquals(List.of("still delivered"), received);
+    }
+
+    @Test
+    void testRollingFiles() throws Exception {
+        Path directory = Files.createTempDirectory("magpie-capture");
+        MagpieCapture capture = new MagpieCapture(directory, 1024, 2);
+        ByteBuffer payload = ByteBuffer.allocate(8);
+        for (long i = 1; i <= 100; i++) {
+            payload.putLong(0, i);
+            // Next file is mapped in background, frames coming before it is ready are dropped
+            while (!capture.record(MagpieCapture.INBOUND, "peer", Magpie.TYPE_DATA, i, payload, 0, 8)) {
+                Thread.onSpinWait();
+            }
+        }
+        capture.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(2L, files.count());
+        }
+        // The oldest frames are gone with deleted files, the rest replays in order
+        List<Long> replayed = new ArrayList<>();
+        new MagpieReplay(directory).replay((source, sequence, type, buffer, offset, length) -> {
+            assertEquals(sequence, buffer.getLong(offset));
+            replayed.add(sequence);
+        }, false);
+        assertEquals(100L, (long) replayed.get(replayed.size() - 1));
+        for (int i = 1; i < replayed.size(); i++) {
+            assertEquals(replayed.get(i - 1) + 1, (long) replayed.get(i));
+        }
+    }
+}
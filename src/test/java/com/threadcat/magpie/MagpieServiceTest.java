@@ -0,0 +1,98 @@
+package com.threadcat.magpie;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieServiceTest {
+    private final Map<String, Integer> received = new HashMap<>();
+    private final Map<Long, String> owners = new HashMap<>();
+
+    @Test
+    void testRoutingAndFailover() {
+        int port = 11101;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        List<Magpie> gateways = new ArrayList<>();
+        Magpie client = new Magpie("client", 0, options);
+        for (int i = 0; i < 3; i++) {
+            gateways.add(new Magpie("gateway-" + i, port + i, options).open());
+            client.addEndpoint(new InetSocketAddress("localhost", port + i));
+        }
+        client.addService("gateway", MagpieRouting.ROUND_ROBIN, "gateway-0", "gateway-1", "gateway-2")
+                .addService("sticky", MagpieRouting.STICKY, "gateway-0", "gateway-1", "gateway-2")
+                .open();
+        MagpieService service = client.service("gateway");
+        for (int n = 0; n < 1000 && service.getInstances().size() < 3; n++) {
+            pollAll(client, gateways);
+        }
+        assertEquals(List.of("gateway-0", "gateway-1", "gateway-2"), service.getInstances());
+
+        StringTransformer transformer = new StringTransformer();
+        for (int i = 0; i < 30; i++) {
+            assertTrue(service.send(transformer.writing("order"), Magpie.TYPE_DATA));
+        }
+        pollAll(client, gateways);
+        assertEquals(Map.of("gateway-0", 10, "gateway-1", 10, "gateway-2", 10), received);
+
+        // Keys stick to instances, only keys of the instance gone move elsewhere
+        MagpieService sticky = client.service("sticky");
+        for (long key = 0; key < 30; key++) {
+            sendSticky(sticky, key, client, gateways);
+        }
+        Map<Long, String> before = new HashMap<>(owners);
+        for (long key = 0; key < 30; key++) {
+            sendSticky(sticky, key, client, gateways);
+        }
+        assertEquals(before, owners);
+        assertEquals(3, before.values().stream().distinct().count());
+
+        gateways.get(1).close();
+        for (int n = 0; n < 1000 && service.getInstances().size() > 2; n++) {
+            pollAll(client, gateways);
+        }
+        assertEquals(List.of("gateway-0", "gateway-2"), service.getInstances());
+        for (long key = 0; key < 30; key++) {
+            sendSticky(sticky, key, client, gateways);
+            if (!"gateway-1".equals(before.get(key))) {
+                assertEquals(before.get(key), owners.get(key));
+            }
+        }
+        client.close();
+        gateways.forEach(Magpie::close);
+    }
+
+    private void sendSticky(MagpieService sticky, long key, Magpie client, List<Magpie> gateways) {
+        assertTrue(sticky.send(key, (buffer, offset) -> {
+            buffer.putLong(offset, key);
+            return 8;
+        }, (short) 2));
+        pollAll(client, gateways);
+    }
+
+    private void pollAll(Magpie client, List<Magpie> gateways) {
+        for (int i = 0; i < 3; i++) {
+            client.poll((source, sequence, type, buffer, offset, length) -> {
+            });
+            for (Magpie gateway : gateways) {
+                if (gateway.isOpen()) {
+                    String id = "gateway-" + gateways.indexOf(gateway);
+                    gateway.poll((source, sequence, type, buffer, offset, length) -> {
+                        if (type == 2) {
+                            owners.put(buffer.getLong(offset), id);
+                        } else {
+                            received.merge(id, 1, Integer::sum);
+                        }
+                    });
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.threadcat.magpie;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieShutdownTest {
+
+    @Test
+    void testAnnounce() {
+        int port = 11271;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        options.setDrainPeriod(1L);
+        List<String> events = new CopyOnWriteArrayList<>();
+        Magpie server = new Magpie("server", port, options).open();
+        Magpie client = new Magpie("client", 0, options)
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> received.add(buffer.getInt(offset));
+        for (int i = 0; i < 200 && (client.slotOf("server") < 0 || server.slotOf("client") < 0); i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertFalse(client.isDraining("server"));
+        assertFalse(server.isShuttingDown());
+        server.shutdown(60_000L);
+        assertTrue(server.isShuttingDown());
+        for (int i = 0; i < 200 && !client.isDraining("server"); i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertTrue(client.isDraining("server"));
+        assertEquals(List.of("server CONNECTED", "server DRAINING"), events);
+        // Messages in flight keep flowing both ways while draining
+        for (int i = 0; i < 10; i++) {
+            assertTrue(server.send("client", payload(i, 8), (short) 1));
+        }
+        for (int i = 0; i < 200 && received.size() < 10; i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), received);
+        assertTrue(server.isOpen());
+        // Peer drops the connection and stops routing here, shutdown completes well before the deadline
+        client.reconfigure(Set.of());
+        for (int i = 0; i < 1000 && server.isOpen(); i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertFalse(server.isOpen());
+        client.close();
+    }
+
+    @Test
+    void testDeadline() throws Exception {
+        int port = 11272;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        Magpie server = new Magpie("server", port, options).open();
+        Magpie client = new Magpie("client", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> {
+        };
+        for (int i = 0; i < 200 && (client.slotOf("server") < 0 || server.slotOf("client") < 0); i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        // Peer stays connected, connections are closed at the deadline
+        server.shutdown(50L);
+        server.poll(handler);
+        client.poll(handler);
+        assertTrue(server.isOpen());
+        Thread.sleep(60L);
+        server.poll(handler);
+        assertFalse(server.isOpen());
+        client.close();
+    }
+
+    @Test
+    void testDrainQueuedFrames() {
+        int port = 11191;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        options.setSendBufferSize(8192);
+        options.setReceiveBufferSize(8192);
+        options.setOutboundLaneSize(64 * 1024);
+        List<String> events = new CopyOnWriteArrayList<>();
+        Magpie server = new Magpie("server", port, options).open();
+        Magpie client = new Magpie("client", 0, options)
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> received.add(buffer.getInt(offset));
+        for (int i = 0; i < 200 && (client.slotOf("server") < 0 || server.slotOf("client") < 0); i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertFalse(client.isDraining("server"));
+        // Client is not reading, frames pile up behind full socket
+        int sent = 0;
+        while (server.getQueuedBytes("client") < 32 * 1024) {
+            assertTrue(server.send("client", payload(sent++, 1000), (short) 1));
+        }
+        server.shutdown(60_000L);
+        assertTrue(server.isShuttingDown());
+        // Announcement goes in urgent lane ahead of queued frames, which keep flowing
+        for (int i = 0; i < 1000 && (received.size() < sent || !client.isDraining("server")); i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertTrue(client.isDraining("server"));
+        assertEquals(List.of("server CONNECTED", "server DRAINING"), events);
+        assertEquals(sent, received.size());
+        for (int i = 0; i < sent; i++) {
+            assertEquals(i, (int) received.get(i));
+        }
+        // New sends to draining endpoint are refused, draining endpoint still replies
+        assertFalse(client.send("server", payload(-1, 8), (short) 1));
+        assertFalse(client.send(client.slotOf("server"), payload(-1, 8), (short) 1));
+        assertFalse(client.sendConflated("server", 1L, payload(-1, 8), (short) 1));
+        assertTrue(server.send("client", payload(sent, 8), (short) 1));
+        for (int i = 0; i < 100 && received.size() <= sent; i++) {
+            server.poll(handler);
+            client.poll(handler);
+        }
+        assertEquals(sent + 1, received.size());
+        // Shutdown completes when peers are gone, well before the deadline
+        client.close();
+        for (int i = 0; i < 1000 && server.isOpen(); i++) {
+            server.poll(handler);
+        }
+        assertFalse(server.isOpen());
+        assertFalse(received.contains(-1));
+    }
+
+    /**
+     * @return payload {index, index bytes...}.
+     */
+    private static MagpieDataTransformer payload(int index, int length) {
+        return (buffer, offset) -> {
+            buffer.putInt(offset, index);
+            for (int i = 4; i < length; i++) {
+                buffer.put(offset + i, (byte) index);
+            }
+            return length;
+        };
+    }
+}
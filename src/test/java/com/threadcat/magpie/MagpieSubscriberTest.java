@@ -0,0 +1,153 @@
+package com.threadcat.magpie;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieSubscriberTest {
+
+    @Test
+    void testWindow() {
+        int port = 11211;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        List<String> events = new ArrayList<>();
+        Magpie magpie = new Magpie("sender", port, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .addStatusListener((endpointId, status) -> events.add(endpointId + " " + status))
+                .open();
+        List<String> received = new ArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) ->
+                received.add(type + ":" + buffer.getInt(offset));
+        for (int i = 0; i < 100 && !events.contains("sender CONNECTED"); i++) {
+            magpie.poll(handler);
+        }
+        MagpieMessageEncoder<Integer> encoder = (item, buffer, offset) -> {
+            buffer.putInt(offset, item);
+            return 4;
+        };
+        MagpieSubscriber<Integer> subscriber = magpie.subscriber("sender", encoder, (short) 5, 4);
+        TestSubscription subscription = new TestSubscription();
+        subscriber.onSubscribe(subscription);
+        assertEquals(List.of(4L), subscription.requests);
+        // Only one upstream at a time
+        TestSubscription other = new TestSubscription();
+        subscriber.onSubscribe(other);
+        assertTrue(other.cancelled);
+        // Next half of the window is requested as the previous half is sent, never exceeding the window
+        subscriber.onNext(1);
+        assertEquals(List.of(4L), subscription.requests);
+        subscriber.onNext(2);
+        assertEquals(List.of(4L, 2L), subscription.requests);
+        subscriber.onNext(3);
+        subscriber.onNext(4);
+        assertEquals(List.of(4L, 2L, 2L), subscription.requests);
+        for (int i = 0; i < 100 && received.size() < 4; i++) {
+            magpie.poll(handler);
+        }
+        assertEquals(List.of("5:1", "5:2", "5:3", "5:4"), received);
+        assertEquals(0L, subscriber.getDropped());
+        assertFalse(subscription.cancelled);
+        subscriber.cancel();
+        assertTrue(subscription.cancelled);
+        magpie.close();
+    }
+
+    @Test
+    void testDropped() {
+        MagpieOptions options = new MagpieOptions();
+        Magpie magpie = new Magpie("sender", 0, options);
+        MagpieSubscriber<Integer> subscriber = magpie.subscriber("unknown", (item, buffer, offset) -> 0, 2);
+        TestSubscription subscription = new TestSubscription();
+        subscriber.onSubscribe(subscription);
+        subscriber.onNext(1);
+        subscriber.onNext(2);
+        // Items not sent still count towards the window, upstream is not stalled
+        assertEquals(2L, subscriber.getDropped());
+        assertEquals(List.of(2L, 1L, 1L), subscription.requests);
+    }
+
+    @Test
+    void testBackedUpEndpoint() {
+        int port = 11241;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        options.setSendBufferSize(8192);
+        options.setReceiveBufferSize(8192);
+        options.setOutboundLaneSize(64 * 1024);
+        Magpie server = new Magpie("server", port, options).open();
+        Magpie client = new Magpie("client", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        List<Integer> received = new ArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> received.add(buffer.getInt(offset));
+        MagpieDataHandler ignore = (source, sequence, type, buffer, offset, length) -> {
+        };
+        for (int i = 0; i < 200 && (client.slotOf("server") < 0 || server.slotOf("client") < 0); i++) {
+            server.poll(ignore);
+            client.poll(ignore);
+        }
+        MagpieSubscriber<Integer> subscriber = client.subscriber("server", (item, buffer, offset) -> {
+            for (int i = 0; i < 1000; i += 4) {
+                buffer.putInt(offset + i, item);
+            }
+            return 1000;
+        }, 8);
+        TestSubscription subscription = new TestSubscription();
+        subscriber.onSubscribe(subscription);
+        // Upstream emits whatever is requested while server is not reading
+        int sent = 0;
+        for (int i = 0; i < 1000 && sent < subscription.requested(); i++) {
+            subscriber.onNext(sent++);
+        }
+        long requested = subscription.requested();
+        assertEquals(requested, sent);
+        assertTrue(subscriber.getDeferred() > 0L);
+        assertTrue(client.getQueuedBytes("server") >= 32 * 1024);
+        assertTrue(client.getQueuedBytes("server") < 64 * 1024);
+        client.poll(ignore);
+        assertEquals(requested, subscription.requested());
+        // Once server reads and the queue drains, 'poll' makes the deferred request
+        for (int i = 0; i < 1000 && subscription.requested() == requested; i++) {
+            server.poll(handler);
+            client.poll(ignore);
+        }
+        assertTrue(subscription.requested() > requested);
+        assertEquals(0L, subscriber.getDeferred());
+        for (int i = 0; i < 1000 && received.size() < sent; i++) {
+            server.poll(handler);
+            client.poll(ignore);
+        }
+        assertEquals(sent, received.size());
+        assertEquals(0L, subscriber.getDropped());
+        subscriber.cancel();
+        client.close();
+        server.close();
+    }
+
+    private static class TestSubscription implements Flow.Subscription {
+        final List<Long> requests = new ArrayList<>();
+        boolean cancelled;
+
+        @Override
+        public void request(long n) {
+            requests.add(n);
+        }
+
+        long requested() {
+            return requests.stream().mapToLong(Long::longValue).sum();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package com.threadcat.magpie;
+
+import com.threadcat.magpie.channel.MagpieChannel;
+import com.threadcat.magpie.internal.MagpieException;
+import com.threadcat.magpie.internal.MagpieGreeting;
+import com.threadcat.magpie.internal.MagpiePacket;
+import com.threadcat.magpie.internal.MagpieRoutes;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieTest {
+
+    @Test
+    void testMonotonicTimeouts() throws Exception {
+        int port = 11081;
+        AtomicLong nanos = new AtomicLong(1_000_000_000L);
+        ManualClock clock = new ManualClock();
+        MagpieOptions options = new MagpieOptions();
+        options.setClock(clock);
+        options.setNanoClock(nanos::get);
+        options.setHeartbeatInterval(100L);
+        options.setGreetingTimeout(1000L);
+        options.setLazyWakeup(1L);
+        List<String> events = new CopyOnWriteArrayList<>();
+        Magpie magpie = new Magpie("timer", port, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .open();
+        SocketChannel stranger = SocketChannel.open(new InetSocketAddress("localhost", port));
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> {
+        };
+        for (int i = 0; i < 10; i++) {
+            magpie.poll(handler);
+        }
+        assertTrue(magpie.slotOf("timer") >= 0);
+        // Wall clock jump does not expire anything
+        clock.millis += 3_600_000L;
+        for (int i = 0; i < 10; i++) {
+            magpie.poll(handler);
+        }
+        assertTrue(events.stream().noneMatch(e -> e.endsWith("DISCONNECTED")));
+        // Monotonic time advancing past greeting timeout drops the silent connection only
+        for (int step = 0; step < 30; step++) {
+            nanos.addAndGet(50_000_000L);
+            for (int i = 0; i < 3; i++) {
+                magpie.poll(handler);
+            }
+        }
+        assertEquals(List.of("null DISCONNECTED"), events.stream().filter(e -> e.endsWith("DISCONNECTED")).collect(Collectors.toList()));
+        assertTrue(magpie.slotOf("timer") >= 0);
+        stranger.close();
+        magpie.close();
+    }
+
+    @Test
+    void testTopicsAndDispatch() {
+        int port = 11091;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        Magpie publisher = new Magpie("publisher", port, options).open();
+        Magpie subscriber = new Magpie("subscriber", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        List<String> received = new CopyOnWriteArrayList<>();
+        subscriber.subscribe("prices", (source, sequence, type, buffer, offset, length) ->
+                received.add(source + " " + type + " " + StringTransformer.fromBuffer(buffer, offset)));
+        MagpieDispatcher dispatcher = new MagpieDispatcher()
+                .register(5, (source, sequence, type, buffer, offset, length) -> received.add("typed " + type))
+                .fallback((source, sequence, type, buffer, offset, length) -> received.add("fallback " + type));
+        for (int i = 0; i < 100 && !publisher.hasSubscribers("prices"); i++) {
+            publisher.poll(dispatcher);
+            subscriber.poll(dispatcher);
+        }
+        StringTransformer transformer = new StringTransformer();
+        assertEquals(0, publisher.publish("news", (buffer, offset) -> {
+            throw new AssertionError("Nobody subscribed");
+        }));
+        assertThrows(MagpieException.class, () -> publisher.publish("", transformer.writing("1.25")));
+        assertThrows(MagpieException.class, () -> publisher.publish("prices\u00e9", transformer.writing("1.25")));
+        assertThrows(MagpieException.class, () -> publisher.publish("p".repeat(256), transformer.writing("1.25")));
+        assertEquals(1, publisher.publish("prices", transformer.writing("1.25")));
+        publisher.send("subscriber", transformer.writing("five"), (short) 5);
+        publisher.send("subscriber", transformer.writing("six"), (short) 6);
+        for (int i = 0; i < 100 && received.size() < 3; i++) {
+            subscriber.poll(dispatcher);
+        }
+        assertEquals(List.of("publisher " + Magpie.TYPE_TOPIC + " 1.25", "typed 5", "fallback 6"), received);
+        subscriber.unsubscribe("prices");
+        for (int i = 0; i < 100 && publisher.hasSubscribers("prices"); i++) {
+            publisher.poll(dispatcher);
+        }
+        assertEquals(0, publisher.publish("prices", transformer.writing("1.26")));
+        subscriber.close();
+        publisher.close();
+    }
+
+    @Test
+    void testStriping() {
+        int port = 11111;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        List<String> events = new CopyOnWriteArrayList<>();
+        Magpie server = new Magpie("server", port, options)
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .open();
+        MagpieOptions stripedOptions = new MagpieOptions();
+        stripedOptions.setLazyWakeup(1L);
+        stripedOptions.setStripes(3);
+        Magpie client = new Magpie("client", 0, stripedOptions)
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        MagpieDataHandler ignore = (source, sequence, type, buffer, offset, length) -> {
+        };
+        for (int i = 0; i < 200; i++) {
+            server.poll(ignore);
+            client.poll(ignore);
+        }
+        assertEquals(List.of("client ACCEPTED", "server CONNECTED"), events.stream().sorted().collect(Collectors.toList()));
+        StringTransformer transformer = new StringTransformer();
+        for (int i = 0; i < 30; i++) {
+            assertTrue(client.send("server", i % 5, transformer.writing(i % 5 + ":" + i), (short) 1));
+        }
+        List<String> received = new CopyOnWriteArrayList<>();
+        List<Long> sequences = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 100 && received.size() < 30; i++) {
+            server.poll((source, sequence, type, buffer, offset, length) -> {
+                received.add(StringTransformer.fromBuffer(buffer, offset));
+                sequences.add(sequence);
+            });
+        }
+        assertEquals(30, received.size());
+        for (int key = 0; key < 5; key++) {
+            String prefix = key + ":";
+            List<Integer> values = received.stream().filter(v -> v.startsWith(prefix))
+                    .map(v -> Integer.parseInt(v.substring(prefix.length()))).collect(Collectors.toList());
+            assertEquals(values.stream().sorted().collect(Collectors.toList()), values);
+        }
+        // Every connection numbers its own messages
+        assertTrue(sequences.stream().distinct().count() < 30);
+        // Striped subscriber is one subscriber
+        List<String> prices = new CopyOnWriteArrayList<>();
+        client.subscribe("prices", (source, sequence, type, buffer, offset, length) ->
+                prices.add(StringTransformer.fromBuffer(buffer, offset)));
+        for (int i = 0; i < 100 && !server.hasSubscribers("prices"); i++) {
+            server.poll(ignore);
+            client.poll(ignore);
+        }
+        assertEquals(1, server.publish("prices", transformer.writing("1.25")));
+        for (int i = 0; i < 100; i++) {
+            server.poll(ignore);
+            client.poll(ignore);
+        }
+        assertEquals(List.of("1.25"), prices);
+        client.close();
+        for (int i = 0; i < 100 && !events.contains("client DISCONNECTED"); i++) {
+            server.poll(ignore);
+        }
+        for (int i = 0; i < 10; i++) {
+            server.poll(ignore);
+        }
+        assertEquals(List.of("client DISCONNECTED", "server DISCONNECTED"),
+                events.subList(2, events.size()).stream().sorted().collect(Collectors.toList()));
+        server.close();
+    }
+
+    @Test
+    void testRelay() {
+        int port = 11121;
+        MagpieOptions hubOptions = new MagpieOptions();
+        hubOptions.setLazyWakeup(1L);
+        hubOptions.setRelay(true);
+        Magpie hub = new Magpie("hub", port, hubOptions).open();
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        Magpie alpha = new Magpie("alpha", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        Magpie beta = new Magpie("beta", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        List<String> received = new CopyOnWriteArrayList<>();
+        List<Long> sequences = new CopyOnWriteArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> {
+            received.add(source + " " + type + " " + StringTransformer.fromBuffer(buffer, offset));
+            if ("alpha".equals(source)) {
+                sequences.add(sequence);
+            }
+        };
+        for (int i = 0; i < 200 && !(alpha.isRelayed("beta") && beta.isRelayed("alpha")); i++) {
+            hub.poll(handler);
+            alpha.poll(handler);
+            beta.poll(handler);
+        }
+        assertTrue(alpha.isRelayed("beta"));
+        StringTransformer transformer = new StringTransformer();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(alpha.send("beta", transformer.writing("m" + i), (short) 7));
+        }
+        assertTrue(beta.send("alpha", transformer.writing("back"), (short) 8));
+        for (int i = 0; i < 100 && received.size() < 11; i++) {
+            hub.poll(handler);
+            alpha.poll(handler);
+            beta.poll(handler);
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add("alpha 7 m" + i);
+        }
+        assertEquals(expected, received.stream().filter(m -> m.startsWith("alpha")).collect(Collectors.toList()));
+        assertEquals(List.of("beta 8 back"), received.stream().filter(m -> m.startsWith("beta")).collect(Collectors.toList()));
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L), sequences);
+        assertEquals(0L, hub.getDroppedRelays());
+        // Paused relayed source holds back the hub connection until resumed
+        beta.pause("alpha");
+        assertTrue(alpha.send("beta", transformer.writing("held"), (short) 7));
+        for (int i = 0; i < 100; i++) {
+            hub.poll(handler);
+            alpha.poll(handler);
+            beta.poll(handler);
+        }
+        assertFalse(received.contains("alpha 7 held"));
+        beta.resume("alpha");
+        for (int i = 0; i < 100 && !received.contains("alpha 7 held"); i++) {
+            hub.poll(handler);
+            beta.poll(handler);
+        }
+        assertTrue(received.contains("alpha 7 held"));
+        beta.close();
+        for (int i = 0; i < 100 && alpha.isRelayed("beta"); i++) {
+            hub.poll(handler);
+            alpha.poll(handler);
+        }
+        assertFalse(alpha.send("beta", transformer.writing("lost"), (short) 7));
+        alpha.close();
+        hub.close();
+    }
+
+    @Test
+    void testBackedUpSocket() throws Exception {
+        int port = 11131;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        options.setSendBufferSize(8192);
+        options.setReceiveBufferSize(8192);
+        options.setOutboundLaneSize(64 * 1024);
+        options.setMaxMessageSize(8192);
+        Magpie server = new Magpie("server", port, options).open();
+        Magpie client = new Magpie("client", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        MagpieDataHandler ignore = (source, sequence, type, buffer, offset, length) -> {
+        };
+        for (int i = 0; i < 200 && client.slotOf("server") < 0; i++) {
+            server.poll(ignore);
+            client.poll(ignore);
+        }
+        // Server is not reading, frames pile up in bulk lane behind full socket
+        int sent = 0;
+        while (client.getQueuedBytes("server") < 61 * 1024) {
+            assertTrue(client.send("server", payload(sent++, 1000), (short) 1));
+        }
+        int queuedBehind = sent;
+        assertTrue(client.sendUrgent("server", payload(-1, 8), (short) 2));
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        List<String> corrupted = new CopyOnWriteArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> {
+            int index = buffer.getInt(offset);
+            for (int i = 4; i < length; i++) {
+                if (buffer.get(offset + i) != (byte) index) {
+                    corrupted.add(index + " at " + i);
+                    break;
+                }
+            }
+            received.add(index);
+        };
+        // Socket drains while client is not flushing, next larger send finds lane full and flushes before queuing
+        for (int i = 0; i < 20; i++) {
+            server.poll(handler);
+            Thread.sleep(1L);
+        }
+        int drained = received.size();
+        assertTrue(client.send("server", payload(sent++, 5000), (short) 1));
+        for (int i = 0; i < 1000 && received.size() < sent + 1; i++) {
+            server.poll(handler);
+            client.poll(ignore);
+        }
+        assertEquals(List.of(), corrupted);
+        assertEquals(sent + 1, received.size());
+        int urgent = received.indexOf(-1);
+        assertTrue(urgent >= drained && urgent < queuedBehind, "Urgent frame at " + urgent + " of " + queuedBehind);
+        List<Integer> bulk = received.stream().filter(i -> i >= 0).collect(Collectors.toList());
+        for (int i = 0; i < bulk.size(); i++) {
+            assertEquals(i, (int) bulk.get(i));
+        }
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void testConflatedBehindBackedUpSocket() throws Exception {
+        int port = 11141;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        options.setSendBufferSize(8192);
+        options.setReceiveBufferSize(8192);
+        options.setConflationKeys(4);
+        Magpie server = new Magpie("server", port, options).open();
+        Magpie client = new Magpie("client", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        MagpieDataHandler ignore = (source, sequence, type, buffer, offset, length) -> {
+        };
+        for (int i = 0; i < 200 && client.slotOf("server") < 0; i++) {
+            server.poll(ignore);
+            client.poll(ignore);
+        }
+        // Server is not reading, queued updates of the same key replace each other
+        int value = 0;
+        while (client.getConflatedMessages("server") < 100) {
+            value++;
+            assertTrue(client.sendConflated("server", value % 4, payload(value, 1000), (short) 5));
+        }
+        int[] last = new int[5];
+        List<String> errors = new CopyOnWriteArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> {
+            int index = buffer.getInt(offset);
+            for (int i = 4; i < length; i++) {
+                if (buffer.get(offset + i) != (byte) index) {
+                    errors.add(index + " corrupted at " + i);
+                    break;
+                }
+            }
+            int key = index < 0 ? 4 : index % 4;
+            if (index >= 0 && index <= last[key]) {
+                errors.add(index + " after " + last[key]);
+            }
+            last[key] = index;
+        };
+        // Socket drains while client is not flushing, new key finds all keys taken and flushes before queuing
+        for (int i = 0; i < 20; i++) {
+            server.poll(handler);
+            Thread.sleep(1L);
+        }
+        assertTrue(client.sendConflated("server", 4L, payload(-7, 1000), (short) 5));
+        for (int i = 0; i < 1000 && (last[4] != -7 || last[value % 4] != value); i++) {
+            server.poll(handler);
+            client.poll(ignore);
+        }
+        assertEquals(List.of(), errors);
+        assertEquals(-7, last[4]);
+        for (int k = 0; k < 4; k++) {
+            assertEquals(value - (value - k) % 4, last[k]);
+        }
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void testRateLimits() {
+        int port = 11151;
+        // Server rejects data over the limit to accepted client, client paces data to server
+        MagpieOptions serverOptions = new MagpieOptions();
+        serverOptions.setRateLimitBurst(100L);
+        serverOptions.setRateLimit("client", 100L, 0L);
+        MagpieOptions clientOptions = new MagpieOptions();
+        clientOptions.setRateLimitBurst(100L);
+        clientOptions.setRateLimit("server", 100L, 0L);
+        clientOptions.setPacing(true);
+        Magpie server = new Magpie("server", port, serverOptions).open();
+        Magpie client = new Magpie("client", 0, clientOptions)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        List<Integer> atClient = new CopyOnWriteArrayList<>();
+        List<Integer> atServer = new CopyOnWriteArrayList<>();
+        MagpieDataHandler clientHandler = (source, sequence, type, buffer, offset, length) -> atClient.add(buffer.getInt(offset));
+        MagpieDataHandler serverHandler = (source, sequence, type, buffer, offset, length) -> atServer.add(buffer.getInt(offset));
+        for (int i = 0; i < 200 && (client.slotOf("server") < 0 || server.slotOf("client") < 0); i++) {
+            server.poll(serverHandler);
+            client.poll(clientHandler);
+        }
+        // 100 ms burst at 100 messages per second admits 11 messages at once
+        assertEquals(11L, server.getRemainingMessages("client"));
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            accepted += server.send("client", payload(i, 8), (short) 1) ? 1 : 0;
+        }
+        assertTrue(accepted >= 11 && accepted <= 12, "Accepted " + accepted);
+        long start = System.nanoTime();
+        for (int i = 0; i < 30; i++) {
+            assertTrue(client.send("server", payload(i, 8), (short) 1));
+        }
+        long deadline = start + 2_000_000_000L;
+        while ((atServer.size() < 30 || atClient.size() < accepted) && System.nanoTime() < deadline) {
+            server.poll(serverHandler);
+            client.poll(clientHandler);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(accepted, atClient.size());
+        assertEquals(30, atServer.size());
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i, (int) atServer.get(i));
+        }
+        // 19 messages over the burst leave at 10 ms intervals
+        assertTrue(elapsed >= 150_000_000L, "Paced in " + elapsed / 1_000_000L + " ms");
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void testSocketBuffersById() {
+        int port = 11171;
+        List<String> applied = new CopyOnWriteArrayList<>();
+        MagpieOptions serverOptions = new MagpieOptions();
+        serverOptions.setLazyWakeup(1L);
+        serverOptions.setSocketBuffers("client", 16384, 32768);
+        serverOptions.setTransport((p, o) -> new MagpieChannel(p, o) {
+            @Override
+            public void setSocketBuffers(InetSocketAddress address, int sendBufferSize, int receiveBufferSize) {
+                applied.add(isAccepted(address) + " " + sendBufferSize + " " + receiveBufferSize);
+                super.setSocketBuffers(address, sendBufferSize, receiveBufferSize);
+            }
+        });
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        Magpie server = new Magpie("server", port, serverOptions).open();
+        Magpie client = new Magpie("client", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        MagpieDataHandler ignore = (source, sequence, type, buffer, offset, length) -> {
+        };
+        for (int i = 0; i < 200 && server.slotOf("client") < 0; i++) {
+            server.poll(ignore);
+            client.poll(ignore);
+        }
+        // Override reaches accepted connection once greeting names the peer
+        assertEquals(List.of("true 16384 32768"), applied);
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void testRelaySequence() {
+        int port = 11221;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        List<String> events = new CopyOnWriteArrayList<>();
+        Magpie beta = new Magpie("beta", port, options)
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .open();
+        Magpie alpha = new Magpie("alpha", 0, options)
+                .addEndpoint(new InetSocketAddress("localhost", port))
+                .open();
+        List<String> received = new CopyOnWriteArrayList<>();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) ->
+                received.add(source + " " + sequence + " " + buffer.getInt(offset));
+        for (int i = 0; i < 200 && (alpha.slotOf("beta") < 0 || beta.slotOf("alpha") < 0); i++) {
+            beta.poll(handler);
+            alpha.poll(handler);
+        }
+        // Alpha plays hub forwarding frames of gamma: one lost on the way, one late
+        for (long sequence : new long[]{1L, 2L, 4L, 3L, 5L, 1L}) {
+            assertTrue(alpha.send("beta", relayed("gamma", sequence, (int) sequence * 10), Magpie.TYPE_RELAYED));
+        }
+        for (int i = 0; i < 100 && received.size() < 5; i++) {
+            beta.poll(handler);
+            alpha.poll(handler);
+        }
+        // Gap is reported and later frames accepted, late frame is dropped, sequence 1 restarts the source
+        assertEquals(List.of("gamma 1 10", "gamma 2 20", "gamma 4 40", "gamma 5 50", "gamma 1 10"), received);
+        assertEquals(List.of("alpha ACCEPTED", "gamma ERROR", "gamma ERROR"), events);
+        alpha.close();
+        beta.close();
+    }
+
+    @Test
+    void testGreetingNegotiation() throws Exception {
+        int port = 11231;
+        MagpieOptions options = new MagpieOptions();
+        options.setLazyWakeup(1L);
+        options.setCompactHeader(true);
+        options.setChecksum(true);
+        List<String> events = new CopyOnWriteArrayList<>();
+        List<String> received = new CopyOnWriteArrayList<>();
+        Magpie server = new Magpie("server", port, options)
+                .addStatusListener((id, status) -> events.add(id + " " + status))
+                .open();
+        MagpieDataHandler handler = (source, sequence, type, buffer, offset, length) -> received.add(source + " " + sequence);
+        // Legacy peer gets full header packets without flags, its full header packets are read
+        SocketChannel legacy = rawPeer(port, server, handler, "legacy", 24, (short) 0, (short) 0, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        MagpiePacket.writePacket(2L, Magpie.TYPE_DATA, buffer, payload(1, 4));
+        legacy.write(buffer);
+        assertTrue(server.send("legacy", payload(2, 4), (short) 1));
+        ByteBuffer in = receive(legacy, server, handler, 28);
+        assertEquals("MAGPIE", new String(in.array(), 0, 6, StandardCharsets.US_ASCII));
+        assertEquals(0, in.get(6));
+        assertEquals(28, in.getInt(8));
+        // Capabilities are the intersection: checksum is offered by both, compact header by server only
+        SocketChannel capable = rawPeer(port, server, handler, "capable", 36, (short) 0, (short) 1, MagpieGreeting.CAP_CHECKSUM);
+        assertTrue(server.send("capable", payload(3, 4), (short) 1));
+        in = receive(capable, server, handler, 32);
+        assertEquals("MAGPIE", new String(in.array(), 0, 6, StandardCharsets.US_ASCII));
+        assertEquals(MagpiePacket.FLAG_CHECKSUM, in.get(6));
+        // Capability bits of a peer limited to version 0 are ignored
+        SocketChannel old = rawPeer(port, server, handler, "old", 36, (short) 0, (short) 0, MagpieGreeting.CAP_CHECKSUM);
+        assertTrue(server.send("old", payload(4, 4), (short) 1));
+        in = receive(old, server, handler, 28);
+        assertEquals(0, in.get(6));
+        assertEquals(List.of("legacy 2"), received);
+        // No common version, disconnected
+        SocketChannel future = rawPeer(port, server, handler, "future", 36, (short) 2, (short) 3, 0);
+        ByteBuffer rest = ByteBuffer.allocate(256);
+        int n = 0;
+        for (int i = 0; i < 200 && n >= 0; i++) {
+            server.poll(handler);
+            n = future.read(rest);
+        }
+        assertEquals(-1, n);
+        assertEquals(-1, server.slotOf("future"));
+        assertEquals(List.of("legacy ACCEPTED", "capable ACCEPTED", "old ACCEPTED", "null DISCONNECTED"), events);
+        legacy.close();
+        capable.close();
+        old.close();
+        future.close();
+        server.close();
+    }
+
+    /**
+     * Connects raw socket, reads server greeting and answers with greeting of specified length and versions.
+     */
+    private static SocketChannel rawPeer(int port, Magpie server, MagpieDataHandler handler,
+                                         String id, int length, short minVersion, short maxVersion, int capabilities) throws Exception {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        channel.configureBlocking(false);
+        ByteBuffer in = receive(channel, server, handler, 24 + 36);
+        assertEquals(Magpie.TYPE_GREETING, in.getInt(12));
+        MagpieGreeting greeting = new MagpieGreeting();
+        greeting.setId(id);
+        greeting.minVersion = minVersion;
+        greeting.maxVersion = maxVersion;
+        greeting.capabilities = capabilities;
+        ByteBuffer out = ByteBuffer.allocate(256);
+        MagpiePacket.writePacket(1L, Magpie.TYPE_GREETING, out, (buffer, offset) -> {
+            greeting.toBuffer(buffer, offset);
+            return length;
+        });
+        channel.write(out);
+        for (int i = 0; i < 200 && minVersion <= 1 && server.slotOf(id) < 0; i++) {
+            server.poll(handler);
+        }
+        return channel;
+    }
+
+    private static ByteBuffer receive(SocketChannel channel, Magpie server, MagpieDataHandler handler, int length) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (int i = 0; i < 200 && buffer.hasRemaining(); i++) {
+            server.poll(handler);
+            channel.read(buffer);
+        }
+        assertEquals(length, buffer.position());
+        return buffer;
+    }
+
+    private static MagpieDataTransformer relayed(String source, long sequence, int value) {
+        return (buffer, offset) -> {
+            MagpieRoutes.writeId(buffer, offset, MagpieGreeting.idHigh(source), MagpieGreeting.idLow(source));
+            buffer.putLong(offset + MagpieRoutes.IDX_SEQUENCE, sequence);
+            buffer.putShort(offset + MagpieRoutes.IDX_TYPE, (short) 7);
+            buffer.putInt(offset + MagpieRoutes.RELAY_HEADER, value);
+            return MagpieRoutes.RELAY_HEADER + 4;
+        };
+    }
+
+    /**
+     * @return payload {index, index bytes...}.
+     */
+    private static MagpieDataTransformer payload(int index, int length) {
+        return (buffer, offset) -> {
+            buffer.putInt(offset, index);
+            for (int i = 4; i < length; i++) {
+                buffer.put(offset + i, (byte) index);
+            }
+            return length;
+        };
+    }
+
+    private static class ManualClock extends Clock {
+        volatile long millis = 1_000_000L;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+}
@@ -1,12 +1,20 @@
 package com.threadcat.magpie.channel;
 
+import com.threadcat.magpie.MagpieOptions;
 import org.junit.jupiter.api.Test;
 
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class MagpieChannelTest {
 
@@ -33,6 +41,177 @@ class MagpieChannelTest {
         magpieChannel.close();
     }
 
+    @Test
+    void testBusyPollLoopback() {
+        byte[] bytes = "TestWord".getBytes(StandardCharsets.US_ASCII);
+        int port = 11011;
+        InetSocketAddress loopbackAddress = new InetSocketAddress("localhost", port);
+        MagpieTransport transport = new MagpieBusyPollChannel(port, new MagpieOptions())
+                .addEndpoint(loopbackAddress)
+                .open();
+        TestHandler handler = new TestHandler();
+        ByteBuffer buffer = ByteBuffer.allocate(32)
+                .put(bytes)
+                .flip();
+        transport.send(loopbackAddress, buffer);
+        // Data may not be readable yet on the first spin
+        for (int i = 0; i < 1000 && handler.eightBytes == 0L; i++) {
+            transport.poll(handler);
+        }
+        assertEquals(convertToLong(bytes), handler.eightBytes);
+        transport.pauseReading(loopbackAddress);
+        assertTrue(transport.isReadingPaused(loopbackAddress));
+        transport.close();
+        assertFalse(transport.isOpen());
+    }
+
+    @Test
+    void testReconfigure() throws Exception {
+        int port = 11021;
+        InetSocketAddress a = new InetSocketAddress("localhost", port);
+        InetSocketAddress b = new InetSocketAddress("localhost", port + 1);
+        MagpieOptions options = new MagpieOptions();
+        options.setConnectJitter(0L);
+        options.setDrainPeriod(50L);
+        List<String> events = new ArrayList<>();
+        MagpieChannel magpieChannel = new MagpieChannel(port, options)
+                .addAcceptor(b)
+                .addStatusListener((address, status) -> events.add(address + " " + status))
+                .open();
+        TestHandler handler = new TestHandler();
+        magpieChannel.reconfigure(Set.of(a));
+        magpieChannel.poll(handler);
+        assertTrue(magpieChannel.isInitiated(a));
+        // Unchanged connection is kept, added one connects, removed one is closed after drain period
+        events.clear();
+        magpieChannel.reconfigure(Set.of(a, b));
+        magpieChannel.poll(handler);
+        assertTrue(magpieChannel.isInitiated(b));
+        assertEquals(List.of(b + " CONNECTED"), events.subList(0, 1));
+        magpieChannel.reconfigure(Set.of(b));
+        magpieChannel.poll(handler);
+        assertTrue(magpieChannel.isInitiated(a));
+        assertTrue(events.contains(a + " DRAINING"));
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (magpieChannel.isInitiated(a) && System.nanoTime() < deadline) {
+            magpieChannel.poll(handler);
+        }
+        assertFalse(magpieChannel.isInitiated(a));
+        assertTrue(events.contains(a + " DISCONNECTED"));
+        assertTrue(magpieChannel.isInitiated(b));
+        magpieChannel.close();
+    }
+
+    @Test
+    void testCircuitBreaker() throws Exception {
+        // Nothing listens on these ports
+        InetSocketAddress a = new InetSocketAddress("localhost", 11031);
+        InetSocketAddress b = new InetSocketAddress("localhost", 11032);
+        MagpieOptions options = new MagpieOptions();
+        options.setReconnectIntervals(0, 0);
+        options.setCircuitBreakerThreshold(2);
+        options.setMaxConnectsPerPoll(1);
+        options.setLazyWakeup(1L);
+        List<String> events = new ArrayList<>();
+        MagpieChannel magpieChannel = new MagpieChannel(options)
+                .addEndpoint(a)
+                .addEndpoint(b)
+                .addStatusListener((address, status) -> events.add(address.getPort() + " " + status))
+                .open();
+        TestHandler handler = new TestHandler();
+        // One connection attempt per poll, endpoints take turns
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(2L);
+            magpieChannel.poll(handler);
+        }
+        String first = events.get(0).substring(0, 5);
+        String second = first.equals("11031") ? "11032" : "11031";
+        assertEquals(List.of(first + " CIRCUIT_OPEN", second + " CIRCUIT_OPEN", first + " CIRCUIT_HALF_OPEN", first + " CIRCUIT_OPEN"), events);
+        magpieChannel.close();
+    }
+
+    @Test
+    void testBackoffSpread() {
+        InetSocketAddress address = new InetSocketAddress("localhost", 11033);
+        long minFirst = Long.MAX_VALUE;
+        long maxFirst = 0L;
+        long minLost = Long.MAX_VALUE;
+        long maxLost = 0L;
+        for (int i = 0; i < 1000; i++) {
+            MagpieChannel.Endpoint endpoint = new MagpieChannel.Endpoint(address);
+            long first = endpoint.updateNext(0L, 1000L, 60000L);
+            minFirst = Math.min(minFirst, first);
+            maxFirst = Math.max(maxFirst, first);
+            // Reset by successful connection, then lost
+            endpoint.reset();
+            long lost = endpoint.lost(0L, 1000L);
+            minLost = Math.min(minLost, lost);
+            maxLost = Math.max(maxLost, lost);
+        }
+        // First delay is drawn from base to three times base, not fixed at base
+        assertTrue(minFirst >= 1000L && minFirst < 1200L, "Min first delay " + minFirst);
+        assertTrue(maxFirst <= 3000L && maxFirst > 2800L, "Max first delay " + maxFirst);
+        // First attempt after lost connection is not immediate for every peer
+        assertTrue(minLost < 200L && maxLost > 800L && maxLost <= 1000L, "Lost delays " + minLost + ".." + maxLost);
+    }
+
+    @Test
+    void testSocketBuffersOfAcceptedConnection() throws Exception {
+        int port = 11042;
+        InetSocketAddress acceptor = new InetSocketAddress("localhost", port);
+        MagpieChannel magpieChannel = new MagpieChannel(acceptor, new MagpieOptions()).open();
+        SocketChannel peer = SocketChannel.open(acceptor);
+        InetSocketAddress peerAddress = (InetSocketAddress) peer.getLocalAddress();
+        for (int i = 0; i < 10 && !magpieChannel.isAccepted(peerAddress); i++) {
+            magpieChannel.poll(new TestHandler());
+        }
+        assertTrue(magpieChannel.isAccepted(peerAddress));
+        magpieChannel.setSocketBuffers(peerAddress, 16384, 0);
+        SocketChannel accepted = magpieChannel.channels.get(peerAddress).channel;
+        // Linux reports doubled size reserving room for bookkeeping
+        int sendBufferSize = accepted.getOption(StandardSocketOptions.SO_SNDBUF);
+        assertTrue(sendBufferSize == 16384 || sendBufferSize == 32768, "SO_SNDBUF " + sendBufferSize);
+        peer.close();
+        magpieChannel.close();
+    }
+
+    @Test
+    void testAcceptBudgetAndPendingBuffer() throws Exception {
+        int port = 11041;
+        InetSocketAddress acceptor = new InetSocketAddress("localhost", port);
+        MagpieOptions options = new MagpieOptions();
+        options.setMaxAcceptsPerPoll(1);
+        options.setLazyWakeup(10L);
+        List<String> events = new ArrayList<>();
+        MagpieChannel magpieChannel = new MagpieChannel(acceptor, options)
+                .addStatusListener((address, status) -> events.add(address + " " + status));
+        magpieChannel.setPendingBufferSize(16);
+        magpieChannel.open();
+        SocketChannel stranger = SocketChannel.open(acceptor);
+        SocketChannel peer = SocketChannel.open(acceptor);
+        InetSocketAddress strangerAddress = (InetSocketAddress) stranger.getLocalAddress();
+        InetSocketAddress peerAddress = (InetSocketAddress) peer.getLocalAddress();
+        TestHandler handler = new TestHandler();
+        // Backlog is taken one connection per poll
+        magpieChannel.poll(handler);
+        assertEquals(1, events.size());
+        magpieChannel.poll(handler);
+        assertEquals(List.of(strangerAddress + " ACCEPTED", peerAddress + " ACCEPTED"), events);
+        // Unauthenticated connection filling its small buffer is closed, authenticated one gets full size buffer
+        magpieChannel.authenticate(peerAddress);
+        stranger.write(ByteBuffer.allocate(16));
+        peer.write(ByteBuffer.allocate(24));
+        for (int i = 0; i < 10 && magpieChannel.channels.get(peerAddress).buffer.position() < 24; i++) {
+            magpieChannel.poll(handler);
+        }
+        assertTrue(events.contains(strangerAddress + " DISCONNECTED"));
+        assertFalse(events.contains(peerAddress + " DISCONNECTED"));
+        assertEquals(24, magpieChannel.channels.get(peerAddress).buffer.position());
+        stranger.close();
+        peer.close();
+        magpieChannel.close();
+    }
+
     private static class TestHandler implements MagpieChannelDataHandler {
         long eightBytes;
 
@@ -0,0 +1,94 @@
+package com.threadcat.magpie.codec;
+
+import com.threadcat.magpie.MagpieDataTransformer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compares flyweight codec with hand written putLong/getLong code,
+ * encoding a 5-field message into direct buffer and decoding it back.
+ * <p>
+ * Nanoseconds per message (encode + decode), 1 vCPU, JDK 17:
+ * <p>
+ * manual     flyweight  encoder
+ * 6.7        31.4       39.0
+ * 15.0       43.6       47.0
+ * 19.1       49.0       47.0
+ * <p>
+ * Encoder writes in place like flyweight, the gap to manual code is the byte-wise ASCII symbol copy
+ * which manual code packs into a single long.
+ */
+public class MagpieCodecBenchmark {
+    private static final int WARMUP = 10_000_000;
+    private static final int MEASURE = 10_000_000;
+    private static final MagpieSchema SCHEMA = new MagpieSchema("quote", (short) 10);
+    private static final MagpieField SYMBOL = SCHEMA.ascii("symbol", 8);
+    private static final MagpieField PRICE = SCHEMA.int64("price");
+    private static final MagpieField QTY = SCHEMA.int32("qty");
+    private static final MagpieField TIME = SCHEMA.int64("time");
+    private static final MagpieField FLAGS = SCHEMA.int16("flags");
+
+    public static void main(String[] args) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        MagpieFlyweight flyweight = new MagpieFlyweight(SCHEMA);
+        long[] value = new long[1];
+        MagpieEncoder encoder = new MagpieEncoder(SCHEMA) {
+            @Override
+            protected void encode() {
+                putAscii(SYMBOL, "EURUSD")
+                        .putLong(PRICE, value[0])
+                        .putInt(QTY, 100)
+                        .putLong(TIME, value[0])
+                        .putShort(FLAGS, (short) 1);
+            }
+        };
+        MagpieDataTransformer manual = (b, offset) -> {
+            b.putLong(offset, 0x0000445355525545L);
+            b.putLong(offset + 8, value[0]);
+            b.putInt(offset + 16, 100);
+            b.putLong(offset + 20, value[0]);
+            b.putShort(offset + 28, (short) 1);
+            return 30;
+        };
+        MagpieDataTransformer inPlace = (b, offset) -> {
+            flyweight.wrap(b, offset)
+                    .putAscii(SYMBOL, "EURUSD")
+                    .putLong(PRICE, value[0])
+                    .putInt(QTY, 100)
+                    .putLong(TIME, value[0])
+                    .putShort(FLAGS, (short) 1);
+            return SCHEMA.size();
+        };
+        for (int round = 0; round < 3; round++) {
+            double a = measure(buffer, manual, value, false, flyweight);
+            double b = measure(buffer, inPlace, value, true, flyweight);
+            double c = measure(buffer, encoder, value, true, flyweight);
+            System.out.printf("%-10.1f %-10.1f %.1f\n", a, b, c);
+        }
+    }
+
+    private static double measure(ByteBuffer buffer, MagpieDataTransformer transformer, long[] value, boolean decodeFlyweight, MagpieFlyweight flyweight) {
+        long sum = 0L;
+        long start = 0L;
+        for (int i = 1; i <= WARMUP + MEASURE; i++) {
+            if (i == WARMUP + 1) {
+                start = System.nanoTime();
+            }
+            value[0] = i;
+            int offset = i & 63;
+            transformer.write(buffer, offset);
+            if (decodeFlyweight) {
+                flyweight.wrap(buffer, offset);
+                sum += flyweight.getLong(PRICE) + flyweight.getInt(QTY) + flyweight.getLong(TIME) + flyweight.getShort(FLAGS);
+            } else {
+                sum += buffer.getLong(offset + 8) + buffer.getInt(offset + 16) + buffer.getLong(offset + 20) + buffer.getShort(offset + 28);
+            }
+        }
+        long stop = System.nanoTime();
+        long n = WARMUP + MEASURE;
+        if (sum != n * (n + 1) + 101 * n) {
+            throw new IllegalStateException("Wrong sum " + sum);
+        }
+        return (double) (stop - start) / MEASURE;
+    }
+}
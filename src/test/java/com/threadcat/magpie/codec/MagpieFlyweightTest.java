@@ -0,0 +1,92 @@
+package com.threadcat.magpie.codec;
+
+import com.threadcat.magpie.internal.MagpieException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieFlyweightTest {
+    private final MagpieSchema schema = new MagpieSchema("quote", (short) 10);
+    private final MagpieField side = schema.int8("side");
+    private final MagpieField venue = schema.int16("venue");
+    private final MagpieField qty = schema.int32("qty");
+    private final MagpieField price = schema.int64("price");
+    private final MagpieField rate = schema.float64("rate");
+    private final MagpieField symbol = schema.ascii("symbol", 8);
+
+    @Test
+    void testLayout() {
+        assertEquals(0, side.getOffset());
+        assertEquals(1, venue.getOffset());
+        assertEquals(3, qty.getOffset());
+        assertEquals(7, price.getOffset());
+        assertEquals(15, rate.getOffset());
+        assertEquals(23, symbol.getOffset());
+        assertEquals(31, schema.size());
+        assertSame(price, schema.field("price"));
+        assertThrows(MagpieException.class, () -> schema.int8("side"));
+        assertThrows(MagpieException.class, () -> new MagpieSchema("heartbeat", (short) 0));
+        assertThrows(MagpieException.class, () -> new MagpieSchema("greeting", (short) -1));
+    }
+
+    @Test
+    void testEncodeDecode() {
+        MagpieEncoder encoder = new MagpieEncoder(schema) {
+            @Override
+            protected void encode() {
+                putByte(side, (byte) -1)
+                        .putShort(venue, (short) 300)
+                        .putInt(qty, 1_000_000)
+                        .putLong(price, 0x1122334455667788L)
+                        .putDouble(rate, 1.25)
+                        .putAscii(symbol, "EURUSD");
+            }
+        };
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        assertEquals(31, encoder.write(buffer, 5));
+        MagpieFlyweight flyweight = new MagpieFlyweight(schema).wrap(buffer, 5);
+        assertEquals((byte) -1, flyweight.getByte(side));
+        assertEquals((short) 300, flyweight.getShort(venue));
+        assertEquals(1_000_000, flyweight.getInt(qty));
+        assertEquals(0x1122334455667788L, flyweight.getLong(price));
+        assertEquals(1.25, flyweight.getDouble(rate));
+        assertEquals("EURUSD", flyweight.getAscii(symbol));
+        assertTrue(flyweight.equalsAscii(symbol, "EURUSD"));
+        assertFalse(flyweight.equalsAscii(symbol, "EURUS"));
+        assertFalse(flyweight.equalsAscii(symbol, "EURUSDXYZ"));
+        assertEquals(0, buffer.position());
+        // Flyweight writes in place
+        flyweight.putAscii(symbol, "GBPUSD_LONG");
+        assertEquals("GBPUSD_L", flyweight.getAscii(symbol));
+        assertEquals(0x1122334455667788L, flyweight.getLong(price));
+        encoder.clear();
+        assertEquals(0L, encoder.getLong(price));
+        assertEquals("", encoder.getAscii(symbol));
+    }
+
+    @Test
+    void testEncoderClear() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) -1);
+        }
+        MagpieEncoder encoder = new MagpieEncoder(schema) {
+            @Override
+            protected void encode() {
+                clear().putLong(price, 42L);
+            }
+        };
+        assertEquals(31, encoder.write(buffer, 3));
+        MagpieFlyweight flyweight = new MagpieFlyweight(schema).wrap(buffer, 3);
+        assertEquals(42L, flyweight.getLong(price));
+        assertEquals(0, flyweight.getInt(qty));
+        assertEquals("", flyweight.getAscii(symbol));
+        assertEquals((byte) -1, buffer.get(3 + 31));
+    }
+}
@@ -0,0 +1,65 @@
+package com.threadcat.magpie.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieCompressorTest {
+    private final MagpieCompressor compressor = new MagpieCompressor(4096, 32);
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+
+    @Test
+    void testRepetitiveText() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            sb.append("{\"symbol\":\"EURUSD\",\"side\":\"BUY\",\"qty\":").append(i * 1000).append("}");
+        }
+        byte[] bytes = sb.toString().getBytes(US_ASCII);
+        buffer.put(16, bytes);
+        int compressed = compressor.compress(buffer, 16, bytes.length);
+        assertTrue(compressed > 0 && compressed < bytes.length / 3, "Compressed " + compressed);
+        assertArrayEquals(bytes, decompress(16, compressed));
+    }
+
+    @Test
+    void testLongRuns() {
+        byte[] bytes = new byte[3000];
+        for (int i = 1000; i < bytes.length; i++) {
+            bytes[i] = (byte) (i % 7);
+        }
+        buffer.put(0, bytes);
+        int compressed = compressor.compress(buffer, 0, bytes.length);
+        assertTrue(compressed > 0 && compressed < 64, "Compressed " + compressed);
+        assertArrayEquals(bytes, decompress(0, compressed));
+    }
+
+    @Test
+    void testIncompressible() {
+        byte[] bytes = new byte[1024];
+        new Random(42).nextBytes(bytes);
+        buffer.put(0, bytes);
+        assertEquals(-1, compressor.compress(buffer, 0, bytes.length));
+        assertEquals(-1, compressor.compress(buffer, 0, 31));
+    }
+
+    @Test
+    void testMalformed() {
+        buffer.putInt(0, 100).put(4, (byte) 0xf0).put(5, (byte) 0xff);
+        assertEquals(-1, compressor.decompress(buffer, 0, 6));
+        buffer.putInt(0, 100000);
+        assertEquals(-1, compressor.decompress(buffer, 0, 6));
+    }
+
+    private byte[] decompress(int offset, int length) {
+        int n = compressor.decompress(buffer, offset, length);
+        byte[] bytes = new byte[n];
+        compressor.getBuffer().get(0, bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,67 @@
+package com.threadcat.magpie.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieConflationTest {
+    private final ByteBuffer buffer = ByteBuffer.allocate(64);
+
+    @Test
+    void testReplaceInPlace() {
+        MagpieConflation conflation = new MagpieConflation(2, 16);
+        assertTrue(conflation.offer(7L, (short) 1, value(1), 0, 8));
+        assertTrue(conflation.offer(9L, (short) 1, value(2), 0, 8));
+        assertTrue(conflation.offer(7L, (short) 2, value(3), 0, 4));
+        assertFalse(conflation.offer(5L, (short) 1, value(4), 0, 8));
+        assertEquals(2, conflation.size());
+        assertEquals(12, conflation.getQueuedBytes());
+        assertEquals(1L, conflation.getReplaced());
+        // Key 7 keeps its place in the queue, carrying the latest value
+        assertEquals(4, conflation.poll(buffer, 0));
+        assertEquals(2, conflation.getType());
+        assertEquals(3, buffer.get(0));
+        assertEquals(8, conflation.poll(buffer, 0));
+        assertEquals(2, buffer.get(0));
+        assertEquals(-1, conflation.poll(buffer, 0));
+        assertTrue(conflation.isEmpty());
+    }
+
+    @Test
+    void testRandomAgainstMap() {
+        MagpieConflation conflation = new MagpieConflation(50, 8);
+        Map<Long, Long> latest = new HashMap<>();
+        ArrayDeque<Long> order = new ArrayDeque<>();
+        Random random = new Random(42);
+        ByteBuffer src = ByteBuffer.allocate(8);
+        for (int i = 0; i < 100_000; i++) {
+            if (random.nextInt(3) > 0) {
+                long key = random.nextInt(80) * 1_000_003L;
+                src.putLong(0, i);
+                boolean accepted = conflation.offer(key, (short) 0, src, 0, 8);
+                assertEquals(latest.containsKey(key) || latest.size() < 50, accepted);
+                if (accepted && latest.put(key, (long) i) == null) {
+                    order.add(key);
+                }
+            } else if (!order.isEmpty()) {
+                assertEquals(8, conflation.poll(buffer, 0));
+                assertEquals((long) latest.remove(order.poll()), buffer.getLong(0));
+            }
+        }
+        assertEquals(order.size(), conflation.size());
+    }
+
+    private static ByteBuffer value(int value) {
+        ByteBuffer payload = ByteBuffer.allocate(8);
+        payload.put(0, (byte) value);
+        return payload;
+    }
+}
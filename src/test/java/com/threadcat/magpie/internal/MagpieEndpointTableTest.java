@@ -0,0 +1,124 @@
+package com.threadcat.magpie.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class MagpieEndpointTableTest {
+    private final MagpieEndpointTable table = new MagpieEndpointTable();
+
+    @Test
+    void testAddressAndIdLookup() {
+        MagpieEndpoint a = endpoint("localhost", 11001);
+        MagpieEndpoint b = endpoint("localhost", 11002);
+        assertEquals(0, table.add(a));
+        assertEquals(1, table.add(b));
+        assertSame(b, table.get(new InetSocketAddress("localhost", 11002)));
+        // Id is not available for lookup until bound
+        a.setId("service-a");
+        assertEquals(-1, table.slotOf("service-a"));
+        table.bindId(a);
+        assertSame(a, table.get("service-a"));
+        assertEquals(0, table.slotOf("service-a"));
+        // Removed slot is reused
+        assertSame(a, table.remove(a.getAddress()));
+        assertNull(table.get("service-a"));
+        assertNull(table.get(a.getAddress()));
+        MagpieEndpoint c = endpoint("localhost", 11003);
+        assertEquals(0, table.add(c));
+        assertSame(b, table.get(1));
+    }
+
+    @Test
+    void testManyEndpoints() {
+        for (int i = 0; i < 1000; i++) {
+            MagpieEndpoint endpoint = endpoint("localhost", 20000 + i);
+            table.add(endpoint);
+            endpoint.setId("id-" + i);
+            table.bindId(endpoint);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            table.remove(new InetSocketAddress("localhost", 20000 + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            MagpieEndpoint endpoint = table.get("id-" + i);
+            if (i % 2 == 0) {
+                assertNull(endpoint);
+            } else {
+                assertEquals(20000 + i, endpoint.getAddress().getPort());
+                assertSame(endpoint, table.get(endpoint.getAddress()));
+            }
+        }
+    }
+
+    @Test
+    void testStripeByKey() {
+        MagpieEndpoint[] stripes = new MagpieEndpoint[3];
+        for (int i = 0; i < 3; i++) {
+            stripes[i] = endpoint("localhost", 11010 + i);
+            table.add(stripes[i]);
+            stripes[i].setId("striped");
+            stripes[i].setStripe(i, 3);
+            table.bindId(stripes[i]);
+        }
+        long idHigh = MagpieGreeting.idHigh("striped");
+        long idLow = MagpieGreeting.idLow("striped");
+        for (long key = -6; key < 6; key++) {
+            assertSame(stripes[(int) Math.floorMod(key, 3L)], table.get(table.slotOf(idHigh, idLow, key)));
+        }
+        // Only keys of the stripe which is down move
+        table.remove(stripes[1].getAddress());
+        for (long key = 0; key < 6; key++) {
+            MagpieEndpoint endpoint = table.get(table.slotOf(idHigh, idLow, key));
+            if (key % 3 == 1) {
+                assertNotSame(stripes[1], endpoint);
+            } else {
+                assertSame(stripes[(int) (key % 3)], endpoint);
+            }
+        }
+        // Reconnected stripe gets its keys back
+        MagpieEndpoint again = endpoint("localhost", 11021);
+        table.add(again);
+        again.setId("striped");
+        again.setStripe(1, 3);
+        table.bindId(again);
+        assertSame(again, table.get(table.slotOf(idHigh, idLow, 4L)));
+        assertSame(stripes[2], table.get(table.slotOf(idHigh, idLow, 5L)));
+    }
+
+    @Test
+    void testMapCollisions() {
+        MagpieLongIntMap map = MagpieLongIntMap.EMPTY;
+        for (int i = 0; i < 100; i++) {
+            map = map.put(i % 3, i);
+        }
+        int count = 0;
+        for (int i = map.find(1); i >= 0; i = map.next(i, 1)) {
+            assertEquals(1, map.valueAt(i) % 3);
+            count++;
+        }
+        assertEquals(33, count);
+        assertEquals(99, map.removeValue(4).size());
+        assertEquals(-1, MagpieLongIntMap.EMPTY.find(1));
+    }
+
+    @Test
+    void testIdParsing() {
+        String uuid = "9a866451-32d2-4ab6-a35c-8ec580f94358";
+        assertEquals(UUID.fromString(uuid).getMostSignificantBits(), MagpieGreeting.idHigh(uuid));
+        assertEquals(UUID.fromString(uuid).getLeastSignificantBits(), MagpieGreeting.idLow(uuid));
+        MagpieGreeting greeting = new MagpieGreeting();
+        greeting.setId("service-a");
+        assertEquals("service-a", greeting.getId());
+    }
+
+    private static MagpieEndpoint endpoint(String host, int port) {
+        return new MagpieEndpoint(new InetSocketAddress(host, port), 0L, 1000L, 64);
+    }
+}
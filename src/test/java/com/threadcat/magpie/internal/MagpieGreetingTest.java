@@ -0,0 +1,63 @@
+package com.threadcat.magpie.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MagpieGreetingTest {
+    private final ByteBuffer buffer = ByteBuffer.allocate(64);
+
+    @Test
+    void testRoundTrip() {
+        MagpieGreeting out = new MagpieGreeting();
+        out.setId("greeter");
+        out.capabilities = MagpieGreeting.CAP_CHECKSUM | MagpieGreeting.CAP_TOPICS;
+        out.stripe = 2;
+        out.stripes = 4;
+        assertEquals(36, out.toBuffer(buffer, 0));
+        MagpieGreeting in = new MagpieGreeting().fromBuffer(buffer, 0, 36);
+        assertEquals("greeter", in.getId());
+        assertEquals(MagpieGreeting.MIN_VERSION, in.minVersion);
+        assertEquals(MagpieGreeting.MAX_VERSION, in.maxVersion);
+        assertEquals(MagpieGreeting.CAP_CHECKSUM | MagpieGreeting.CAP_TOPICS, in.capabilities);
+        assertEquals(2, in.stripe);
+        assertEquals(4, in.stripes);
+    }
+
+    @Test
+    void testLegacyGreeting() {
+        MagpieGreeting out = new MagpieGreeting();
+        out.setId("legacy");
+        out.capabilities = MagpieGreeting.CAP_COMPACT_HEADER;
+        out.stripes = 4;
+        out.toBuffer(buffer, 0);
+        // Trailing fields are not there in 24-byte greeting
+        MagpieGreeting in = new MagpieGreeting().fromBuffer(buffer, 0, 24);
+        assertEquals("legacy", in.getId());
+        assertEquals(0, in.minVersion);
+        assertEquals(0, in.maxVersion);
+        assertEquals(0, in.capabilities);
+        assertEquals(1, in.stripes);
+        assertEquals(0, in.agreeVersion(MagpieGreeting.MIN_VERSION, MagpieGreeting.MAX_VERSION));
+    }
+
+    @Test
+    void testAgreeVersion() {
+        MagpieGreeting greeting = new MagpieGreeting();
+        greeting.minVersion = 0;
+        greeting.maxVersion = 5;
+        assertEquals(1, greeting.agreeVersion((short) 0, (short) 1));
+        greeting.minVersion = 1;
+        greeting.maxVersion = 1;
+        assertEquals(1, greeting.agreeVersion((short) 0, (short) 3));
+        // Disjoint ranges
+        greeting.minVersion = 2;
+        greeting.maxVersion = 3;
+        assertEquals(-1, greeting.agreeVersion((short) 0, (short) 1));
+        greeting.minVersion = 0;
+        greeting.maxVersion = 0;
+        assertEquals(-1, greeting.agreeVersion((short) 1, (short) 1));
+    }
+}
@@ -0,0 +1,47 @@
+package com.threadcat.magpie.internal;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieIdTableTest {
+
+    @Test
+    void testLookup() {
+        MagpieIdTable table = new MagpieIdTable(200);
+        int[] indexes = new int[200];
+        for (int i = 0; i < 200; i++) {
+            String id = "service-" + i;
+            indexes[i] = indexOf(table, id);
+            assertTrue(indexes[i] >= 0);
+            assertEquals(id, table.id(indexes[i]));
+        }
+        for (int i = 0; i < 200; i++) {
+            String id = "service-" + i;
+            int index = indexOf(table, id);
+            assertEquals(indexes[i], index);
+            // Cached string, nothing allocated on lookup
+            assertSame(table.id(indexes[i]), table.id(index));
+            assertNotSame(id, table.id(index));
+        }
+        assertEquals(200, table.size());
+    }
+
+    @Test
+    void testBounded() {
+        MagpieIdTable table = new MagpieIdTable(2);
+        assertTrue(indexOf(table, "alpha") >= 0);
+        assertTrue(indexOf(table, "beta") >= 0);
+        assertEquals(-1, indexOf(table, "gamma"));
+        // Known ids still resolve when full
+        assertEquals("beta", table.id(indexOf(table, "beta")));
+        assertEquals(2, table.size());
+    }
+
+    private static int indexOf(MagpieIdTable table, String id) {
+        return table.indexOf(MagpieGreeting.idHigh(id), MagpieGreeting.idLow(id));
+    }
+}
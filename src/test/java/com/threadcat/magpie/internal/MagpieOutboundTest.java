@@ -0,0 +1,67 @@
+package com.threadcat.magpie.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieOutboundTest {
+    private final ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    @Test
+    void testUrgentFirst() {
+        MagpieOutbound outbound = new MagpieOutbound(64, 4, 256);
+        assertTrue(outbound.isEmpty());
+        assertTrue(outbound.offer(MagpieOutbound.BULK, 0L, (short) 1, payload(10), 0, 10));
+        assertTrue(outbound.offer(MagpieOutbound.BULK, 0L, (short) 2, payload(20), 0, 20));
+        assertTrue(outbound.offer(MagpieOutbound.URGENT, 0L, (short) -1, payload(8), 0, 8));
+        assertEquals(3 * 6 + 38, outbound.getQueuedBytes());
+        assertEquals(8, outbound.poll(buffer, 16));
+        assertEquals(-1, outbound.getType());
+        assertEquals(10, outbound.poll(buffer, 16));
+        assertEquals(1, outbound.getType());
+        assertEquals(20, outbound.poll(buffer, 16));
+        assertEquals(2, outbound.getType());
+        assertEquals(19, buffer.get(16 + 19));
+        assertEquals(-1, outbound.poll(buffer, 16));
+        assertTrue(outbound.isEmpty());
+    }
+
+    @Test
+    void testLaneFullAndCompaction() {
+        MagpieOutbound outbound = new MagpieOutbound(64, 4, 256);
+        assertTrue(outbound.offer(MagpieOutbound.BULK, 0L, (short) 1, payload(30), 0, 30));
+        assertTrue(outbound.offer(MagpieOutbound.BULK, 0L, (short) 2, payload(20), 0, 20));
+        assertFalse(outbound.offer(MagpieOutbound.BULK, 0L, (short) 3, payload(30), 0, 30));
+        assertTrue(outbound.offer(MagpieOutbound.URGENT, 0L, (short) 3, payload(30), 0, 30));
+        assertEquals(30, outbound.poll(buffer, 0));
+        assertEquals(30, outbound.poll(buffer, 0));
+        // Room is reclaimed by moving remaining frame to the start
+        assertTrue(outbound.offer(MagpieOutbound.BULK, 0L, (short) 4, payload(30), 0, 30));
+        assertEquals(20, outbound.poll(buffer, 0));
+        assertEquals(2, outbound.getType());
+        assertEquals(30, outbound.poll(buffer, 0));
+        assertEquals(4, outbound.getType());
+    }
+
+    @Test
+    void testInFlight() {
+        MagpieOutbound outbound = new MagpieOutbound(64, 4, 256);
+        ByteBuffer packet = payload(40).position(25);
+        outbound.setInFlight(packet);
+        assertFalse(outbound.isEmpty());
+        assertEquals(15, outbound.getInFlight().remaining());
+        assertEquals(25, outbound.getInFlight().get(0));
+    }
+
+    private static ByteBuffer payload(int length) {
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            payload.put(i, (byte) i);
+        }
+        return payload;
+    }
+}
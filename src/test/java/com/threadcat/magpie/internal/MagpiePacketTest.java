@@ -0,0 +1,176 @@
+package com.threadcat.magpie.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpiePacketTest {
+    private final MagpieEndpoint endpoint = new MagpieEndpoint(new InetSocketAddress("localhost", 11001), 0L, 1000L, 256);
+    private final ByteBuffer wrBuffer = ByteBuffer.allocateDirect(256);
+    private final ByteBuffer rdBuffer = ByteBuffer.allocateDirect(256);
+    private long sequence;
+    private int type;
+    private long payload;
+    private int length;
+
+    @Test
+    void testCompactRoundTrip() {
+        endpoint.setProtocol((short) 1, MagpieGreeting.CAP_COMPACT_HEADER);
+        int size = MagpiePacket.writeCompactPacket(1, wrBuffer, MagpiePacketTest::writeLong, null, null);
+        assertEquals(3 + 8, size);
+        rdBuffer.put(wrBuffer);
+        MagpiePacket.writeCompactPacket(Integer.MIN_VALUE, wrBuffer, MagpiePacketTest::writeLong, null, null);
+        rdBuffer.put(wrBuffer);
+        assertTrue(MagpiePacket.lookupHeader(rdBuffer, endpoint));
+        assertTrue(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(1L, sequence);
+        assertEquals(1, type);
+        assertEquals(8, length);
+        assertEquals(0x1122334455667788L, payload);
+        assertFalse(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(2L, sequence);
+        assertEquals(Integer.MIN_VALUE, type);
+    }
+
+    @Test
+    void testMixedAndPartial() {
+        endpoint.setProtocol((short) 1, MagpieGreeting.CAP_COMPACT_HEADER);
+        MagpiePacket.writePacket(7L, -1, wrBuffer, MagpiePacketTest::writeLong);
+        rdBuffer.put(wrBuffer);
+        MagpiePacket.writeCompactPacket(0, wrBuffer, MagpiePacketTest::writeLong, null, null);
+        // Only part of compact packet has arrived
+        rdBuffer.put(wrBuffer.limit(wrBuffer.limit() - 3));
+        assertTrue(MagpiePacket.lookupHeader(rdBuffer, endpoint));
+        assertTrue(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(7L, sequence);
+        assertEquals(-1, type);
+        assertTrue(MagpiePacket.lookupHeader(rdBuffer, endpoint));
+        assertFalse(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(7L, sequence);
+        rdBuffer.put(wrBuffer.limit(wrBuffer.limit() + 3));
+        assertFalse(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(8L, sequence);
+        assertEquals(0, type);
+        assertEquals(0, rdBuffer.position());
+    }
+
+    @Test
+    void testCompressedFullPacket() {
+        endpoint.setCompressor(new MagpieCompressor(256, 16));
+        MagpiePacket.writePacket((short) 1, 3L, 1, wrBuffer, MagpiePacketTest::writeLongs, endpoint.getCompressor(), null);
+        assertTrue(wrBuffer.remaining() < 24 + 64);
+        rdBuffer.put(wrBuffer);
+        assertTrue(MagpiePacket.lookupHeader(rdBuffer, endpoint));
+        assertFalse(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(3L, sequence);
+        assertEquals(64, length);
+        assertEquals(0x1122334455667788L, payload);
+    }
+
+    @Test
+    void testChecksum() {
+        endpoint.setProtocol((short) 1, MagpieGreeting.CAP_COMPACT_HEADER);
+        CRC32C checksum = new CRC32C();
+        MagpiePacket.writePacket((short) 1, 1L, 1, wrBuffer, MagpiePacketTest::writeLong, null, checksum);
+        rdBuffer.put(wrBuffer);
+        MagpiePacket.writeCompactPacket(1, wrBuffer, MagpiePacketTest::writeLong, null, checksum);
+        int corruptedIndex = rdBuffer.position() + wrBuffer.remaining() - 6;
+        rdBuffer.put(wrBuffer);
+        rdBuffer.put(corruptedIndex, (byte) (rdBuffer.get(corruptedIndex) ^ 1));
+        assertTrue(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(1L, sequence);
+        assertEquals(0x1122334455667788L, payload);
+        assertTrue(MagpiePacket.lookupHeader(rdBuffer, endpoint));
+        assertFalse(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(1L, sequence);
+        assertEquals(1L, endpoint.getCorrupted());
+        assertEquals(0, rdBuffer.position());
+    }
+
+    @Test
+    void testCorruptedPacketConsumesSequence() {
+        endpoint.setProtocol((short) 1, MagpieGreeting.CAP_COMPACT_HEADER);
+        CRC32C checksum = new CRC32C();
+        MagpiePacket.writePacket((short) 1, 1L, 1, wrBuffer, MagpiePacketTest::writeLong, null, checksum);
+        rdBuffer.put(wrBuffer);
+        MagpiePacket.writeCompactPacket(1, wrBuffer, MagpiePacketTest::writeLong, null, checksum);
+        // Payload follows tag, length and type
+        int payloadIndex = rdBuffer.position() + 3;
+        rdBuffer.put(wrBuffer);
+        rdBuffer.put(payloadIndex, (byte) 0x40);
+        MagpiePacket.writeCompactPacket(1, wrBuffer, MagpiePacketTest::writeLong, null, checksum);
+        rdBuffer.put(wrBuffer);
+        assertTrue(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(1L, sequence);
+        assertTrue(MagpiePacket.lookupHeader(rdBuffer, endpoint));
+        assertTrue(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(1L, sequence);
+        assertEquals(1L, endpoint.getCorrupted());
+        // Dropped packet leaves a gap, so the loss is detected by sequence verification
+        assertFalse(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(3L, sequence);
+        assertEquals(0x1122334455667788L, payload);
+        assertFalse(endpoint.isMalformed());
+    }
+
+    @Test
+    void testMalformedCompactHeader() {
+        endpoint.setProtocol((short) 1, MagpieGreeting.CAP_COMPACT_HEADER);
+        MagpiePacket.writeCompactPacket(1, wrBuffer, MagpiePacketTest::writeLong, null, null);
+        rdBuffer.put(wrBuffer);
+        // Tag followed by payload length varint longer than 5 bytes
+        rdBuffer.put((byte) 0x80);
+        for (int i = 0; i < 6; i++) {
+            rdBuffer.put((byte) 0xff);
+        }
+        assertTrue(MagpiePacket.lookupHeader(rdBuffer, endpoint));
+        assertTrue(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertEquals(1L, sequence);
+        assertTrue(MagpiePacket.lookupHeader(rdBuffer, endpoint));
+        assertFalse(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertTrue(endpoint.isMalformed());
+        assertEquals(1L, endpoint.getCorrupted());
+        assertEquals(0, rdBuffer.position());
+    }
+
+    @Test
+    void testGarbageInCompactStream() {
+        endpoint.setProtocol((short) 1, MagpieGreeting.CAP_COMPACT_HEADER);
+        MagpiePacket.writeCompactPacket(1, wrBuffer, MagpiePacketTest::writeLong, null, null);
+        rdBuffer.put(wrBuffer);
+        // Neither compact tag nor marker, e.g. the middle of a packet whose length was corrupted
+        rdBuffer.put((byte) 0x11);
+        MagpiePacket.writeCompactPacket(1, wrBuffer, MagpiePacketTest::writeLong, null, null);
+        rdBuffer.put(wrBuffer);
+        assertTrue(MagpiePacket.lookupHeader(rdBuffer, endpoint));
+        assertTrue(MagpiePacket.readPacket(rdBuffer, endpoint, this::process));
+        assertFalse(MagpiePacket.lookupHeader(rdBuffer, endpoint));
+        assertTrue(endpoint.isMalformed());
+        assertEquals(1L, sequence);
+    }
+
+    private void process(String source, long sequence, int type, ByteBuffer buffer, int offset, int length) {
+        this.sequence = sequence;
+        this.type = type;
+        this.length = length;
+        this.payload = buffer.getLong(offset);
+    }
+
+    private static int writeLongs(ByteBuffer buffer, int offset) {
+        for (int i = 0; i < 64; i += 8) {
+            writeLong(buffer, offset + i);
+        }
+        return 64;
+    }
+
+    private static int writeLong(ByteBuffer buffer, int offset) {
+        buffer.putLong(offset, 0x1122334455667788L);
+        return 8;
+    }
+}
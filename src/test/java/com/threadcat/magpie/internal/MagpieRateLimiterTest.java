@@ -0,0 +1,54 @@
+package com.threadcat.magpie.internal;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MagpieRateLimiterTest {
+    private static final long MS = 1_000_000L;
+
+    @Test
+    void testMessageBurstAndRefill() {
+        // 1000 messages per second, 5 ms burst
+        MagpieRateLimiter limiter = new MagpieRateLimiter(1000, 0, 5 * MS, 0L);
+        assertEquals(6, limiter.getRemainingMessages(0L));
+        assertEquals(Long.MAX_VALUE, limiter.getRemainingBytes(0L));
+        for (int i = 0; i < 6; i++) {
+            assertTrue(limiter.tryAcquire(0L, 100), "Message " + i);
+        }
+        assertFalse(limiter.tryAcquire(0L, 100));
+        assertEquals(0, limiter.getRemainingMessages(0L));
+        assertEquals(MS, limiter.getDelayNanos(0L));
+        assertTrue(limiter.tryAcquire(MS, 100));
+        assertFalse(limiter.tryAcquire(MS, 100));
+        // Idle time refills up to burst, not beyond
+        assertEquals(6, limiter.getRemainingMessages(1000 * MS));
+    }
+
+    @Test
+    void testBytesRejectReturnsMessage() {
+        // 1000 bytes per second, 10 ms burst
+        MagpieRateLimiter limiter = new MagpieRateLimiter(100, 1000, 10 * MS, 0L);
+        assertTrue(limiter.tryAcquire(0L, 4000));
+        assertEquals(0, limiter.getRemainingBytes(0L));
+        long messages = limiter.getRemainingMessages(0L);
+        assertFalse(limiter.tryAcquire(0L, 10));
+        assertEquals(messages, limiter.getRemainingMessages(0L));
+        assertEquals(3990 * MS, limiter.getDelayNanos(0L));
+        assertTrue(limiter.tryAcquire(3990 * MS, 10));
+    }
+
+    @Test
+    void testReleaseReturnsTokens() {
+        // 1000 messages and 10000 bytes per second, 1 ms burst
+        MagpieRateLimiter limiter = new MagpieRateLimiter(1000, 10000, MS, 0L);
+        assertTrue(limiter.tryAcquire(0L, 10));
+        assertEquals(1, limiter.getRemainingMessages(0L));
+        assertEquals(1, limiter.getRemainingBytes(0L));
+        limiter.release(10);
+        assertEquals(2, limiter.getRemainingMessages(0L));
+        assertEquals(11, limiter.getRemainingBytes(0L));
+    }
+}